@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/*
+    Times bulk inserts of 14, 1,000 and 100,000 weather rows: the old way, one db.insert per
+    row inside a transaction, against the provider's bulkInsert with its compiled statements.
+    A second provider pass with every row changed times the update path.  The rows/sec go to
+    the log.
+ */
+public class TestBulkInsertBenchmark extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestBulkInsertBenchmark.class.getSimpleName();
+
+    // Rows are spread over locations a year at a time, and handed over this many per call so
+    // the 100,000 row run doesn't need all of its ContentValues in memory at once.
+    private static final int DAYS_PER_LOCATION = 365;
+    private static final int ROWS_PER_CALL = 5000;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testBulkInsertBenchmark() {
+        benchmark(14);
+        benchmark(1000);
+        benchmark(100000);
+    }
+
+    private void benchmark(int rowCount) {
+        long[] locationIds = insertLocations((rowCount + DAYS_PER_LOCATION - 1) / DAYS_PER_LOCATION);
+
+        long legacyNanos = timeLegacyInsert(locationIds, rowCount);
+        assertEquals(rowCount, countWeather());
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+
+        long insertNanos = timeProviderInsert(locationIds, rowCount, 0);
+        assertEquals(rowCount, countWeather());
+
+        // Same days again with every value nudged: all updates, no inserts.
+        long updateNanos = timeProviderInsert(locationIds, rowCount, 1);
+        assertEquals(rowCount, countWeather());
+
+        deleteAllRecords();
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d rows: db.insert %.0f rows/s, bulkInsert (insert) %.0f rows/s, " +
+                        "bulkInsert (update) %.0f rows/s",
+                rowCount,
+                rowCount / (legacyNanos / 1e9),
+                rowCount / (insertNanos / 1e9),
+                rowCount / (updateNanos / 1e9)));
+    }
+
+    private long[] insertLocations(int count) {
+        long[] locationIds = new long[count];
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        for (int i = 0; i < count; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "benchmark" + i);
+            locationIds[i] = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+            assertTrue(locationIds[i] != -1);
+        }
+        db.close();
+        return locationIds;
+    }
+
+    // What bulkInsert used to do.
+    private long timeLegacyInsert(long[] locationIds, int rowCount) {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        long nanos = 0;
+        for (int start = 0; start < rowCount; start += ROWS_PER_CALL) {
+            ContentValues[] values = createWeatherValues(locationIds, start,
+                    Math.min(ROWS_PER_CALL, rowCount - start), 0);
+            long callStart = System.nanoTime();
+            db.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    long dateValue = value.getAsLong(WeatherEntry.COLUMN_DATE);
+                    value.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+                    db.insert(WeatherEntry.TABLE_NAME, null, value);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            nanos += System.nanoTime() - callStart;
+        }
+        db.close();
+        return nanos;
+    }
+
+    private long timeProviderInsert(long[] locationIds, int rowCount, int variant) {
+        long nanos = 0;
+        for (int start = 0; start < rowCount; start += ROWS_PER_CALL) {
+            int count = Math.min(ROWS_PER_CALL, rowCount - start);
+            ContentValues[] values = createWeatherValues(locationIds, start, count, variant);
+            long callStart = System.nanoTime();
+            int inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+            nanos += System.nanoTime() - callStart;
+            assertEquals(count, inserted);
+        }
+        return nanos;
+    }
+
+    private static ContentValues[] createWeatherValues(long[] locationIds, int start, int count,
+                                                       int variant) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            int row = start + i;
+            ContentValues weatherValues = TestUtilities.createWeatherValues(
+                    locationIds[row / DAYS_PER_LOCATION],
+                    TestUtilities.TEST_DATE + (row % DAYS_PER_LOCATION) * DAY_IN_MILLIS);
+            // The defaults, made to differ from row to row and from one variant to the next
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1 + variant);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2 + 0.01 * (row % 100));
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3 - 0.01 * (row % 100));
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75 + (row % 10) + variant);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65 - (row % 10));
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.2 * (row % 10));
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    private int countWeather() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.ChangeEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that every write to the weather shows up in the change log, once, under a sequence
+    number greater than any before it, and that a WeatherChangeTracker only reports the changes
+    to the days it was asked about.
+ */
+public class TestChangeFeed extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestChangeFeed.class.getSimpleName();
+
+    private static final String CONSUMER = TestChangeFeed.class.getSimpleName();
+    private static final String OTHER_LOCATION = "changefeed";
+
+    private static final int DAYS = 7;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private long mLocationId;
+    private long mOtherLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        mLocationId = insertLocation(TestUtilities.TEST_LOCATION);
+        mOtherLocationId = insertLocation(OTHER_LOCATION);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(ChangeEntry.CONTENT_URI, null, null);
+        mContext.getSharedPreferences(WeatherChangeTracker.class.getName() + "." + CONSUMER,
+                Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                locationValues);
+        return ContentUris.parseId(locationUri);
+    }
+
+    private ContentValues[] createForecast(long locationId, double maxTemp) {
+        ContentValues[] values = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            ContentValues weatherValues = TestUtilities.createWeatherValues(locationId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, getDate(i));
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, maxTemp);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    private static long getDate(int day) {
+        return WeatherContract.normalizeDate(TestUtilities.TEST_DATE + day * DAY_IN_MILLIS);
+    }
+
+    /*
+        @return the highest sequence number handed out so far, 0 if none
+     */
+    private long getLatestSequence() {
+        Cursor cursor = mContext.getContentResolver().query(ChangeEntry.CONTENT_URI,
+                new String[]{ChangeEntry._ID}, null, null, ChangeEntry._ID + " DESC");
+        long sequence = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        cursor.close();
+        return sequence;
+    }
+
+    // The change log has a path of its own, so a location can have any name.
+    public void testLocationCalledChanges() {
+        long locationId = insertLocation(WeatherContract.PATH_CHANGES);
+        assertEquals(DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createForecast(locationId, 75)));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(WeatherContract.PATH_CHANGES), null, null,
+                null, null);
+        assertNotNull(cursor);
+        assertEquals(DAYS, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testWritesAreLogged() {
+        long since = getLatestSequence();
+        ContentValues[] forecast = createForecast(mLocationId, 75);
+        assertEquals(DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                forecast));
+
+        // One change per day, in order, for the location
+        Cursor cursor = mContext.getContentResolver().query(
+                ChangeEntry.buildChangesSinceUri(since), null, null, null, null);
+        assertEquals(DAYS, cursor.getCount());
+        int sequenceIndex = cursor.getColumnIndex(ChangeEntry._ID);
+        int dateIndex = cursor.getColumnIndex(ChangeEntry.COLUMN_DATE);
+        int settingIndex = cursor.getColumnIndex(LocationEntry.COLUMN_LOCATION_SETTING);
+        long lastSequence = since;
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertTrue("Error: sequence went backwards",
+                    cursor.getLong(sequenceIndex) > lastSequence);
+            lastSequence = cursor.getLong(sequenceIndex);
+            assertEquals(getDate(i), cursor.getLong(dateIndex));
+            assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(settingIndex));
+        }
+        cursor.close();
+        since = lastSequence;
+
+        // The same forecast again writes nothing, so nothing is logged.
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createForecast(mLocationId, 75));
+        assertEquals(since, getLatestSequence());
+
+        // A single day that changed is a single change.
+        ContentValues[] changedForecast = createForecast(mLocationId, 75);
+        changedForecast[3].put(WeatherEntry.COLUMN_MAX_TEMP, 80);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, changedForecast);
+        cursor = mContext.getContentResolver().query(ChangeEntry.buildChangesSinceUri(since),
+                new String[]{ChangeEntry.COLUMN_DATE}, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(getDate(3), cursor.getLong(0));
+        cursor.close();
+        since = getLatestSequence();
+
+        // Deletes are changes too, and the caller's selection narrows them down.
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " <= ?", new String[]{Long.toString(getDate(1))});
+        cursor = mContext.getContentResolver().query(ChangeEntry.buildChangesSinceUri(since),
+                null, ChangeEntry.COLUMN_DATE + " = ?", new String[]{Long.toString(getDate(0))},
+                null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        assertEquals(since + 2, getLatestSequence());
+    }
+
+    public void testPruneKeepsSequence() {
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createForecast(mLocationId, 75));
+        long since = getLatestSequence();
+        assertEquals(DAYS, mContext.getContentResolver().delete(ChangeEntry.CONTENT_URI,
+                null, null));
+
+        // Numbers aren't handed out twice, even once the changes that had them are gone.
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createForecast(mLocationId, 76));
+        Cursor cursor = mContext.getContentResolver().query(
+                ChangeEntry.buildChangesSinceUri(since), null, null, null, null);
+        assertEquals(DAYS, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testTrackerSkipsUnrelatedChanges() {
+        long today = getDate(0);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createForecast(mLocationId, 75));
+
+        // Nothing seen yet
+        WeatherChangeTracker tracker = new WeatherChangeTracker(mContext, CONSUMER);
+        assertTrue(tracker.hasChanged(TestUtilities.TEST_LOCATION, today, today));
+        tracker.markSeen();
+        assertFalse(tracker.hasChanged(TestUtilities.TEST_LOCATION, today, today));
+
+        // Another location, and days after today, are none of its business.
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createForecast(mOtherLocationId, 75));
+        ContentValues[] forecast = createForecast(mLocationId, 75);
+        forecast[DAYS - 1].put(WeatherEntry.COLUMN_MAX_TEMP, 90);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+        assertFalse(tracker.hasChanged(TestUtilities.TEST_LOCATION, today, today));
+
+        // But the whole week is, and another location is always a change.
+        assertTrue(new WeatherChangeTracker(mContext, CONSUMER).hasChanged(
+                TestUtilities.TEST_LOCATION, today, getDate(DAYS - 1)));
+        assertTrue(new WeatherChangeTracker(mContext, CONSUMER).hasChanged(
+                OTHER_LOCATION, today, today));
+        tracker.markSeen();
+
+        // A new tracker of the same consumer skips them too: it's the preferences that remember.
+        tracker = new WeatherChangeTracker(mContext, CONSUMER);
+        assertFalse(tracker.hasChanged(TestUtilities.TEST_LOCATION, today, getDate(DAYS - 1)));
+
+        // Today changing is a change, until it's been seen.
+        forecast[0].put(WeatherEntry.COLUMN_MAX_TEMP, 60);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+        assertTrue(tracker.hasChanged(TestUtilities.TEST_LOCATION, today, today));
+        assertTrue("Error: changes seen without markSeen",
+                tracker.hasChanged(TestUtilities.TEST_LOCATION, today, today));
+        tracker.markSeen();
+        assertFalse(tracker.hasChanged(TestUtilities.TEST_LOCATION, today, today));
+    }
+}
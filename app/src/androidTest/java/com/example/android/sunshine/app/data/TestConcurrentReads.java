@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Runs the provider's location/start date query from several threads while one long write
+    transaction goes on, once with the rollback journal and once with write-ahead logging, on a
+    database of its own.  The p50 and p99 read latencies of both go to the log.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class TestConcurrentReads extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConcurrentReads.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "concurrent_reads.db";
+
+    private static final int READER_COUNT = 4;
+    private static final int LOCATION_COUNT = 10;
+    private static final int ROWS_TO_WRITE = 20000;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // The query behind weather/[location]?date=[date]
+    private static final String READ_SQL = "SELECT * FROM " +
+            WeatherEntry.TABLE_NAME + " INNER JOIN " + LocationEntry.TABLE_NAME +
+            " ON " + WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_LOC_KEY +
+            " = " + LocationEntry.TABLE_NAME + "." + LocationEntry._ID +
+            " WHERE " + LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION_SETTING +
+            " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ?";
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testReadsDuringWrite() throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // No way to turn write-ahead logging off and on again before Jelly Bean.
+            return;
+        }
+        List<Long> rollbackLatencies = runReadsDuringWrite(false);
+        List<Long> walLatencies = runReadsDuringWrite(true);
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d readers during a %d row write: rollback journal p50 %.2f ms p99 %.2f ms " +
+                        "(%d reads), WAL p50 %.2f ms p99 %.2f ms (%d reads)",
+                READER_COUNT, ROWS_TO_WRITE,
+                percentile(rollbackLatencies, 50) / 1e6, percentile(rollbackLatencies, 99) / 1e6,
+                rollbackLatencies.size(),
+                percentile(walLatencies, 50) / 1e6, percentile(walLatencies, 99) / 1e6,
+                walLatencies.size()));
+    }
+
+    private List<Long> runReadsDuringWrite(boolean writeAheadLogging) throws Throwable {
+        mContext.deleteDatabase(DATABASE_NAME);
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, DATABASE_NAME);
+        dbHelper.setWriteAheadLoggingEnabled(writeAheadLogging);
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        assertEquals(writeAheadLogging, db.isWriteAheadLoggingEnabled());
+
+        final long[] locationIds = new long[LOCATION_COUNT];
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "reader" + i);
+            locationIds[i] = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+        }
+        // Something for the readers to find before the write starts.
+        writeWeather(db, locationIds, 0, LOCATION_COUNT * 14);
+
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch readersStarted = new CountDownLatch(READER_COUNT);
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final Throwable[] failure = new Throwable[1];
+
+        List<Thread> readers = new ArrayList<Thread>(READER_COUNT);
+        for (int r = 0; r < READER_COUNT; r++) {
+            final int reader = r;
+            Thread thread = new Thread("reader" + r) {
+                @Override
+                public void run() {
+                    readersStarted.countDown();
+                    try {
+                        for (int i = 0; writing.get(); i++) {
+                            String[] args = {"reader" + ((reader + i) % LOCATION_COUNT),
+                                    Long.toString(TestUtilities.TEST_DATE)};
+                            long start = System.nanoTime();
+                            Cursor cursor = db.rawQuery(READ_SQL, args);
+                            cursor.getCount();
+                            cursor.close();
+                            latencies.add(System.nanoTime() - start);
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+            readers.add(thread);
+            thread.start();
+        }
+
+        readersStarted.await();
+        db.beginTransaction();
+        try {
+            writeWeather(db, locationIds, LOCATION_COUNT * 14, ROWS_TO_WRITE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            writing.set(false);
+        }
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        dbHelper.close();
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        assertFalse("Error: no reads were made", latencies.isEmpty());
+        return latencies;
+    }
+
+    private static void writeWeather(SQLiteDatabase db, long[] locationIds, int start,
+                                     int count) {
+        for (int row = start; row < start + count; row++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationIds[row % locationIds.length]);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + (row / locationIds.length) * DAY_IN_MILLIS);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        }
+    }
+
+    private static long percentile(List<Long> values, int percentile) {
+        List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.ChangeEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+    Builds databases the way each past version of the app left them, then opens them with the
+    current WeatherDbHelper.  The upgraded database must have the same tables, columns and
+    indexes as a new one, and still hold the forecast it had.  The upgrade of a large database
+    is timed; the result goes to the log.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestDbMigrations.class.getSimpleName();
+
+    private static final String OLD_DATABASE_NAME = "migration_old.db";
+    private static final String NEW_DATABASE_NAME = "migration_new.db";
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // The tables as version 2 created them
+    private static final String V2_CREATE_LOCATION_TABLE = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY," +
+            "location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, " +
+            "coord_lat REAL NOT NULL, " +
+            "coord_long REAL NOT NULL  );";
+    private static final String V2_CREATE_WEATHER_TABLE = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+            "location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "short_desc TEXT NOT NULL, " +
+            "weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, " +
+            "max REAL NOT NULL, " +
+            "humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, " +
+            "wind REAL NOT NULL, " +
+            "degrees REAL NOT NULL, " +
+            " FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteDatabases();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDatabases();
+        super.tearDown();
+    }
+
+    private void deleteDatabases() {
+        mContext.deleteDatabase(OLD_DATABASE_NAME);
+        mContext.deleteDatabase(NEW_DATABASE_NAME);
+    }
+
+    private SQLiteDatabase createOldDatabase(int version) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(OLD_DATABASE_NAME), null);
+        db.setVersion(version);
+        return db;
+    }
+
+    /*
+        We don't know what a version 1 database held, so it is started over.
+     */
+    public void testUpgradeFromVersion1() {
+        SQLiteDatabase oldDb = createOldDatabase(1);
+        oldDb.execSQL("CREATE TABLE weather (_id INTEGER PRIMARY KEY, temperature REAL);");
+        oldDb.execSQL("INSERT INTO weather (temperature) VALUES (21.5);");
+        oldDb.close();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, OLD_DATABASE_NAME);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        assertSameSchemaAsNewDatabase(db);
+        assertEquals(0, count(db, WeatherEntry.TABLE_NAME));
+        dbHelper.close();
+    }
+
+    public void testUpgradeFromVersion2() {
+        SQLiteDatabase oldDb = createOldDatabase(2);
+        seedVersion2(oldDb, 3, 14);
+        List<Long> weatherIds = getIds(oldDb, WeatherEntry.TABLE_NAME);
+        List<Long> locationIds = getIds(oldDb, LocationEntry.TABLE_NAME);
+        oldDb.close();
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, OLD_DATABASE_NAME);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        assertSameSchemaAsNewDatabase(db);
+
+        // Same rows, same IDs
+        assertEquals(locationIds, getIds(db, LocationEntry.TABLE_NAME));
+        assertEquals(weatherIds, getIds(db, WeatherEntry.TABLE_NAME));
+
+        // One row per location and day still holds, and new rows don't reuse old IDs.
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationIds.get(0));
+        weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        long newId = db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        assertTrue("Error: new row reused an ID", newId > weatherIds.get(weatherIds.size() - 1));
+        assertEquals(weatherIds.size(), count(db, WeatherEntry.TABLE_NAME));
+
+        // The change log starts empty, and the triggers fill it in from then on: the row that
+        // was replaced is the same location and day, so there's one change.
+        assertEquals(1, count(db, ChangeEntry.TABLE_NAME));
+        // So does the sync log.
+        assertEquals(0, count(db, SyncLogEntry.TABLE_NAME));
+        dbHelper.close();
+    }
+
+    public void testUpgradeTiming() {
+        int locationCount = 1000;
+        int days = 100;
+        SQLiteDatabase oldDb = createOldDatabase(2);
+        seedVersion2(oldDb, locationCount, days);
+        oldDb.close();
+
+        long start = System.nanoTime();
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext, OLD_DATABASE_NAME);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long nanos = System.nanoTime() - start;
+
+        assertEquals(locationCount * days, count(db, WeatherEntry.TABLE_NAME));
+        dbHelper.close();
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "Upgrade from version 2 with %d locations, %d weather rows: %.1f ms",
+                locationCount, locationCount * days, nanos / 1e6));
+    }
+
+    private void seedVersion2(SQLiteDatabase db, int locationCount, int days) {
+        db.execSQL(V2_CREATE_LOCATION_TABLE);
+        db.execSQL(V2_CREATE_WEATHER_TABLE);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < locationCount; i++) {
+                ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+                locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "migration" + i);
+                long locationId = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+                assertTrue(locationId != -1);
+                for (int day = 0; day < days; day++) {
+                    assertTrue(db.insert(WeatherEntry.TABLE_NAME, null,
+                            TestUtilities.createWeatherValues(locationId,
+                                    TestUtilities.TEST_DATE + day * DAY_IN_MILLIS)) != -1);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /*
+        Compares the tables, their columns and the indexes with those of a database created
+        from scratch.
+     */
+    private void assertSameSchemaAsNewDatabase(SQLiteDatabase db) {
+        WeatherDbHelper newDbHelper = new WeatherDbHelper(mContext, NEW_DATABASE_NAME);
+        SQLiteDatabase newDb = newDbHelper.getWritableDatabase();
+        assertEquals(newDb.getVersion(), db.getVersion());
+
+        Set<String> objects = getSchemaObjects(newDb);
+        assertEquals(objects, getSchemaObjects(db));
+        for (String object : objects) {
+            if (object.startsWith("table ")) {
+                String table = object.substring("table ".length());
+                assertEquals("Error: columns of " + table,
+                        getColumns(newDb, table), getColumns(db, table));
+            }
+        }
+        newDbHelper.close();
+    }
+
+    private static Set<String> getSchemaObjects(SQLiteDatabase db) {
+        Set<String> objects = new HashSet<String>();
+        Cursor cursor = db.rawQuery("SELECT type, name FROM sqlite_master", null);
+        while (cursor.moveToNext()) {
+            objects.add(cursor.getString(0) + " " + cursor.getString(1));
+        }
+        cursor.close();
+        return objects;
+    }
+
+    private static List<String> getColumns(SQLiteDatabase db, String table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        int nameIndex = cursor.getColumnIndex("name");
+        int typeIndex = cursor.getColumnIndex("type");
+        while (cursor.moveToNext()) {
+            columns.add(cursor.getString(nameIndex) + " " + cursor.getString(typeIndex));
+        }
+        cursor.close();
+        return columns;
+    }
+
+    private static List<Long> getIds(SQLiteDatabase db, String table) {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor = db.query(table, new String[]{"_id"}, null, null, null, null, "_id");
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return ids;
+    }
+
+    private static int count(SQLiteDatabase db, String table) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + table, null);
+        cursor.moveToFirst();
+        int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+}
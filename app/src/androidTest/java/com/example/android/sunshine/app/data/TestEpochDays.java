@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/*
+    Checks EpochDays against android.text.format.Time, which it replaces, in zones with
+    daylight saving time, half hour offsets and none at all.  Then times the hot paths both
+    ways: normalizing a date, the dates of a sync, and the day names the list shows.
+    Nanoseconds and allocations per call go to the log.  The rest of EpochDays needs no
+    device, so EpochDaysTest covers it on the JVM.
+ */
+public class TestEpochDays extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestEpochDays.class.getSimpleName();
+
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    // None of these change their offset at midnight.
+    private static final String[] ZONES = {
+            "UTC", "America/Los_Angeles", "America/New_York", "Europe/London", "Europe/Berlin",
+            "Asia/Kolkata", "Asia/Kathmandu", "Australia/Lord_Howe", "Pacific/Auckland"
+    };
+
+    // 1 January 2014 to 1 January 2017, UTC
+    private static final long FROM_MILLIS = 1388534400000L;
+    private static final long TO_MILLIS = 1483228800000L;
+    // Odd enough to land on every hour and minute sooner or later
+    private static final long STEP_MILLIS = 7 * HOUR_IN_MILLIS + 13 * 60 * 1000 + 17;
+
+    private static final int ITERATIONS = 100000;
+    private static final int DAY_NAME_ITERATIONS = 5000;
+
+    // Keeps the benchmarked calls from being optimized away
+    private long mSink;
+
+    public void testMatchesTime() {
+        for (String zoneId : ZONES) {
+            EpochDays days = new EpochDays(TimeZone.getTimeZone(zoneId));
+            Time time = new Time(zoneId);
+            for (long millis = FROM_MILLIS; millis < TO_MILLIS; millis += STEP_MILLIS) {
+                time.set(millis);
+                int julianDay = Time.getJulianDay(millis, time.gmtoff);
+                assertEquals("Error: wrong day for " + millis + " in " + zoneId,
+                        julianDay, EpochDays.toJulianDay(days.toEpochDay(millis)));
+                assertEquals("Error: wrong start of day for " + millis + " in " + zoneId,
+                        time.setJulianDay(julianDay), days.normalize(millis));
+            }
+        }
+    }
+
+    public void testBenchmark() {
+        final EpochDays days = EpochDays.getDefault();
+        final long now = System.currentTimeMillis();
+
+        // What WeatherContract.normalizeDate did for every row
+        long[] legacy = measure(ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    Time time = new Time();
+                    long millis = now + i * HOUR_IN_MILLIS;
+                    time.set(millis);
+                    mSink += time.setJulianDay(Time.getJulianDay(millis, time.gmtoff));
+                }
+            }
+        });
+        long[] kernel = measure(ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    mSink += WeatherContract.normalizeDate(now + i * HOUR_IN_MILLIS);
+                }
+            }
+        });
+        log("normalizeDate", legacy, kernel);
+
+        // What the sync did for each location's 14 days
+        legacy = measure(ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS / 14; i++) {
+                    Time dayTime = new Time();
+                    dayTime.setToNow();
+                    int julianStartDay = Time.getJulianDay(now, dayTime.gmtoff);
+                    for (int day = 0; day < 14; day++) {
+                        mSink += dayTime.setJulianDay(julianStartDay + day);
+                    }
+                }
+            }
+        });
+        kernel = measure(ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS / 14; i++) {
+                    int startDay = days.toEpochDay(now);
+                    for (int day = 0; day < 14; day++) {
+                        mSink += days.toMillis(startDay + day);
+                    }
+                }
+            }
+        });
+        log("sync dates (per day)", legacy, kernel);
+
+        // What the list did to name each day it binds
+        legacy = measure(DAY_NAME_ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < DAY_NAME_ITERATIONS; i++) {
+                    mSink += getLegacyDayName(now + (i % 14) * EpochDays.DAY_IN_MILLIS).length();
+                }
+            }
+        });
+        kernel = measure(DAY_NAME_ITERATIONS, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < DAY_NAME_ITERATIONS; i++) {
+                    mSink += Utility.getDayName(mContext,
+                            now + (i % 14) * EpochDays.DAY_IN_MILLIS).length();
+                }
+            }
+        });
+        log("getDayName", legacy, kernel);
+    }
+
+    // Utility.getDayName as it was
+    private String getLegacyDayName(long dateInMillis) {
+        Time t = new Time();
+        t.setToNow();
+        int julianDay = Time.getJulianDay(dateInMillis, t.gmtoff);
+        int currentJulianDay = Time.getJulianDay(System.currentTimeMillis(), t.gmtoff);
+        if (julianDay == currentJulianDay) {
+            return mContext.getString(R.string.today);
+        } else if (julianDay == currentJulianDay + 1) {
+            return mContext.getString(R.string.tomorrow);
+        } else {
+            Time time = new Time();
+            time.setToNow();
+            SimpleDateFormat dayFormat = new SimpleDateFormat("EEEE");
+            return dayFormat.format(dateInMillis);
+        }
+    }
+
+    /*
+        Runs the loop once to warm up, then again with the allocations counted.
+        @return the nanoseconds and allocations per call.
+     */
+    @SuppressWarnings("deprecation")
+    private static long[] measure(int calls, Runnable loop) {
+        loop.run();
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        loop.run();
+        long nanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        return new long[]{nanos / calls, Debug.getThreadAllocCount() / calls};
+    }
+
+    private static void log(String name, long[] legacy, long[] kernel) {
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%s: Time %d ns and %d allocations per call, EpochDays %d ns and %d allocations",
+                name, legacy[0], legacy[1], kernel[0], kernel[1]));
+    }
+}
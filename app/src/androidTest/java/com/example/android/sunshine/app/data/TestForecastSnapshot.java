@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/*
+    Checks that ForecastSnapshot.query reads what a query of the same forecast returns, then
+    times binding a forecast from a snapshot against binding it from a cursor.  The results go
+    to the log.
+ */
+public class TestForecastSnapshot extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastSnapshot.class.getSimpleName();
+
+    private static final int DAYS = 14;
+    private static final int ITERATIONS = 1000;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // What the forecast list binds
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationId = ContentUris.parseId(locationUri);
+
+        ContentValues[] values = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2 + 0.01 * i);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3 - 0.01 * i);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75.0 + i);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65.0 - i);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids " + i);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.2 * i);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 300 + i);
+            values[i] = weatherValues;
+        }
+        assertEquals(DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                values));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testQueryMatchesCursor() {
+        long startDate = TestUtilities.TEST_DATE + 2 * DAY_IN_MILLIS;
+        ForecastSnapshot snapshot = ForecastSnapshot.query(mContext.getContentResolver(),
+                TestUtilities.TEST_LOCATION, startDate);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        startDate),
+                ForecastSnapshot.PROJECTION, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertEquals(DAYS - 2, snapshot.size());
+        assertEquals(cursor.getCount(), snapshot.size());
+        assertEquals(TestUtilities.TEST_LOCATION, snapshot.getLocationSetting());
+        assertEquals("North Pole", snapshot.getCityName());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(cursor.getLong(ForecastSnapshot.COL_LOC_KEY), snapshot.getLocationId());
+            assertEquals(cursor.getLong(ForecastSnapshot.COL_WEATHER_ID), snapshot.getId(i));
+            assertEquals(cursor.getLong(ForecastSnapshot.COL_DATE), snapshot.getDate(i));
+            assertEquals(cursor.getString(ForecastSnapshot.COL_SHORT_DESC),
+                    snapshot.getDescription(i));
+            assertEquals(cursor.getInt(ForecastSnapshot.COL_CONDITION_ID),
+                    snapshot.getWeatherId(i));
+            assertEquals(cursor.getDouble(ForecastSnapshot.COL_MAX_TEMP), snapshot.getHigh(i), 0);
+            assertEquals(cursor.getDouble(ForecastSnapshot.COL_MIN_TEMP), snapshot.getLow(i), 0);
+            assertEquals(cursor.getDouble(ForecastSnapshot.COL_HUMIDITY),
+                    snapshot.getHumidity(i), 0);
+            assertEquals(cursor.getDouble(ForecastSnapshot.COL_PRESSURE),
+                    snapshot.getPressure(i), 0);
+            assertEquals(cursor.getDouble(ForecastSnapshot.COL_WIND_SPEED),
+                    snapshot.getWindSpeed(i), 0);
+            assertEquals(cursor.getDouble(ForecastSnapshot.COL_DEGREES),
+                    snapshot.getDegrees(i), 0);
+            assertEquals(i, snapshot.indexOf(snapshot.getDate(i)));
+        }
+        cursor.close();
+    }
+
+    public void testQueryUnknownLocation() {
+        ForecastSnapshot snapshot = ForecastSnapshot.query(mContext.getContentResolver(),
+                "nowhere", TestUtilities.TEST_DATE);
+        assertTrue(snapshot.isEmpty());
+        assertNull(snapshot.getLocationSetting());
+        assertEquals(-1, snapshot.indexOf(TestUtilities.TEST_DATE));
+    }
+
+    public void testBindBenchmark() {
+        Uri uri = WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+        // Warm up both paths, and the provider's cache with them.
+        bindFromCursor(uri);
+        bindFromSnapshot();
+
+        long start = System.nanoTime();
+        double cursorSum = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            cursorSum += bindFromCursor(uri);
+        }
+        long cursorNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        double snapshotSum = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            snapshotSum += bindFromSnapshot();
+        }
+        long snapshotNanos = System.nanoTime() - start;
+
+        assertEquals(cursorSum, snapshotSum, 0);
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "Reading and binding %d days: cursor %.3f ms, snapshot %.3f ms",
+                DAYS, cursorNanos / 1e6 / ITERATIONS, snapshotNanos / 1e6 / ITERATIONS));
+    }
+
+    // @return a sum of what was read, so none of it goes unused
+    private double bindFromCursor(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, FORECAST_COLUMNS, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        double sum = 0;
+        while (cursor.moveToNext()) {
+            sum += cursor.getLong(0) % 7 + cursor.getInt(1) + cursor.getDouble(2)
+                    + cursor.getDouble(3);
+        }
+        cursor.close();
+        return sum;
+    }
+
+    private double bindFromSnapshot() {
+        ForecastSnapshot snapshot = ForecastSnapshot.query(mContext.getContentResolver(),
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        double sum = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            sum += snapshot.getDate(i) % 7 + snapshot.getWeatherId(i) + snapshot.getHigh(i)
+                    + snapshot.getLow(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/*
+    Checks that the provider's forecast snapshots answer the queries the app makes the same way
+    SQLite does, and that a write drops them.  Then times what happens after a sync, every view
+    asking for the preferred location's forecast, with and without the cache; the results go
+    to the log.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class TestForecastSnapshotCache extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastSnapshotCache.class.getSimpleName();
+
+    private static final int DAYS = 14;
+    private static final int SYNCS = 200;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private static final String DATE_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    // The forecast list, the detail widget and the detail view
+    private static final String[] LIST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+    private static final String[] DETAIL_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+    // The today widget, the wear bridge, Muzei and the notification
+    private static final String[] TODAY_COLUMNS = {
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    private WeatherProvider mProvider;
+    private long mLocationId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+        mProvider.getSnapshotCache().setEnabled(true);
+
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationId = ContentUris.parseId(locationUri);
+        sync(0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.getSnapshotCache().setEnabled(true);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testSnapshotMatchesDatabase() {
+        ForecastSnapshotCache cache = mProvider.getSnapshotCache();
+        for (int i = 0; i < 2; i++) {
+            Uri[] uris = getFanOutUris();
+            String[][] projections = getFanOutProjections();
+            String[] sortOrders = getFanOutSortOrders();
+            for (int q = 0; q < uris.length; q++) {
+                cache.setEnabled(false);
+                String expected = dump(uris[q], projections[q], sortOrders[q]);
+                cache.setEnabled(true);
+                // Once to read the snapshot, once from it
+                assertEquals("Error: snapshot differs for " + uris[q],
+                        expected, dump(uris[q], projections[q], sortOrders[q]));
+                assertEquals("Error: cached snapshot differs for " + uris[q],
+                        expected, dump(uris[q], projections[q], sortOrders[q]));
+            }
+        }
+    }
+
+    public void testQueriesAfterTheFirstAreHits() {
+        ForecastSnapshotCache cache = mProvider.getSnapshotCache();
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        runFanOut();
+        // Only the first query of the location's forecast goes to SQLite.
+        assertEquals(1, cache.getMissCount() - misses);
+        assertEquals(getFanOutUris().length - 1, cache.getHitCount() - hits);
+    }
+
+    public void testWriteDropsSnapshot() {
+        Uri todayUri = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        Cursor cursor = mContext.getContentResolver().query(todayUri, TODAY_COLUMNS, null, null,
+                null);
+        assertTrue(cursor.moveToFirst());
+        double maxTemp = cursor.getDouble(2);
+        cursor.close();
+
+        sync(1);
+
+        long misses = mProvider.getSnapshotCache().getMissCount();
+        cursor = mContext.getContentResolver().query(todayUri, TODAY_COLUMNS, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: snapshot wasn't dropped by the write",
+                maxTemp + 1, cursor.getDouble(2), 0);
+        cursor.close();
+        assertEquals(misses + 1, mProvider.getSnapshotCache().getMissCount());
+    }
+
+    public void testPostSyncFanOutBenchmark() {
+        mProvider.getSnapshotCache().setEnabled(false);
+        double uncachedMs = timeFanOuts();
+        mProvider.getSnapshotCache().setEnabled(true);
+        long hits = mProvider.getSnapshotCache().getHitCount();
+        long misses = mProvider.getSnapshotCache().getMissCount();
+        double cachedMs = timeFanOuts();
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d queries after each of %d syncs: without cache %.3f ms, with cache %.3f ms " +
+                        "(%d hits, %d misses)",
+                getFanOutUris().length, SYNCS, uncachedMs, cachedMs,
+                mProvider.getSnapshotCache().getHitCount() - hits,
+                mProvider.getSnapshotCache().getMissCount() - misses));
+    }
+
+    // @return the average time of the queries after a sync, in milliseconds
+    private double timeFanOuts() {
+        long nanos = 0;
+        for (int i = 0; i < SYNCS; i++) {
+            // Every sync changes the forecast, so every fan-out starts with nothing cached.
+            sync(i + 2);
+            long start = System.nanoTime();
+            runFanOut();
+            nanos += System.nanoTime() - start;
+        }
+        return nanos / 1e6 / SYNCS;
+    }
+
+    private void runFanOut() {
+        Uri[] uris = getFanOutUris();
+        String[][] projections = getFanOutProjections();
+        String[] sortOrders = getFanOutSortOrders();
+        for (int q = 0; q < uris.length; q++) {
+            Cursor cursor = mContext.getContentResolver().query(uris[q], projections[q], null,
+                    null, sortOrders[q]);
+            assertTrue("Error: nothing for " + uris[q], cursor.moveToFirst());
+            do {
+                for (int c = 0; c < cursor.getColumnCount(); c++) {
+                    cursor.getString(c);
+                }
+            } while (cursor.moveToNext());
+            cursor.close();
+        }
+    }
+
+    // The queries the app makes after a sync, in the order they usually come.
+    private static Uri[] getFanOutUris() {
+        Uri fromToday = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        Uri today = WeatherEntry.buildWeatherLocationWithDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        return new Uri[]{
+                fromToday,  // ForecastFragment
+                today,      // DetailFragment
+                fromToday,  // DetailWidgetRemoteViewsService
+                fromToday,  // TodayWidgetIntentService
+                fromToday,  // WatchDataUpdateService
+                fromToday,  // WeatherMuzeiSource
+                today       // SunshineSyncAdapter.notifyWeather
+        };
+    }
+
+    private static String[][] getFanOutProjections() {
+        return new String[][]{
+                LIST_COLUMNS,
+                DETAIL_COLUMNS,
+                LIST_COLUMNS,
+                TODAY_COLUMNS,
+                TODAY_COLUMNS,
+                TODAY_COLUMNS,
+                TODAY_COLUMNS
+        };
+    }
+
+    private static String[] getFanOutSortOrders() {
+        return new String[]{
+                DATE_ORDER,
+                null,
+                DATE_ORDER,
+                DATE_ORDER,
+                DATE_ORDER,
+                DATE_ORDER,
+                null
+        };
+    }
+
+    private String dump(Uri uri, String[] projection, String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(uri, projection, null, null,
+                sortOrder);
+        StringBuilder dump = new StringBuilder();
+        for (String column : cursor.getColumnNames()) {
+            dump.append(column).append(' ');
+        }
+        while (cursor.moveToNext()) {
+            dump.append('\n');
+            for (int c = 0; c < cursor.getColumnCount(); c++) {
+                // SQLite prints a REAL with fewer digits than Java does, so go by the type.
+                switch (cursor.getType(c)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        dump.append("integer ").append(cursor.getLong(c));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        dump.append("float ").append(cursor.getDouble(c));
+                        break;
+                    default:
+                        dump.append("string ").append(cursor.getString(c));
+                }
+                dump.append(' ');
+            }
+        }
+        cursor.close();
+        return dump.toString();
+    }
+
+    // Writes the location's forecast as a sync would, each variant with other temperatures.
+    private void sync(int variant) {
+        ContentValues[] values = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2 + 0.01 * i);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3 - 0.01 * i);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75.0 + i + variant);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65.0 - i);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.2 * i);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+            values[i] = weatherValues;
+        }
+        assertEquals(DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                values));
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SummaryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/*
+    Checks the summaries SQLite computes against the same ones computed here, row by row, over
+    a year of history, and that a summary is served from the cache until the location's weather
+    is written to.  Then times the weekly and yearly summaries both ways, cached and not; the
+    results go to the log.
+ */
+public class TestForecastSummary extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastSummary.class.getSimpleName();
+
+    private static final int DAYS = 365;
+    private static final int WEEKS = DAYS / 7;
+    private static final int ITERATIONS = 20;
+
+    // What a summary computed here needs of each day
+    private static final String[] SUMMARY_INPUT_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    private static final String[] SUMMARY_COLUMNS = {
+            SummaryEntry.COLUMN_DAYS,
+            SummaryEntry.COLUMN_MIN_TEMP,
+            SummaryEntry.COLUMN_MAX_TEMP,
+            SummaryEntry.COLUMN_AVG_MIN_TEMP,
+            SummaryEntry.COLUMN_AVG_MAX_TEMP,
+            SummaryEntry.COLUMN_MIN_HUMIDITY,
+            SummaryEntry.COLUMN_MAX_HUMIDITY,
+            SummaryEntry.COLUMN_AVG_HUMIDITY,
+            SummaryEntry.COLUMN_MIN_PRESSURE,
+            SummaryEntry.COLUMN_MAX_PRESSURE,
+            SummaryEntry.COLUMN_AVG_PRESSURE,
+            SummaryEntry.COLUMN_WEATHER_ID
+    };
+
+    private WeatherProvider mProvider;
+    private long mLocationId;
+    private long[] mDates;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+        mProvider.getSummaryCache().setEnabled(true);
+
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationId = ContentUris.parseId(locationUri);
+
+        // A year up to the test date, one normalized day at a time, as the sync stores them
+        EpochDays days = EpochDays.getDefault();
+        int lastDay = days.toEpochDay(TestUtilities.TEST_DATE);
+        mDates = new long[DAYS];
+        Random random = new Random(42);
+        ContentValues[] values = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            mDates[i] = days.toMillis(lastDay - DAYS + 1 + i);
+            values[i] = createWeatherValues(mDates[i], random);
+        }
+        assertEquals(DAYS, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                values));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProvider.getSummaryCache().setEnabled(true);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private ContentValues createWeatherValues(long date, Random random) {
+        // Warmer in the middle of the year, give or take a few degrees
+        double season = 15 * Math.sin(Math.PI * (date - mDates[0])
+                / ((double) DAYS * EpochDays.DAY_IN_MILLIS));
+        return TestUtilities.createWeatherValues(mLocationId, date, -5 + season, 5, random);
+    }
+
+    public void testSummaryMatchesClientSide() {
+        for (int week = 0; week < WEEKS; week++) {
+            assertSummary(mDates[7 * week], mDates[7 * week + 6]);
+        }
+        assertSummary(mDates[0], mDates[DAYS - 1]);
+        assertSummary(mDates[100], mDates[100]);
+        // Past either end of the history
+        assertSummary(mDates[DAYS - 3], mDates[DAYS - 1] + 10 * EpochDays.DAY_IN_MILLIS);
+
+        Cursor cursor = querySummary(mDates[DAYS - 1] + EpochDays.DAY_IN_MILLIS,
+                mDates[DAYS - 1] + 7 * EpochDays.DAY_IN_MILLIS);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(0, cursor.getInt(0));
+        for (int i = 1; i < SUMMARY_COLUMNS.length; i++) {
+            assertTrue("Error: " + SUMMARY_COLUMNS[i] + " of no days should be null",
+                    cursor.isNull(i));
+        }
+        cursor.close();
+    }
+
+    public void testSummaryProjection() {
+        Cursor cursor = mContext.getContentResolver().query(
+                SummaryEntry.buildSummaryUri(TestUtilities.TEST_LOCATION, mDates[0], mDates[6]),
+                new String[]{SummaryEntry.COLUMN_WEATHER_ID, SummaryEntry.COLUMN_DAYS},
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertEquals(2, cursor.getColumnCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(7, cursor.getInt(cursor.getColumnIndex(SummaryEntry.COLUMN_DAYS)));
+        cursor.close();
+
+        try {
+            mContext.getContentResolver().query(
+                    SummaryEntry.buildSummaryUri(TestUtilities.TEST_LOCATION, mDates[0],
+                            mDates[6]),
+                    new String[]{WeatherEntry.COLUMN_SHORT_DESC}, null, null, null);
+            fail("Error: a summary has no " + WeatherEntry.COLUMN_SHORT_DESC);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testSummaryCachedUntilWrite() {
+        ForecastSummaryCache cache = mProvider.getSummaryCache();
+        querySummary(mDates[0], mDates[DAYS - 1]).close();
+        long hits = cache.getHitCount();
+        querySummary(mDates[0], mDates[DAYS - 1]).close();
+        assertEquals(hits + 1, cache.getHitCount());
+
+        // The coldest day of the year, by far
+        ContentValues values = createWeatherValues(mDates[10], new Random(7));
+        values.put(WeatherEntry.COLUMN_MIN_TEMP, -90.0);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{values});
+
+        long misses = cache.getMissCount();
+        Cursor cursor = querySummary(mDates[0], mDates[DAYS - 1]);
+        assertEquals(misses + 1, cache.getMissCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(-90.0, cursor.getDouble(1), 0);
+        cursor.close();
+    }
+
+    public void testSummaryBenchmark() {
+        // Warm up both ways.
+        summarizeOnServer();
+        summarizeOnClient();
+
+        long start = System.nanoTime();
+        double clientSum = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            clientSum += summarizeOnClient();
+        }
+        long clientNanos = System.nanoTime() - start;
+
+        mProvider.getSummaryCache().setEnabled(false);
+        start = System.nanoTime();
+        double serverSum = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            serverSum += summarizeOnServer();
+        }
+        long serverNanos = System.nanoTime() - start;
+
+        mProvider.getSummaryCache().setEnabled(true);
+        summarizeOnServer();
+        start = System.nanoTime();
+        double cachedSum = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            cachedSum += summarizeOnServer();
+        }
+        long cachedNanos = System.nanoTime() - start;
+
+        assertEquals(clientSum, serverSum, 1e-6 * Math.abs(clientSum));
+        assertEquals(serverSum, cachedSum, 0);
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d weekly summaries and the year's, over %d days: client %.3f ms, " +
+                        "SQLite %.3f ms, cached %.3f ms",
+                WEEKS, DAYS, clientNanos / 1e6 / ITERATIONS, serverNanos / 1e6 / ITERATIONS,
+                cachedNanos / 1e6 / ITERATIONS));
+    }
+
+    // @return a sum of the summaries, so none of them goes unused
+    private double summarizeOnServer() {
+        double sum = 0;
+        for (int week = 0; week <= WEEKS; week++) {
+            Cursor cursor = week == WEEKS ? querySummary(mDates[0], mDates[DAYS - 1])
+                    : querySummary(mDates[7 * week], mDates[7 * week + 6]);
+            cursor.moveToFirst();
+            sum += cursor.getDouble(1) + cursor.getDouble(2) + cursor.getDouble(3)
+                    + cursor.getDouble(7) + cursor.getDouble(10) + cursor.getInt(11);
+            cursor.close();
+        }
+        return sum;
+    }
+
+    private double summarizeOnClient() {
+        double sum = 0;
+        for (int week = 0; week <= WEEKS; week++) {
+            Object[] row = week == WEEKS ? summarize(mDates[0], mDates[DAYS - 1])
+                    : summarize(mDates[7 * week], mDates[7 * week + 6]);
+            sum += (Double) row[1] + (Double) row[2] + (Double) row[3] + (Double) row[7]
+                    + (Double) row[10] + (Long) row[11];
+        }
+        return sum;
+    }
+
+    private Cursor querySummary(long startDate, long endDate) {
+        return mContext.getContentResolver().query(
+                SummaryEntry.buildSummaryUri(TestUtilities.TEST_LOCATION, startDate, endDate),
+                SUMMARY_COLUMNS, null, null, null);
+    }
+
+    private void assertSummary(long startDate, long endDate) {
+        Object[] expected = summarize(startDate, endDate);
+        Cursor cursor = querySummary(startDate, endDate);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(((Long) expected[0]).intValue(), cursor.getInt(0));
+        for (int i = 1; i < SUMMARY_COLUMNS.length - 1; i++) {
+            assertEquals("Error: " + SUMMARY_COLUMNS[i] + " differs",
+                    (Double) expected[i], cursor.getDouble(i), 1e-9);
+        }
+        assertEquals("Error: the dominant weather id differs",
+                ((Long) expected[11]).intValue(), cursor.getInt(11));
+        cursor.close();
+    }
+
+    /**
+     * @return the summary in the order of {@link #SUMMARY_COLUMNS}, computed from the rows of
+     * the range the way a view would have had to.
+     */
+    private Object[] summarize(long startDate, long endDate) {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithRange(TestUtilities.TEST_LOCATION,
+                        startDate, endDate),
+                SUMMARY_INPUT_COLUMNS, null, null, null);
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+                Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE,
+                -Double.MAX_VALUE};
+        double[] sum = new double[4];
+        Map<Integer, Integer> weatherIdCounts = new HashMap<Integer, Integer>();
+        int days = cursor.getCount();
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < 4; i++) {
+                double value = cursor.getDouble(i);
+                min[i] = Math.min(min[i], value);
+                max[i] = Math.max(max[i], value);
+                sum[i] += value;
+            }
+            int weatherId = cursor.getInt(4);
+            Integer count = weatherIdCounts.get(weatherId);
+            weatherIdCounts.put(weatherId, count == null ? 1 : count + 1);
+        }
+        cursor.close();
+
+        int dominant = -1;
+        int dominantCount = 0;
+        for (Map.Entry<Integer, Integer> entry : weatherIdCounts.entrySet()) {
+            if (entry.getValue() > dominantCount
+                    || (entry.getValue() == dominantCount && entry.getKey() < dominant)) {
+                dominant = entry.getKey();
+                dominantCount = entry.getValue();
+            }
+        }
+        // low, high, humidity and pressure, as the columns of the summary go
+        return new Object[]{(long) days, min[0], max[1], sum[0] / days, sum[1] / days,
+                min[2], max[2], sum[2] / days, min[3], max[3], sum[3] / days, (long) dominant};
+    }
+}
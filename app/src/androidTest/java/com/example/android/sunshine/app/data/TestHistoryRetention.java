@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.ChangeEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/*
+    Compacts a long history and checks that no day went missing on the way into the archive:
+    that the weeks and months add up to the days they replaced, keep within their month, and
+    leave the window alone, and that the months past the policy are dropped.  Then runs a
+    simulated year of daily syncs of a few locations, with the compaction after each and
+    without it; the rows and the database size every month go to the log.
+ */
+public class TestHistoryRetention extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestHistoryRetention.class.getSimpleName();
+
+    private static final long TODAY = 1419033600000L;  // December 20th, 2014
+    private static final int HISTORY_DAYS = 400;
+    private static final int FORECAST_DAYS = 14;
+    private static final int SIMULATED_DAYS = 365;
+    private static final int SIMULATED_LOCATIONS = 3;
+    private static final int REPORT_INTERVAL = 30;
+    // The steps the sync takes after each update
+    private static final int MAX_STEPS = 64;
+
+    private final EpochDays mDays = EpochDays.getDefault();
+    private final Random mRandom = new Random(42);
+    // The values inserted, by location ID and then local day
+    private final Map<Long, Map<Integer, ContentValues>> mInserted =
+            new HashMap<Long, Map<Integer, ContentValues>>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(ChangeEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(ArchiveEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mInserted.clear();
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        values.put(LocationEntry.COLUMN_CITY_NAME, locationSetting);
+        values.put(LocationEntry.COLUMN_COORD_LAT, 64.7488);
+        values.put(LocationEntry.COLUMN_COORD_LONG, -147.353);
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        long locationId = ContentUris.parseId(locationUri);
+        mInserted.put(locationId, new HashMap<Integer, ContentValues>());
+        return locationId;
+    }
+
+    /*
+        Inserts the days of the location from the first, in one bulk insert, as a sync would.
+     */
+    private void insertDays(long locationId, int firstDay, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            int day = firstDay + i;
+            values[i] = TestUtilities.createWeatherValues(locationId, mDays.toMillis(day), -5, 10,
+                    mRandom);
+            mInserted.get(locationId).put(day, values[i]);
+        }
+        assertEquals(count, mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                values));
+    }
+
+    private int compact(RetentionPolicy policy, long now, int maxSteps) {
+        return policy.compact(mContext.getContentResolver(), now, maxSteps);
+    }
+
+    public void testCompactionKeepsEveryDay() {
+        long locationId = insertLocation("retention");
+        int today = mDays.toEpochDay(TODAY);
+        insertDays(locationId, today - HISTORY_DAYS + 1, HISTORY_DAYS);
+
+        // A few steps at a time, as after each sync
+        RetentionPolicy policy = RetentionPolicy.DEFAULT;
+        int runs = 0;
+        while (compact(policy, TODAY, 5) == 5) {
+            runs++;
+        }
+        assertTrue("Error: the step limit wasn't kept to", runs > 1);
+        assertEquals("Error: a second compaction found more to do", 0,
+                compact(policy, TODAY, Integer.MAX_VALUE));
+
+        // The window is as it was, and older days only where their week isn't over yet.
+        int windowStart = today - policy.getWindowDays();
+        int rawDays = 0;
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, null);
+        assertNotNull(cursor);
+        while (cursor.moveToNext()) {
+            int day = mDays.toEpochDay(cursor.getLong(0));
+            assertTrue("Error: a day past the window wasn't rolled up",
+                    day >= windowStart || windowStart - day < 7);
+            rawDays++;
+        }
+        cursor.close();
+        assertTrue(rawDays >= policy.getWindowDays() + 1);
+
+        // Every other day is in exactly one week or month, which sums it up.
+        int archivedDays = 0;
+        cursor = mContext.getContentResolver().query(
+                ArchiveEntry.buildArchiveLocation("retention"), null, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.getCount() > 0);
+        int lastEnd = Integer.MIN_VALUE;
+        boolean seenWeek = false;
+        while (cursor.moveToNext()) {
+            int start = mDays.toEpochDay(getLong(cursor, ArchiveEntry.COLUMN_START_DATE));
+            int end = mDays.toEpochDay(getLong(cursor, ArchiveEntry.COLUMN_END_DATE));
+            assertTrue("Error: archive rows overlap", start > lastEnd);
+            lastEnd = end;
+            assertEquals("Error: a period crosses a month",
+                    EpochDays.getMonthStart(start), EpochDays.getMonthStart(end));
+            if (getLong(cursor, ArchiveEntry.COLUMN_PERIOD) == ArchiveEntry.PERIOD_WEEK) {
+                seenWeek = true;
+                assertEquals("Error: a week crosses a Monday",
+                        EpochDays.getWeekStart(start), EpochDays.getWeekStart(end));
+            } else {
+                assertFalse("Error: a month is newer than a week", seenWeek);
+                assertEquals(EpochDays.getMonthStart(start), start);
+                assertEquals(EpochDays.getNextMonthStart(start) - 1, end);
+            }
+            assertPeriod(cursor, mInserted.get(locationId), start, end);
+            archivedDays += end - start + 1;
+        }
+        cursor.close();
+        assertTrue("Error: nothing was rolled up a week to a row", seenWeek);
+        assertEquals("Error: days went missing", HISTORY_DAYS, archivedDays + rawDays);
+    }
+
+    /*
+        Before Honeycomb the compaction runs on the provider directly; it has to roll up the
+        same weeks and months as through call(), not just delete the days.
+     */
+    public void testLocalCompactionMatchesCall() {
+        int today = mDays.toEpochDay(TODAY);
+        RetentionPolicy policy = RetentionPolicy.DEFAULT;
+
+        long locationId = insertLocation("retention");
+        insertDays(locationId, today - HISTORY_DAYS + 1, HISTORY_DAYS);
+        compact(policy, TODAY, Integer.MAX_VALUE);
+        long[] called = getCounts();
+
+        deleteAllRecords();
+        locationId = insertLocation("retention");
+        insertDays(locationId, today - HISTORY_DAYS + 1, HISTORY_DAYS);
+        assertTrue(policy.compactLocally(TODAY, Integer.MAX_VALUE) > 0);
+        assertEquals(0, policy.compactLocally(TODAY, Integer.MAX_VALUE));
+        long[] local = getCounts();
+
+        assertEquals("Error: the weather rows differ", called[0], local[0]);
+        assertEquals("Error: the archive rows differ", called[1], local[1]);
+    }
+
+    public void testOldMonthsAreDropped() {
+        long locationId = insertLocation("retention");
+        int today = mDays.toEpochDay(TODAY);
+        insertDays(locationId, today - HISTORY_DAYS + 1, HISTORY_DAYS);
+
+        RetentionPolicy policy = new RetentionPolicy(7, 2, 3);
+        compact(policy, TODAY, Integer.MAX_VALUE);
+
+        Cursor cursor = mContext.getContentResolver().query(ArchiveEntry.CONTENT_URI, null,
+                ArchiveEntry.COLUMN_PERIOD + " = ?",
+                new String[]{Integer.toString(ArchiveEntry.PERIOD_MONTH)}, null);
+        assertNotNull(cursor);
+        // The months before the one the weeks begin in, which isn't over yet
+        assertEquals(policy.getMonthlyMonths(), cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Checks the archive row the cursor is on against the days inserted from start to end.
+     */
+    private void assertPeriod(Cursor cursor, Map<Integer, ContentValues> inserted, int start,
+                              int end) {
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double sumMin = 0;
+        double sumMax = 0;
+        double sumHumidity = 0;
+        double sumPressure = 0;
+        for (int day = start; day <= end; day++) {
+            ContentValues values = inserted.get(day);
+            min = Math.min(min, values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP));
+            max = Math.max(max, values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP));
+            sumMin += values.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP);
+            sumMax += values.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP);
+            sumHumidity += values.getAsDouble(WeatherEntry.COLUMN_HUMIDITY);
+            sumPressure += values.getAsDouble(WeatherEntry.COLUMN_PRESSURE);
+        }
+        int days = end - start + 1;
+        assertEquals(days, getLong(cursor, ArchiveEntry.COLUMN_DAYS));
+        assertEquals(min, getDouble(cursor, ArchiveEntry.COLUMN_MIN_TEMP), 1e-9);
+        assertEquals(max, getDouble(cursor, ArchiveEntry.COLUMN_MAX_TEMP), 1e-9);
+        assertEquals(sumMin / days, getDouble(cursor, ArchiveEntry.COLUMN_AVG_MIN_TEMP), 1e-6);
+        assertEquals(sumMax / days, getDouble(cursor, ArchiveEntry.COLUMN_AVG_MAX_TEMP), 1e-6);
+        assertEquals(sumHumidity / days, getDouble(cursor, ArchiveEntry.COLUMN_AVG_HUMIDITY),
+                1e-6);
+        assertEquals(sumPressure / days, getDouble(cursor, ArchiveEntry.COLUMN_AVG_PRESSURE),
+                1e-6);
+    }
+
+    private static long getLong(Cursor cursor, String column) {
+        return cursor.getLong(cursor.getColumnIndex(column));
+    }
+
+    private static double getDouble(Cursor cursor, String column) {
+        return cursor.getDouble(cursor.getColumnIndex(column));
+    }
+
+    public void testSimulatedYear() {
+        long[] without = simulateYear(false);
+        deleteAllRecords();
+        long[] with = simulateYear(true);
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "After a year: %d weather rows and %d KB without retention, %d weather rows, " +
+                        "%d archive rows and %d KB with it",
+                without[0], without[2] / 1024, with[0], with[1], with[2] / 1024));
+        RetentionPolicy policy = RetentionPolicy.DEFAULT;
+        // The window, the week it starts in and the forecast, per location
+        assertTrue(with[0] <= SIMULATED_LOCATIONS
+                * (policy.getWindowDays() + 7 + FORECAST_DAYS));
+        // A week may be split by a month, and the weeks wait for their month to be over.
+        assertTrue(with[1] <= SIMULATED_LOCATIONS
+                * (2 * (policy.getWeeklyWeeks() + 5) + policy.getMonthlyMonths()));
+        assertEquals(SIMULATED_LOCATIONS * (SIMULATED_DAYS + FORECAST_DAYS - 1), without[0]);
+    }
+
+    /*
+        Syncs each location's forecast once a day for a year, compacting after each day's
+        syncs if asked to.  Logs the rows and size of the database every month.
+        @return the weather rows, archive rows and bytes in use at the end.
+     */
+    private long[] simulateYear(boolean compact) {
+        long[] locationIds = new long[SIMULATED_LOCATIONS];
+        for (int i = 0; i < SIMULATED_LOCATIONS; i++) {
+            locationIds[i] = insertLocation("retention" + i);
+        }
+        int firstDay = mDays.toEpochDay(TODAY) - SIMULATED_DAYS;
+        long maxCompactNanos = 0;
+        long[] counts = null;
+        for (int i = 0; i < SIMULATED_DAYS; i++) {
+            int today = firstDay + i;
+            for (long locationId : locationIds) {
+                insertDays(locationId, today, FORECAST_DAYS);
+            }
+            if (compact) {
+                long start = System.nanoTime();
+                compact(RetentionPolicy.DEFAULT, mDays.toMillis(today), MAX_STEPS);
+                maxCompactNanos = Math.max(maxCompactNanos, System.nanoTime() - start);
+            }
+            if ((i + 1) % REPORT_INTERVAL == 0 || i == SIMULATED_DAYS - 1) {
+                counts = getCounts();
+                Log.i(LOG_TAG, String.format(Locale.US,
+                        "%s retention, day %d: %d weather rows, %d archive rows, %d KB in use, " +
+                                "%d KB on disk",
+                        compact ? "With" : "Without", i + 1, counts[0], counts[1],
+                        counts[2] / 1024, counts[3] / 1024));
+            }
+        }
+        if (compact) {
+            Log.i(LOG_TAG, String.format(Locale.US, "Longest compaction: %d us",
+                    maxCompactNanos / 1000));
+        }
+        return counts;
+    }
+
+    /*
+        @return the weather rows, the archive rows, the bytes of the database's pages in use,
+        and the bytes of its files.
+     */
+    private long[] getCounts() {
+        long[] counts = new long[4];
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, null);
+        assertNotNull(cursor);
+        counts[0] = cursor.getCount();
+        cursor.close();
+        cursor = mContext.getContentResolver().query(ArchiveEntry.CONTENT_URI,
+                new String[]{ArchiveEntry._ID}, null, null, null);
+        assertNotNull(cursor);
+        counts[1] = cursor.getCount();
+        cursor.close();
+
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        long pageSize = db.getPageSize();
+        counts[2] = pageSize * (queryLong(db, "PRAGMA page_count")
+                - queryLong(db, "PRAGMA freelist_count"));
+        db.close();
+        String path = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME).getPath();
+        counts[3] = new File(path).length() + new File(path + "-wal").length();
+        return counts;
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/*
+    Checks that inserting a location the provider has already gives back the same row, and
+    that the location ID cache follows every write to the location table, rolled back ones
+    too.  Then times turning a location setting into its ID with 10 to 10,000 locations in the
+    table: the query per location the sync used to run, the query for all of them it ran
+    after that, the upsert with an empty cache, and the cache.  The microseconds per lookup
+    go to the log.
+ */
+public class TestLocationIdCache extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestLocationIdCache.class.getSimpleName();
+
+    private static final int LOOKUPS = 500;
+
+    private LocationIdCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = LocationIdCache.getInstance();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.setEnabled(true);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private long insertLocation(ContentValues values) {
+        Uri uri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    public void testInsertIsUpsert() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        long locationId = insertLocation(values);
+        assertEquals(locationId, insertLocation(values));
+
+        values.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        assertEquals(locationId, insertLocation(values));
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                null, null, null);
+        assertNotNull(cursor);
+        assertEquals("Error: the location was inserted twice", 1, cursor.getCount());
+        TestUtilities.validateCursor("Error: the location wasn't brought up to date", cursor,
+                values);
+        cursor.close();
+    }
+
+    public void testCacheFollowsWrites() {
+        assertEquals(-1, mCache.getLocationId(TestUtilities.TEST_LOCATION));
+
+        long locationId = insertLocation(TestUtilities.createNorthPoleLocationValues());
+        assertEquals(locationId, mCache.getLocationId(TestUtilities.TEST_LOCATION));
+        assertEquals(TestUtilities.TEST_LOCATION, mCache.getLocationSetting(locationId));
+
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, "99706");
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, values, null, null);
+        assertEquals(-1, mCache.getLocationId(TestUtilities.TEST_LOCATION));
+
+        // Found again by the upsert, not inserted
+        values = TestUtilities.createNorthPoleLocationValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, "99706");
+        assertEquals(locationId, insertLocation(values));
+        assertEquals(locationId, mCache.getLocationId("99706"));
+
+        deleteAllRecords();
+        assertEquals(-1, mCache.getLocationId("99706"));
+    }
+
+    public void testRolledBackInsertIsForgotten() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        operations.add(ContentProviderOperation.newDelete(LocationEntry.CONTENT_URI)
+                .withSelection(LocationEntry._ID + " = ?", new String[]{"-1"})
+                .withExpectedCount(1)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                    operations);
+            fail("Error: the batch should have failed");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        assertEquals("Error: the cache kept the ID of a location that was rolled back",
+                -1, mCache.getLocationId(TestUtilities.TEST_LOCATION));
+    }
+
+    public void testLookupBenchmark() {
+        benchmark(10);
+        benchmark(100);
+        benchmark(1000);
+        benchmark(10000);
+    }
+
+    private void benchmark(int locationCount) {
+        deleteAllRecords();
+        Map<String, Long> locationIds = insertLocations(locationCount);
+        Random random = new Random(42);
+        String[] lookups = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            lookups[i] = "benchmark" + random.nextInt(locationCount);
+        }
+
+        // What the sync used to do for each location: a query for the one location
+        long start = System.nanoTime();
+        for (String locationSetting : lookups) {
+            Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                    new String[]{LocationEntry._ID},
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                    new String[]{locationSetting}, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals((long) locationIds.get(locationSetting), cursor.getLong(0));
+            cursor.close();
+        }
+        long queryNanos = System.nanoTime() - start;
+
+        // What storeForecasts used to do: all of them, once per sync
+        start = System.nanoTime();
+        for (String locationSetting : lookups) {
+            Map<String, Long> ids = new HashMap<String, Long>();
+            Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                    new String[]{LocationEntry._ID, LocationEntry.COLUMN_LOCATION_SETTING},
+                    null, null, null);
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+            }
+            cursor.close();
+            assertEquals(locationIds.get(locationSetting), ids.get(locationSetting));
+        }
+        long allNanos = System.nanoTime() - start;
+
+        // The upsert, as the sync sends it for a location the cache doesn't know
+        mCache.setEnabled(false);
+        start = System.nanoTime();
+        for (String locationSetting : lookups) {
+            assertEquals((long) locationIds.get(locationSetting),
+                    insertLocation(createLocationValues(locationSetting)));
+        }
+        long upsertNanos = System.nanoTime() - start;
+        mCache.setEnabled(true);
+
+        // The upserts above went by without it; fill it the way the sync would.
+        for (String locationSetting : lookups) {
+            insertLocation(createLocationValues(locationSetting));
+        }
+        start = System.nanoTime();
+        for (String locationSetting : lookups) {
+            assertEquals((long) locationIds.get(locationSetting),
+                    mCache.getLocationId(locationSetting));
+        }
+        long cacheNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d locations: query %.1f us, query all %.1f us, upsert %.1f us, " +
+                        "cache %.3f us per lookup",
+                locationCount,
+                queryNanos / 1e3 / LOOKUPS,
+                allNanos / 1e3 / LOOKUPS,
+                upsertNanos / 1e3 / LOOKUPS,
+                cacheNanos / 1e3 / LOOKUPS));
+    }
+
+    private Map<String, Long> insertLocations(int count) {
+        Map<String, Long> locationIds = new HashMap<String, Long>(count);
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                String locationSetting = "benchmark" + i;
+                long locationId = db.insert(LocationEntry.TABLE_NAME, null,
+                        createLocationValues(locationSetting));
+                assertTrue(locationId != -1);
+                locationIds.put(locationSetting, locationId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        db.close();
+        return locationIds;
+    }
+
+    private static ContentValues createLocationValues(String locationSetting) {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return values;
+    }
+}
@@ -16,8 +16,12 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
@@ -30,6 +34,10 @@ import android.util.Log;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -512,4 +520,330 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        Writing the same forecast again must leave the rows (and their _IDs) alone and wake
+        nobody up.  Changing a single day must update that row in place and only notify that
+        day's URI.
+     */
+    public void testBulkInsertWritesOnlyChangedRows() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+        long[] ids = getWeatherIds();
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, ids.length);
+
+        // The same values again: accepted, but nothing written and nobody notified.
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+        weatherObserver.waitForNoNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+        assertTrue("Error: unchanged rows were rewritten", Arrays.equals(ids, getWeatherIds()));
+
+        // Now change one day and watch that day and another one.
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        changedValues[5].put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        long changedDate = changedValues[5].getAsLong(WeatherEntry.COLUMN_DATE);
+        long unchangedDate = changedValues[0].getAsLong(WeatherEntry.COLUMN_DATE);
+
+        TestUtilities.TestContentObserver changedDayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, changedDate),
+                false, changedDayObserver);
+        TestUtilities.TestContentObserver unchangedDayObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, unchangedDate),
+                false, unchangedDayObserver);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, changedValues);
+
+        changedDayObserver.waitForNotificationOrFail();
+        unchangedDayObserver.waitForNoNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(changedDayObserver);
+        mContext.getContentResolver().unregisterContentObserver(unchangedDayObserver);
+        assertTrue("Error: updated row got a new _ID", Arrays.equals(ids, getWeatherIds()));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, changedDate),
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(99.5, cursor.getDouble(0));
+        cursor.close();
+    }
+
+    /*
+        An update only sets the columns that changed, each set of them through a statement of
+        its own that's compiled once: days that change the same columns share it.
+     */
+    public void testUpdateSetsOnlyChangedColumns() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        WeatherProvider provider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+        int statements = provider.getUpdateWeatherStatementCount();
+
+        // Three days with a new high, and then two with a new high and low
+        ContentValues[] changedValues = createBulkInsertWeatherValues(locationRowId);
+        for (int i = 0; i < 3; i++) {
+            changedValues[i].put(WeatherEntry.COLUMN_MAX_TEMP, 90.5 + i);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, changedValues);
+        changedValues = createBulkInsertWeatherValues(locationRowId);
+        for (int i = 3; i < 5; i++) {
+            changedValues[i].put(WeatherEntry.COLUMN_MAX_TEMP, 90.5 + i);
+            changedValues[i].put(WeatherEntry.COLUMN_MIN_TEMP, 10.5 + i);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, changedValues);
+        int compiled = provider.getUpdateWeatherStatementCount() - statements;
+        assertTrue("Error: " + compiled + " statements for two sets of columns", compiled <= 2);
+
+        // The first three days got their highs back, and the next two kept theirs
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_MAX_TEMP, WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherEntry.COLUMN_HUMIDITY},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cursor.moveToNext());
+            ContentValues expected = changedValues[i];
+            assertEquals(expected.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                    cursor.getDouble(0), 1e-6);
+            assertEquals(expected.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                    cursor.getDouble(1), 1e-6);
+            assertEquals(expected.getAsDouble(WeatherEntry.COLUMN_HUMIDITY),
+                    cursor.getDouble(2), 1e-6);
+        }
+        cursor.close();
+    }
+
+    private long[] getWeatherIds() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID},
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    /*
+        A range query returns the days from its start to its end, both included, and a limit
+        cuts any weather/[location] query down to its first days, in date order unless the
+        caller sorts otherwise.
+     */
+    public void testRangeAndLimitQueries() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        // Normalized, as the sync stores them, so the range's days line up with the rows.
+        ContentValues[] values = createBulkInsertWeatherValues(locationRowId);
+        long[] dates = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            dates[i] = WeatherContract.normalizeDate(
+                    values[i].getAsLong(WeatherEntry.COLUMN_DATE));
+            values[i].put(WeatherEntry.COLUMN_DATE, dates[i]);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+
+        String[] projection = {WeatherEntry.COLUMN_DATE};
+        Uri rangeUri = WeatherEntry.buildWeatherLocationWithRange(TestUtilities.TEST_LOCATION,
+                dates[2], dates[5]);
+        assertEquals(WeatherEntry.CONTENT_TYPE, mContext.getContentResolver().getType(rangeUri));
+        assertEquals(Arrays.asList(dates[2], dates[3], dates[4], dates[5]),
+                queryDates(rangeUri, projection, null));
+        assertEquals(Arrays.asList(dates[2], dates[3]),
+                queryDates(WeatherEntry.withLimit(rangeUri, 2), projection, null));
+
+        Uri startUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, dates[7]);
+        assertEquals(Arrays.asList(dates[7]),
+                queryDates(WeatherEntry.withLimit(startUri, 1), projection, null));
+        assertEquals(Arrays.asList(dates[9], dates[8]),
+                queryDates(WeatherEntry.withLimit(startUri, 2), projection,
+                        WeatherEntry.COLUMN_DATE + " DESC"));
+        // With the location's columns too, so it goes through the join
+        assertEquals(Arrays.asList(dates[0], dates[1], dates[2]),
+                queryDates(WeatherEntry.withLimit(
+                        WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), 3),
+                        null, null));
+
+        ForecastSnapshot today = ForecastSnapshot.query(mContext.getContentResolver(),
+                TestUtilities.TEST_LOCATION, dates[4], 1);
+        assertEquals(1, today.size());
+        assertEquals(dates[4], today.getDate(0));
+        ForecastSnapshot range = ForecastSnapshot.queryRange(mContext.getContentResolver(),
+                TestUtilities.TEST_LOCATION, dates[8], dates[9] + 7 * EpochDays.DAY_IN_MILLIS);
+        assertEquals(2, range.size());
+        assertEquals(dates[8], range.getDate(0));
+
+        try {
+            queryDates(WeatherEntry.withLimit(startUri, -1), projection, null);
+            fail("Error: a negative limit should have been refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private List<Long> queryDates(Uri uri, String[] projection, String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(uri, projection, null, null,
+                sortOrder);
+        List<Long> dates = new ArrayList<Long>();
+        int dateIndex = cursor.getColumnIndex(WeatherEntry.COLUMN_DATE);
+        while (cursor.moveToNext()) {
+            dates.add(cursor.getLong(dateIndex));
+        }
+        cursor.close();
+        return dates;
+    }
+
+    /*
+        A batch is applied all or nothing: the location and its weather show up together, with
+        the weather picking up the new location's ID, and a batch that fails halfway leaves
+        nothing behind.
+     */
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (ContentValues weatherValues : createBulkInsertWeatherValues(0)) {
+            weatherValues.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(operations.size(), results.length);
+        long locationRowId = ContentUris.parseId(results[0].uri);
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY}, null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals(locationRowId, cursor.getLong(0));
+        }
+        cursor.close();
+
+        // Delete everything, then fail on the last operation: the delete must be rolled back.
+        operations.clear();
+        operations.add(ContentProviderOperation.newDelete(WeatherEntry.CONTENT_URI).build());
+        operations.add(ContentProviderOperation.newDelete(LocationEntry.CONTENT_URI)
+                .withSelection(LocationEntry._ID + " = ?", new String[]{"-1"})
+                .withExpectedCount(1)
+                .build());
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: the batch should have failed");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertEquals("Error: a failed batch left changes behind",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        A sync's batch, a location and then its days, a few locations over: each location's
+        stored days are read once, however many days it has, and each day still gets its own
+        result.
+     */
+    public void testBulkInsertReadsEachLocationOnce() {
+        final int locations = 3;
+        ArrayList<ContentValues> weatherRows = new ArrayList<ContentValues>();
+        for (int i = 0; i < locations; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "bulk" + i);
+            Uri locationUri = mContext.getContentResolver()
+                    .insert(LocationEntry.CONTENT_URI, locationValues);
+            long locationRowId = ContentUris.parseId(locationUri);
+            for (ContentValues weatherValues : createBulkInsertWeatherValues(locationRowId)) {
+                weatherRows.add(weatherValues);
+            }
+        }
+        ContentValues[] values = weatherRows.toArray(new ContentValues[weatherRows.size()]);
+
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        WeatherProvider provider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+
+        // The first time, into an empty table, and then again over the same days
+        for (int pass = 0; pass < 2; pass++) {
+            long lookups = provider.getWeatherLookupCount();
+            int insertCount = mContext.getContentResolver()
+                    .bulkInsert(WeatherEntry.CONTENT_URI, values);
+            assertEquals("Error: the stored days weren't read once per location",
+                    locations, provider.getWeatherLookupCount() - lookups);
+            assertEquals(values.length, insertCount);
+            assertEquals(locations * BULK_INSERT_RECORDS_TO_INSERT, getWeatherIds().length);
+        }
+    }
+
+    // The sync names each day's location rather than its ID, so a location deleted since it
+    // was last looked up is added again instead of leaving the days pointing nowhere.
+    public void testBulkInsertResolvesLocationInTransaction() {
+        ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+        for (int pass = 0; pass < 2; pass++) {
+            ContentValues[] values = createBulkInsertWeatherValues(0);
+            for (ContentValues weatherValues : values) {
+                weatherValues.remove(WeatherEntry.COLUMN_LOC_KEY);
+                weatherValues.putAll(locationValues);
+            }
+            int insertCount = mContext.getContentResolver()
+                    .bulkInsert(WeatherEntry.CONTENT_URI, values);
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+            Cursor location = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                    null, null, null, null);
+            assertNotNull(location);
+            assertEquals("Error: the location wasn't added", 1, location.getCount());
+            assertTrue(location.moveToFirst());
+            TestUtilities.validateCurrentRecord("Error: the location wasn't stored as named",
+                    location, locationValues);
+            long locationRowId = location.getLong(location.getColumnIndex(LocationEntry._ID));
+            location.close();
+
+            Cursor weather = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                    new String[]{WeatherEntry.COLUMN_LOC_KEY}, null, null, null);
+            assertNotNull(weather);
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT, weather.getCount());
+            while (weather.moveToNext()) {
+                assertEquals("Error: a day points at another location",
+                        locationRowId, weather.getLong(0));
+            }
+            weather.close();
+
+            // Deleted before the next sync, as the user removing the location would
+            deleteAllRecordsFromProvider();
+        }
+    }
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Locale;
+
+/*
+    Runs EXPLAIN QUERY PLAN on the provider's hot queries and fails if SQLite would scan a table
+    (or sort in a temporary b-tree) to answer one of them, or would join the location table to
+    answer one that projects weather columns only.  Then times the forecast list's query the
+    old way, joined and selected on the location setting, against the new one, selected on the
+    location's ID, cold (just opened) and warm, on a small database and one seeded with
+    thousands of locations; the results go to the log.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "query_plans.db";
+
+    private static final int SMALL_LOCATION_COUNT = 10;
+    private static final int LARGE_LOCATION_COUNT = 2000;
+    private static final int DAYS_PER_LOCATION = 14;
+    private static final int ITERATIONS = 500;
+    private static final int COLD_ITERATIONS = 20;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    // What the list binds, without the location's columns
+    private static final String[] WEATHER_PROJECTION = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    // The query before location settings were turned into IDs first
+    private static final String LEGACY_SELECTION =
+            LocationEntry.TABLE_NAME + "." + LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext, DATABASE_NAME);
+        mDb = mDbHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    // The location setting of a weather/[location] query, to its ID
+    private static String buildLocationIdQuery() {
+        return "SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME +
+                " WHERE " + WeatherProvider.sLocationSettingSelection;
+    }
+
+    // weather/[location]
+    private static String buildWeatherQuery(String[] projection) {
+        return WeatherProvider.getQueryBuilder(projection, SORT_ORDER).buildQuery(projection,
+                WeatherProvider.sLocationIdSelection, null, null, SORT_ORDER, null);
+    }
+
+    // weather/[location]?date=[date], and the snapshots
+    private static String buildWeatherWithStartDateQuery(String[] projection) {
+        return WeatherProvider.getQueryBuilder(projection, SORT_ORDER).buildQuery(projection,
+                WeatherProvider.sLocationIdWithStartDateSelection, null, null, SORT_ORDER,
+                null);
+    }
+
+    // weather/[location]/[date]
+    private static String buildWeatherAndDayQuery(String[] projection) {
+        return WeatherProvider.getQueryBuilder(projection, null).buildQuery(projection,
+                WeatherProvider.sLocationIdAndDaySelection, null, null, null, null);
+    }
+
+    private static String buildLegacyQuery(String[] projection) {
+        return WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(projection,
+                LEGACY_SELECTION, null, null, SORT_ORDER, null);
+    }
+
+    // The stored days a bulk insert compares against
+    private static String buildLocationIdWithDateRangeQuery() {
+        return "SELECT * FROM " + WeatherEntry.TABLE_NAME +
+                " WHERE " + WeatherProvider.sLocationIdWithDateRangeSelection;
+    }
+
+    // The delete of the days past the retention window, before Honeycomb
+    private static String buildPastDaysDelete() {
+        return "DELETE FROM " + WeatherEntry.TABLE_NAME +
+                " WHERE " + WeatherEntry.COLUMN_DATE + " < ?";
+    }
+
+    // The compaction's look for the oldest day past the window
+    private static String buildOldestDayQuery() {
+        return "SELECT " + WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE +
+                " FROM " + WeatherEntry.TABLE_NAME +
+                " WHERE " + WeatherEntry.COLUMN_DATE + " < ?" +
+                " ORDER BY " + WeatherEntry.COLUMN_DATE + " ASC LIMIT 1";
+    }
+
+    public void testLocationIdQueryPlan() {
+        assertNoScan(buildLocationIdQuery(), "94043");
+    }
+
+    public void testWeatherQueryPlan() {
+        assertNoScan(buildWeatherQuery(WEATHER_PROJECTION), "1");
+        assertNoScan(buildWeatherQuery(ForecastSnapshot.PROJECTION), "1");
+        assertNoScan(buildWeatherQuery(null), "1");
+    }
+
+    public void testWeatherWithStartDateQueryPlan() {
+        assertNoScan(buildWeatherWithStartDateQuery(WEATHER_PROJECTION), "1", "1419033600000");
+        assertNoScan(buildWeatherWithStartDateQuery(ForecastSnapshot.PROJECTION),
+                "1", "1419033600000");
+    }
+
+    public void testWeatherAndDayQueryPlan() {
+        assertNoScan(buildWeatherAndDayQuery(WEATHER_PROJECTION), "1", "1419033600000");
+        assertNoScan(buildWeatherAndDayQuery(null), "1", "1419033600000");
+    }
+
+    public void testJoinOnlyForLocationColumns() {
+        assertFalse("Error: a weather-only projection was joined with the location table",
+                buildWeatherQuery(WEATHER_PROJECTION).contains(LocationEntry.TABLE_NAME + " "));
+        assertTrue(buildWeatherQuery(ForecastSnapshot.PROJECTION).contains("JOIN"));
+        assertTrue(buildWeatherQuery(null).contains("JOIN"));
+        // Sorting by a location column needs it too.
+        assertSame(WeatherProvider.sWeatherByLocationSettingQueryBuilder,
+                WeatherProvider.getQueryBuilder(WEATHER_PROJECTION,
+                        LocationEntry.COLUMN_CITY_NAME + " ASC"));
+    }
+
+    public void testLocationIdWithDateRangeQueryPlan() {
+        assertNoScan(buildLocationIdWithDateRangeQuery(), "1", "1419033600000", "1420243200000");
+    }
+
+    public void testPastDaysDeletePlan() {
+        assertNoScan(buildPastDaysDelete(), "1419033600000");
+    }
+
+    public void testOldestDayQueryPlan() {
+        assertNoScan(buildOldestDayQuery(), "1419033600000");
+    }
+
+    private void assertNoScan(String sql, String... selectionArgs) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        int detailIndex = cursor.getColumnIndex("detail");
+        assertTrue("Error: no query plan for " + sql, cursor.getCount() > 0);
+        StringBuilder plan = new StringBuilder();
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detailIndex)).append('\n');
+        }
+        cursor.close();
+
+        // A SEARCH uses an index to find the rows; a SCAN, with or without an index, goes
+        // through all of them.
+        String detail = plan.toString();
+        assertFalse("Error: table scan in\n" + sql + "\n" + detail, detail.contains("SCAN"));
+        assertFalse("Error: sort without an index in\n" + sql + "\n" + detail,
+                detail.contains("TEMP B-TREE"));
+    }
+
+    public void testForecastListLatency() {
+        benchmark(SMALL_LOCATION_COUNT);
+        mDb.execSQL("DELETE FROM " + WeatherEntry.TABLE_NAME);
+        mDb.execSQL("DELETE FROM " + LocationEntry.TABLE_NAME);
+        benchmark(LARGE_LOCATION_COUNT);
+    }
+
+    private void benchmark(int locationCount) {
+        seed(locationCount);
+
+        String[] settings = new String[ITERATIONS];
+        String[] dates = new String[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            settings[i] = "location" + ((i * 7919) % locationCount);
+            dates[i] = Long.toString(TestUtilities.TEST_DATE + (i % DAYS_PER_LOCATION) * DAY_IN_MILLIS);
+        }
+
+        String legacy = buildLegacyQuery(ForecastSnapshot.PROJECTION);
+        String snapshot = buildWeatherWithStartDateQuery(ForecastSnapshot.PROJECTION);
+        String weather = buildWeatherWithStartDateQuery(WEATHER_PROJECTION);
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d locations, %d rows, cold: join on setting %.3f ms, by ID %.3f ms, " +
+                        "by ID without the join %.3f ms; warm: %.3f ms, %.3f ms, %.3f ms",
+                locationCount, locationCount * DAYS_PER_LOCATION,
+                timeCold(legacy, false, settings, dates),
+                timeCold(snapshot, true, settings, dates),
+                timeCold(weather, true, settings, dates),
+                timeWarm(legacy, false, settings, dates),
+                timeWarm(snapshot, true, settings, dates),
+                timeWarm(weather, true, settings, dates)));
+    }
+
+    /*
+        Each query on a database just opened, with nothing in its page or statement caches, and
+        the location ID looked up as the provider does on a cache miss.
+        @return the average time per query, in milliseconds
+     */
+    private double timeCold(String sql, boolean byId, String[] settings, String[] dates) {
+        long nanos = 0;
+        for (int i = 0; i < COLD_ITERATIONS; i++) {
+            mDbHelper.close();
+            mDb = mDbHelper.getWritableDatabase();
+            long start = System.nanoTime();
+            String key = byId ? lookUpLocationId(settings[i]) : settings[i];
+            assertTrue(runQuery(sql, key, dates[i]) > 0);
+            nanos += System.nanoTime() - start;
+        }
+        return nanos / 1e6 / COLD_ITERATIONS;
+    }
+
+    /*
+        The same query over and over, the location IDs already known as the provider's cache
+        would know them.
+        @return the average time per query, in milliseconds
+     */
+    private double timeWarm(String sql, boolean byId, String[] settings, String[] dates) {
+        String[] keys = new String[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            keys[i] = byId ? lookUpLocationId(settings[i]) : settings[i];
+        }
+        // Warm up the statement cache and the pages.
+        runQuery(sql, keys[0], dates[0]);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertTrue(runQuery(sql, keys[i], dates[i]) > 0);
+        }
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    private String lookUpLocationId(String locationSetting) {
+        Cursor cursor = mDb.rawQuery(buildLocationIdQuery(), new String[]{locationSetting});
+        assertTrue(cursor.moveToFirst());
+        String locationId = Long.toString(cursor.getLong(0));
+        cursor.close();
+        return locationId;
+    }
+
+    private int runQuery(String sql, String key, String date) {
+        Cursor cursor = mDb.rawQuery(sql, new String[]{key, date});
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void seed(int locationCount) {
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < locationCount; i++) {
+                ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+                locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "location" + i);
+                long locationId = mDb.insert(LocationEntry.TABLE_NAME, null, locationValues);
+                assertTrue(locationId != -1);
+
+                for (int day = 0; day < DAYS_PER_LOCATION; day++) {
+                    ContentValues weatherValues = new ContentValues();
+                    weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+                    weatherValues.put(WeatherEntry.COLUMN_DATE,
+                            TestUtilities.TEST_DATE + day * DAY_IN_MILLIS);
+                    weatherValues.put(WeatherEntry.COLUMN_DEGREES, 1.1);
+                    weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 1.2);
+                    weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1.3);
+                    weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75);
+                    weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65);
+                    weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+                    weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+                    weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 321);
+                    mDb.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        // Let the planner see what the data looks like, as it would after a while in the app.
+        mDb.execSQL("ANALYZE");
+    }
+}
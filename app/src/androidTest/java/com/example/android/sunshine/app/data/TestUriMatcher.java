@@ -34,8 +34,22 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION_QUERY);
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_AND_RANGE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithRange(LOCATION_QUERY, TEST_DATE, TEST_DATE + 7 * EpochDays.DAY_IN_MILLIS);
+    // content://com.example.android.sunshine.app/weather/changes", a location called "changes"
+    private static final Uri TEST_WEATHER_WITH_CHANGES_LOCATION_DIR =
+            WeatherContract.WeatherEntry.buildWeatherLocation(WeatherContract.PATH_CHANGES);
+    // content://com.example.android.sunshine.app/changes?since=5"
+    private static final Uri TEST_CHANGES_DIR = WeatherContract.ChangeEntry.buildChangesSinceUri(5);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/sync_log"
+    private static final Uri TEST_SYNC_LOG_DIR = WeatherContract.SyncLogEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/summary/[location]/[start]/[end]"
+    private static final Uri TEST_SUMMARY_ITEM = WeatherContract.SummaryEntry.buildSummaryUri(LOCATION_QUERY, TEST_DATE, TEST_DATE + 7 * EpochDays.DAY_IN_MILLIS);
+    // content://com.example.android.sunshine.app/archive"
+    private static final Uri TEST_ARCHIVE_DIR = WeatherContract.ArchiveEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/archive/[location]"
+    private static final Uri TEST_ARCHIVE_WITH_LOCATION_DIR = WeatherContract.ArchiveEntry.buildArchiveLocation(LOCATION_QUERY);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -51,7 +65,22 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
         assertEquals("Error: The WEATHER WITH LOCATION AND DATE URI was matched incorrectly.",
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The WEATHER WITH LOCATION AND RANGE URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_RANGE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_RANGE);
+        assertEquals("Error: The WEATHER WITH LOCATION URI of \"changes\" was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_WITH_CHANGES_LOCATION_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
+        assertEquals("Error: The CHANGES URI was matched incorrectly.",
+                testMatcher.match(TEST_CHANGES_DIR), WeatherProvider.CHANGES);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The SYNC LOG URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_LOG_DIR), WeatherProvider.SYNC_LOG);
+        assertEquals("Error: The SUMMARY URI was matched incorrectly.",
+                testMatcher.match(TEST_SUMMARY_ITEM), WeatherProvider.SUMMARY);
+        assertEquals("Error: The ARCHIVE URI was matched incorrectly.",
+                testMatcher.match(TEST_ARCHIVE_DIR), WeatherProvider.ARCHIVE);
+        assertEquals("Error: The ARCHIVE WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_ARCHIVE_WITH_LOCATION_DIR),
+                WeatherProvider.ARCHIVE_WITH_LOCATION);
     }
 }
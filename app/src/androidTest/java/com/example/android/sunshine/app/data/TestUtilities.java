@@ -28,6 +28,7 @@ import android.test.AndroidTestCase;
 import com.example.android.sunshine.app.utils.PollingCheck;
 
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 /*
@@ -39,6 +40,9 @@ public class TestUtilities extends AndroidTestCase {
     static final String TEST_LOCATION = "99705";
     static final long TEST_DATE = 1419033600L;  // December 20th, 2014
 
+    // Mostly clear, some clouds, rain, snow and the odd thunderstorm
+    private static final int[] WEATHER_IDS = {800, 800, 801, 802, 500, 501, 600, 211};
+
     static void validateCursor(String error, Cursor valueCursor, ContentValues expectedValues) {
         assertTrue("Empty cursor returned. " + error, valueCursor.moveToFirst());
         validateCurrentRecord(error, valueCursor, expectedValues);
@@ -62,9 +66,16 @@ public class TestUtilities extends AndroidTestCase {
         Students: Use this to create some default weather values for your database tests.
      */
     static ContentValues createWeatherValues(long locationRowId) {
+        return createWeatherValues(locationRowId, TEST_DATE);
+    }
+
+    /*
+        The same default weather values, for another date.
+     */
+    static ContentValues createWeatherValues(long locationRowId, long date) {
         ContentValues weatherValues = new ContentValues();
         weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationRowId);
-        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, TEST_DATE);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
         weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 1.1);
         weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 1.2);
         weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1.3);
@@ -77,6 +88,29 @@ public class TestUtilities extends AndroidTestCase {
         return weatherValues;
     }
 
+    /*
+        A day of made-up but plausible weather for the location and date, drawn from the random
+        generator: the low around the mean, the high a few degrees above it, and the rest
+        anywhere a real day could be.
+     */
+    static ContentValues createWeatherValues(long locationRowId, long date, double meanLow,
+                                             double lowDeviation, Random random) {
+        double low = meanLow + lowDeviation * random.nextGaussian();
+        ContentValues weatherValues = createWeatherValues(locationRowId, date);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, random.nextInt(360));
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 40 + random.nextInt(60));
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                990 + 40 * random.nextDouble());
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                low + 4 + 8 * random.nextDouble());
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                10 * random.nextDouble());
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                WEATHER_IDS[random.nextInt(WEATHER_IDS.length)]);
+        return weatherValues;
+    }
+
     /*
         Students: You can uncomment this helper function once you have finished creating the
         LocationEntry part of the WeatherContract.
@@ -158,6 +192,17 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        public void waitForNoNotificationOrFail() {
+            // Give a notification that shouldn't come the same time a real one gets to arrive.
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mHT.quit();
+            assertFalse("Error: unexpected change notification", mContentChanged);
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
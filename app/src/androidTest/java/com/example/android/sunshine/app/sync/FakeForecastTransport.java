@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    An in-memory ForecastTransport that answers every request with the same canned response,
+    until it's given another, and remembers the headers of each request, how many bodies were
+    read and whether each exchange was closed for reuse.
+ */
+class FakeForecastTransport implements ForecastTransport {
+
+    private volatile int mResponseCode;
+    private volatile Map<String, String> mHeaders;
+    private volatile byte[] mBody;
+
+    final List<Map<String, String>> requestHeaders =
+            Collections.synchronizedList(new ArrayList<Map<String, String>>());
+    final List<Boolean> reusableCloses = Collections.synchronizedList(new ArrayList<Boolean>());
+    final AtomicInteger bodyReads = new AtomicInteger();
+
+    FakeForecastTransport(int responseCode, Map<String, String> headers, byte[] body) {
+        mResponseCode = responseCode;
+        mHeaders = headers;
+        mBody = body;
+    }
+
+    /**
+     * Answers the requests from now on with this response instead.
+     */
+    void setResponse(int responseCode, Map<String, String> headers, byte[] body) {
+        mResponseCode = responseCode;
+        mHeaders = headers;
+        mBody = body;
+    }
+
+    static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    static Map<String, String> headers(String... namesAndValues) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return headers;
+    }
+
+    @Override
+    public Exchange get(String url, Map<String, String> headers) {
+        requestHeaders.add(new HashMap<String, String>(headers));
+        final int responseCode = mResponseCode;
+        final Map<String, String> responseHeaders = mHeaders;
+        final byte[] body = mBody;
+        return new Exchange() {
+            @Override
+            public int getResponseCode() {
+                return responseCode;
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return responseHeaders.get(name);
+            }
+
+            @Override
+            public InputStream getBody() {
+                bodyReads.incrementAndGet();
+                return new ByteArrayInputStream(body);
+            }
+
+            @Override
+            public void close(boolean reusable) {
+                reusableCloses.add(reusable);
+            }
+        };
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+    Forecast payloads for MockForecastServer to answer with, by location query.  Recorded ones
+    are kept on the device, one file per location, in the directory RecordingTransport saves
+    them to; pull them off with adb and push them to another device to replay them there.
+    Where none were recorded, made-up payloads of the recorded shape stand in.
+
+    Any number of locations can be asked for: a query without a payload of its own gets one
+    of the others, the same one every time.  Each payload can also be asked for in variants,
+    so that syncing the same location again brings a forecast that changed.
+ */
+class ForecastFixtures {
+
+    public static final String LOG_TAG = ForecastFixtures.class.getSimpleName();
+
+    static final String DIRECTORY = "forecast_fixtures";
+    private static final String SUFFIX = ".json";
+    private static final int SYNTHETIC_COUNT = 8;
+    private static final int SYNTHETIC_VARIANTS = 4;
+
+    // By location query, in order, so a query maps to the same payload on every run
+    private final Map<String, List<byte[]>> mPayloads = new TreeMap<String, List<byte[]>>();
+    private final List<String> mQueries = new ArrayList<String>();
+
+    static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    /*
+        The recorded fixtures if there are any, made-up ones if not.
+     */
+    static ForecastFixtures load(Context context) throws IOException {
+        ForecastFixtures fixtures = new ForecastFixtures();
+        File[] files = getDirectory(context).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    fixtures.add(Uri.decode(name.substring(0, name.length() - SUFFIX.length())),
+                            readFully(new FileInputStream(file)));
+                }
+            }
+        }
+        if (fixtures.mQueries.isEmpty()) {
+            return synthesize();
+        }
+        Log.i(LOG_TAG, "Replaying " + fixtures.mQueries.size() + " recorded locations");
+        return fixtures;
+    }
+
+    static ForecastFixtures synthesize() throws UnsupportedEncodingException {
+        ForecastFixtures fixtures = new ForecastFixtures();
+        for (int i = 0; i < SYNTHETIC_COUNT; i++) {
+            List<byte[]> variants = new ArrayList<byte[]>(SYNTHETIC_VARIANTS);
+            for (int variant = 0; variant < SYNTHETIC_VARIANTS; variant++) {
+                variants.add(TestForecastParser.createForecastJson(14, i * SYNTHETIC_VARIANTS
+                        + variant).getBytes("UTF-8"));
+            }
+            fixtures.mPayloads.put("synthetic" + i, variants);
+            fixtures.mQueries.add("synthetic" + i);
+        }
+        return fixtures;
+    }
+
+    synchronized void add(String locationQuery, byte[] payload) {
+        if (!mPayloads.containsKey(locationQuery)) {
+            mPayloads.put(locationQuery, new ArrayList<byte[]>());
+            mQueries.add(locationQuery);
+            Collections.sort(mQueries);
+        }
+        mPayloads.get(locationQuery).add(payload);
+    }
+
+    synchronized int size() {
+        return mQueries.size();
+    }
+
+    /*
+        The payload for a location, in the given variant.  A recorded payload has only the
+        variants that were recorded; asking for more goes round them.
+     */
+    synchronized byte[] get(String locationQuery, int variant) {
+        List<byte[]> payloads = mPayloads.get(locationQuery);
+        if (payloads == null) {
+            String query = mQueries.get((locationQuery.hashCode() & 0x7fffffff) % mQueries.size());
+            payloads = mPayloads.get(query);
+        }
+        return payloads.get(variant % payloads.size());
+    }
+
+    /*
+        Writes the first variant of each payload where load() finds it.
+     */
+    synchronized void save(Context context) throws IOException {
+        File directory = getDirectory(context);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        for (Map.Entry<String, List<byte[]>> entry : mPayloads.entrySet()) {
+            OutputStream out = new FileOutputStream(
+                    new File(directory, Uri.encode(entry.getKey()) + SUFFIX));
+            try {
+                out.write(entry.getValue().get(0));
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    A tiny HTTP/1.1 server on the loopback interface that answers every forecast request with
+    a recorded-shape 14 day payload.  Connections are kept alive, so it also tells us how many
+    the client actually opened for the requests it made.  It can also be told to fail the next
+    requests, with an HTTP error or by hanging up, to see how the sync copes.  Clients that
+    accept gzip get the payload gzipped.
+
+    For replaying at scale, it can answer from ForecastFixtures instead, each request for a
+    location with the next variant of its payload, after a set latency, at a set bandwidth,
+    and fail a set share of the requests at random.
+ */
+class MockForecastServer {
+
+    public static final String LOG_TAG = MockForecastServer.class.getSimpleName();
+
+    // Fail by closing the connection instead of answering
+    static final String DISCONNECT = "disconnect";
+    // Fail every request until heal()
+    static final int ALWAYS = -1;
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final byte[] mForecast;
+    private final byte[] mGzippedForecast;
+
+    private final Object mFaultLock = new Object();
+    private int mFailuresLeft;
+    private String mFailureStatus;
+    private long mRetryAfterSeconds = -1;
+    private double mErrorRate;
+    private String mErrorStatus;
+    private Random mErrorRandom;
+
+    private volatile ForecastFixtures mFixtures;
+    private volatile long mLatencyMillis;
+    private volatile long mBytesPerSecond;
+    // Requests so far by location, for the variants; guarded by itself
+    private final Map<String, Integer> mLocationRequests = new HashMap<String, Integer>();
+    // Each payload gzipped, once; guarded by itself
+    private final Map<byte[], byte[]> mGzipped = new IdentityHashMap<byte[], byte[]>();
+
+    MockForecastServer() throws IOException {
+        mForecast = TestForecastParser.createForecastJson(14).getBytes("UTF-8");
+        mGzippedForecast = FakeForecastTransport.gzip(mForecast);
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mConnectionCount.incrementAndGet();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // Closed by shutdown()
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the base URL to hand to {@link ForecastFetcher} instead of OpenWeatherMap's.
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    void resetCounts() {
+        mConnectionCount.set(0);
+        mRequestCount.set(0);
+    }
+
+    /**
+     * Fails the next requests.
+     *
+     * @param count how many, or {@link #ALWAYS}.
+     * @param status the status line to answer with, e.g. "503 Service Unavailable", or
+     *               {@link #DISCONNECT}.
+     */
+    void failNext(int count, String status) {
+        synchronized (mFaultLock) {
+            mFailuresLeft = count;
+            mFailureStatus = status;
+        }
+    }
+
+    /**
+     * Sends a Retry-After header of so many seconds with the failures; -1 for none.
+     */
+    void setRetryAfter(long seconds) {
+        synchronized (mFaultLock) {
+            mRetryAfterSeconds = seconds;
+        }
+    }
+
+    void heal() {
+        synchronized (mFaultLock) {
+            mFailuresLeft = 0;
+            mFailureStatus = null;
+            mRetryAfterSeconds = -1;
+            mErrorRate = 0;
+        }
+    }
+
+    /**
+     * Fails this share of the requests, picked by a random generator with the given seed.
+     */
+    void setErrorRate(double rate, String status, long seed) {
+        synchronized (mFaultLock) {
+            mErrorRate = rate;
+            mErrorStatus = status;
+            mErrorRandom = new Random(seed);
+        }
+    }
+
+    /**
+     * Answers from the fixtures instead of the one payload; null to go back to it.
+     */
+    void setFixtures(ForecastFixtures fixtures) {
+        mFixtures = fixtures;
+    }
+
+    /**
+     * Waits this long before answering each request.
+     */
+    void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * Sends bodies no faster than this; 0 for as fast as it can.
+     */
+    void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    // The status to fail the current request with, or null to answer it.
+    private String takeFailure() {
+        synchronized (mFaultLock) {
+            if (mFailuresLeft == 0) {
+                if (mErrorRate > 0 && mErrorRandom.nextDouble() < mErrorRate) {
+                    return mErrorStatus;
+                }
+                return null;
+            }
+            if (mFailuresLeft > 0) {
+                mFailuresLeft--;
+            }
+            return mFailureStatus;
+        }
+    }
+
+    void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error closing server socket", e);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            // One request after the other for as long as the client keeps the connection.
+            while ((requestLine = in.readLine()) != null) {
+                String header;
+                boolean gzip = false;
+                while ((header = in.readLine()) != null && header.length() > 0) {
+                    // GETs only; nothing but the encoding in the headers we care about.
+                    String lowerCase = header.toLowerCase(Locale.US);
+                    if (lowerCase.startsWith("accept-encoding:") && lowerCase.contains("gzip")) {
+                        gzip = true;
+                    }
+                }
+                mRequestCount.incrementAndGet();
+                if (mLatencyMillis > 0) {
+                    sleep(mLatencyMillis);
+                }
+
+                String failure = takeFailure();
+                if (DISCONNECT.equals(failure)) {
+                    return;
+                } else if (failure != null) {
+                    long retryAfterSeconds;
+                    synchronized (mFaultLock) {
+                        retryAfterSeconds = mRetryAfterSeconds;
+                    }
+                    writeResponse(out, failure,
+                            retryAfterSeconds < 0 ? null : "Retry-After: " + retryAfterSeconds,
+                            new byte[0]);
+                    continue;
+                }
+
+                String[] parts = requestLine.split(" ");
+                String locationQuery = parts.length > 1
+                        ? Uri.parse(parts[1]).getQueryParameter("q") : null;
+                if (locationQuery == null) {
+                    writeResponse(out, "404 Not Found", null, new byte[0]);
+                } else {
+                    byte[] payload = getPayload(locationQuery);
+                    if (gzip) {
+                        writeResponse(out, "200 OK", "Content-Encoding: gzip", gzip(payload));
+                    } else {
+                        writeResponse(out, "200 OK", null, payload);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // The client went away.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing socket", e);
+            }
+        }
+    }
+
+    private byte[] getPayload(String locationQuery) {
+        ForecastFixtures fixtures = mFixtures;
+        if (fixtures == null) {
+            return mForecast;
+        }
+        int variant;
+        synchronized (mLocationRequests) {
+            Integer requests = mLocationRequests.get(locationQuery);
+            variant = requests == null ? 0 : requests;
+            mLocationRequests.put(locationQuery, variant + 1);
+        }
+        return fixtures.get(locationQuery, variant);
+    }
+
+    private byte[] gzip(byte[] payload) throws IOException {
+        if (payload == mForecast) {
+            return mGzippedForecast;
+        }
+        synchronized (mGzipped) {
+            byte[] gzipped = mGzipped.get(payload);
+            if (gzipped == null) {
+                gzipped = FakeForecastTransport.gzip(payload);
+                mGzipped.put(payload, gzipped);
+            }
+            return gzipped;
+        }
+    }
+
+    private void writeResponse(OutputStream out, String status, String extraHeader,
+                               byte[] body) throws IOException {
+        String headers = "HTTP/1.1 " + status + "\r\n"
+                + (extraHeader != null ? extraHeader + "\r\n" : "")
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n";
+        out.write(headers.getBytes("US-ASCII"));
+        long bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond <= 0) {
+            out.write(body);
+        } else {
+            // A chunk at a time, each when the bandwidth allows it
+            long start = System.nanoTime();
+            int chunk = (int) Math.max(1, Math.min(1024, bytesPerSecond / 10));
+            for (int offset = 0; offset < body.length; offset += chunk) {
+                int length = Math.min(chunk, body.length - offset);
+                out.write(body, offset, length);
+                out.flush();
+                long dueNanos = (offset + length) * 1000000000L / bytesPerSecond;
+                long aheadMillis = (dueNanos - (System.nanoTime() - start)) / 1000000;
+                if (aheadMillis > 0) {
+                    sleep(aheadMillis);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // Shutting down
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    A ForecastTransport that passes requests on to another one, a real server's, and keeps a
+    copy of every forecast that comes back whole in ForecastFixtures.  It asks for the body
+    uncompressed, so the fixtures hold the JSON as it is.
+ */
+class RecordingTransport implements ForecastTransport {
+
+    private final ForecastTransport mTransport;
+    private final ForecastFixtures mFixtures;
+
+    RecordingTransport(ForecastTransport transport, ForecastFixtures fixtures) {
+        mTransport = transport;
+        mFixtures = fixtures;
+    }
+
+    @Override
+    public Exchange get(String url, Map<String, String> headers) throws IOException {
+        Map<String, String> identityHeaders = new HashMap<String, String>(headers);
+        identityHeaders.remove("Accept-Encoding");
+        final String locationQuery = Uri.parse(url).getQueryParameter("q");
+        final Exchange exchange = mTransport.get(url, identityHeaders);
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        return new Exchange() {
+            @Override
+            public int getResponseCode() throws IOException {
+                return exchange.getResponseCode();
+            }
+
+            @Override
+            public String getHeader(String name) {
+                return exchange.getHeader(name);
+            }
+
+            @Override
+            public InputStream getBody() throws IOException {
+                return new FilterInputStream(exchange.getBody()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = super.read();
+                        if (b != -1) {
+                            copy.write(b);
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int length) throws IOException {
+                        int read = super.read(buffer, offset, length);
+                        if (read > 0) {
+                            copy.write(buffer, offset, read);
+                        }
+                        return read;
+                    }
+                };
+            }
+
+            @Override
+            public void close(boolean reusable) {
+                try {
+                    // Read to the end means whole.
+                    if (reusable && locationQuery != null && copy.size() > 0
+                            && exchange.getResponseCode() == 200) {
+                        mFixtures.add(locationQuery, copy.toByteArray());
+                    }
+                } catch (IOException e) {
+                    // Not worth keeping then
+                }
+                exchange.close(reusable);
+            }
+        };
+    }
+}
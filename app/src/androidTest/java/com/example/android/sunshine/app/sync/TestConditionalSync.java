@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Syncs one location through an in-memory transport, to check that the validators the
+    server sent with the stored forecast go back with the next request, that a 304 leaves
+    the database alone without a body being read, and that a 200 brings the validators up to
+    date.  Then, for a server that sends no validators, that the very same forecast again is
+    counted as skipped and neither written nor fanned out, while a changed one is.
+ */
+public class TestConditionalSync extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestConditionalSync.class.getSimpleName();
+
+    private static final String LOCATION = "conditional";
+    private static final List<String> LOCATIONS = Collections.singletonList(LOCATION);
+
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Sat, 12 Dec 2015 08:00:00 GMT";
+    private static final String NEW_ETAG = "\"v2\"";
+    private static final String NEW_LAST_MODIFIED = "Sun, 13 Dec 2015 08:00:00 GMT";
+
+    // Not a humidity the server would send, so a row still holding it wasn't written
+    private static final double UNTOUCHED_HUMIDITY = -1;
+
+    private HandlerThread mThread;
+    private PostSyncDispatcher mDispatcher;
+    private SyncStateStore mSyncState;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread(LOG_TAG);
+        mThread.start();
+        mDispatcher = new PostSyncDispatcher(mContext, mThread.getLooper(),
+                PostSyncDispatcher.DEBOUNCE_MILLIS, PostSyncDispatcher.MAX_DELAY_MILLIS);
+        mSyncState = new SyncStateStore(mContext);
+        new CircuitBreaker(mSyncState).reset();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mSyncState.clearValidators(LOCATION);
+        mSyncState.setForecastHash(LOCATION, null);
+    }
+
+    private SunshineSyncAdapter createSyncAdapter(ForecastTransport transport) {
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setForecastFetcher(
+                new ForecastFetcher(ForecastFetcher.FORECAST_BASE_URL, transport));
+        // Counts the fan-outs, without widgets or notifications for a made-up location
+        syncAdapter.setPostSyncDispatcher(mDispatcher);
+        return syncAdapter;
+    }
+
+    private static byte[] createForecast(int variant) throws Exception {
+        return TestForecastParser.createForecastJson(14, variant).getBytes("UTF-8");
+    }
+
+    private static Map<String, String> validators(String eTag, String lastModified) {
+        return FakeForecastTransport.headers("ETag", eTag, "Last-Modified", lastModified);
+    }
+
+    /*
+        Marks the stored days, so that a sync which writes them shows.
+     */
+    private void markStoredDays() {
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_HUMIDITY, UNTOUCHED_HUMIDITY);
+        assertEquals(14, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                null, null));
+    }
+
+    /*
+        @return how many of the location's days still hold the mark.
+     */
+    private int countMarkedDays() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(LOCATION),
+                new String[]{WeatherEntry.COLUMN_HUMIDITY}, null, null, null);
+        assertNotNull(cursor);
+        int count = 0;
+        while (cursor.moveToNext()) {
+            if (cursor.getDouble(0) == UNTOUCHED_HUMIDITY) {
+                count++;
+            }
+        }
+        cursor.close();
+        return count;
+    }
+
+    public void testStoredValidatorsAreSentBack() throws Exception {
+        FakeForecastTransport transport = new FakeForecastTransport(HttpURLConnection.HTTP_OK,
+                validators(ETAG, LAST_MODIFIED), createForecast(0));
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(transport);
+
+        assertEquals(14, syncAdapter.syncLocations(LOCATIONS));
+        // Nothing stored yet, so nothing to validate
+        assertNull(transport.requestHeaders.get(0).get("If-None-Match"));
+        assertNull(transport.requestHeaders.get(0).get("If-Modified-Since"));
+        assertEquals(ETAG, mSyncState.getETag(LOCATION));
+        assertEquals(LAST_MODIFIED, mSyncState.getLastModified(LOCATION));
+
+        syncAdapter.syncLocations(LOCATIONS);
+        assertEquals(ETAG, transport.requestHeaders.get(1).get("If-None-Match"));
+        assertEquals(LAST_MODIFIED, transport.requestHeaders.get(1).get("If-Modified-Since"));
+    }
+
+    public void testNotModifiedSkipsParseAndWrite() throws Exception {
+        FakeForecastTransport transport = new FakeForecastTransport(HttpURLConnection.HTTP_OK,
+                validators(ETAG, LAST_MODIFIED), createForecast(0));
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(transport);
+        assertEquals(14, syncAdapter.syncLocations(LOCATIONS));
+        markStoredDays();
+        int bodyReads = transport.bodyReads.get();
+        long fanOuts = mDispatcher.getRequestCount();
+
+        // A body a parser would choke on, so reading it would fail the sync
+        transport.setResponse(HttpURLConnection.HTTP_NOT_MODIFIED,
+                FakeForecastTransport.headers(), "not a forecast".getBytes("UTF-8"));
+        assertEquals(0, syncAdapter.syncLocations(LOCATIONS));
+
+        assertEquals(bodyReads, transport.bodyReads.get());
+        assertEquals(14, countMarkedDays());
+        assertEquals(fanOuts, mDispatcher.getRequestCount());
+        // Still the ones of the forecast we hold
+        assertEquals(ETAG, mSyncState.getETag(LOCATION));
+        assertEquals(LAST_MODIFIED, mSyncState.getLastModified(LOCATION));
+    }
+
+    public void testOkUpdatesValidators() throws Exception {
+        FakeForecastTransport transport = new FakeForecastTransport(HttpURLConnection.HTTP_OK,
+                validators(ETAG, LAST_MODIFIED), createForecast(0));
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(transport);
+        assertEquals(14, syncAdapter.syncLocations(LOCATIONS));
+
+        transport.setResponse(HttpURLConnection.HTTP_OK,
+                validators(NEW_ETAG, NEW_LAST_MODIFIED), createForecast(1));
+        assertEquals(14, syncAdapter.syncLocations(LOCATIONS));
+        assertEquals(NEW_ETAG, mSyncState.getETag(LOCATION));
+        assertEquals(NEW_LAST_MODIFIED, mSyncState.getLastModified(LOCATION));
+
+        syncAdapter.syncLocations(LOCATIONS);
+        assertEquals(NEW_ETAG, transport.requestHeaders.get(2).get("If-None-Match"));
+        assertEquals(NEW_LAST_MODIFIED, transport.requestHeaders.get(2).get("If-Modified-Since"));
+    }
+
+    public void testIdenticalPayloadIsSkipped() throws Exception {
+        FakeForecastTransport transport = new FakeForecastTransport(HttpURLConnection.HTTP_OK,
+                FakeForecastTransport.headers(), createForecast(0));
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(transport);
+        assertEquals(14, syncAdapter.syncLocations(LOCATIONS));
+        markStoredDays();
+        long skipped = SunshineSyncAdapter.getSkippedSyncCount(mContext);
+        long fanOuts = mDispatcher.getRequestCount();
+
+        assertEquals(0, syncAdapter.syncLocations(LOCATIONS));
+
+        // Read and parsed, since nothing told the server what we hold, but not stored
+        assertEquals(2, transport.bodyReads.get());
+        assertEquals(14, countMarkedDays());
+        assertEquals(fanOuts, mDispatcher.getRequestCount());
+        assertEquals(skipped + 1, SunshineSyncAdapter.getSkippedSyncCount(mContext));
+    }
+
+    public void testChangedPayloadIsWritten() throws Exception {
+        FakeForecastTransport transport = new FakeForecastTransport(HttpURLConnection.HTTP_OK,
+                FakeForecastTransport.headers(), createForecast(0));
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(transport);
+        assertEquals(14, syncAdapter.syncLocations(LOCATIONS));
+        markStoredDays();
+        long skipped = SunshineSyncAdapter.getSkippedSyncCount(mContext);
+        long fanOuts = mDispatcher.getRequestCount();
+
+        transport.setResponse(HttpURLConnection.HTTP_OK, FakeForecastTransport.headers(),
+                createForecast(1));
+        assertEquals(14, syncAdapter.syncLocations(LOCATIONS));
+
+        assertEquals(0, countMarkedDays());
+        assertEquals(fanOuts + 1, mDispatcher.getRequestCount());
+        assertEquals(skipped, SunshineSyncAdapter.getSkippedSyncCount(mContext));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Checks that the streaming forecast parser reads the same days as the org.json one, and
+    compares the two on recorded-shape payloads.  The benchmark results go to the log.
+ */
+public class TestForecastParser extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastParser.class.getSimpleName();
+
+    // A day as recorded from the daily forecast API; the benchmark repeats it with a few
+    // values nudged so the payload isn't all the same string.
+    private static final String RECORDED_DAY =
+            "{\"dt\":%d,\"temp\":{\"day\":12.56,\"min\":%.2f,\"max\":%.2f,\"night\":7.16," +
+                    "\"eve\":10.71,\"morn\":12.56},\"pressure\":%.2f,\"humidity\":%d," +
+                    "\"weather\":[{\"id\":%d,\"main\":\"Rain\",\"description\":\"light rain\"," +
+                    "\"icon\":\"10d\"}],\"speed\":%.2f,\"deg\":%d,\"clouds\":92,\"rain\":1.83}";
+
+    static String createForecastJson(int days) {
+        return createForecastJson(days, 0);
+    }
+
+    /*
+        A payload whose highs and lows are moved by half a degree per variant, so that each
+        variant is a forecast of its own.
+     */
+    static String createForecastJson(int days, int variant) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0125,\"cnt\":").append(days)
+                .append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) json.append(',');
+            json.append(String.format(Locale.US, RECORDED_DAY,
+                    1449864000L + i * 86400L,
+                    7.16 + (i % 5) + variant * 0.5,
+                    12.56 + (i % 7) + variant * 0.5,
+                    1001.2 + (i % 11),
+                    80 + (i % 20),
+                    500 + (i % 3),
+                    4.67 + (i % 4),
+                    (192 + i * 13) % 360));
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    public void testStreamingMatchesLegacy() throws Throwable {
+        String json = createForecastJson(14);
+
+        ForecastParser.Forecast streamed = new ForecastParser.Forecast();
+        ForecastParser.parse(new StringReader(json), streamed);
+
+        ForecastParser.Forecast legacy = new ForecastParser.Forecast();
+        ForecastParser.parseLegacy(json, legacy);
+
+        assertEquals(200, streamed.getMessageCode());
+        assertEquals(legacy.getCityName(), streamed.getCityName());
+        assertEquals(legacy.getCityLatitude(), streamed.getCityLatitude());
+        assertEquals(legacy.getCityLongitude(), streamed.getCityLongitude());
+
+        List<ForecastParser.Day> streamedDays = streamed.getDays();
+        List<ForecastParser.Day> legacyDays = legacy.getDays();
+        assertEquals(14, streamedDays.size());
+        assertEquals(legacyDays.size(), streamedDays.size());
+        for (int i = 0; i < legacyDays.size(); i++) {
+            ForecastParser.Day expected = legacyDays.get(i);
+            ForecastParser.Day actual = streamedDays.get(i);
+            assertEquals("Error: pressure for day " + i, expected.pressure, actual.pressure);
+            assertEquals("Error: humidity for day " + i, expected.humidity, actual.humidity);
+            assertEquals("Error: wind for day " + i, expected.windSpeed, actual.windSpeed);
+            assertEquals("Error: degrees for day " + i, expected.windDirection, actual.windDirection);
+            assertEquals("Error: high for day " + i, expected.high, actual.high);
+            assertEquals("Error: low for day " + i, expected.low, actual.low);
+            assertEquals("Error: description for day " + i, expected.description, actual.description);
+            assertEquals("Error: weather id for day " + i, expected.weatherId, actual.weatherId);
+        }
+    }
+
+    public void testErrorPayload() throws Throwable {
+        String json = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+
+        ForecastParser.Forecast forecast = new ForecastParser.Forecast();
+        ForecastParser.parse(new StringReader(json), forecast);
+
+        assertEquals(404, forecast.getMessageCode());
+        assertFalse(forecast.hasCity());
+        assertTrue(forecast.getDays().isEmpty());
+    }
+
+    public void testMissingWeatherId() throws Throwable {
+        String json = createForecastJson(2).replaceFirst("\\[\\{\"id\":\\d+,", "[{");
+
+        try {
+            ForecastParser.parse(new StringReader(json), new ForecastParser.Forecast());
+            fail("Error: a day without a weather id was read");
+        } catch (JSONException e) {
+            // What we wanted
+        }
+        try {
+            ForecastParser.parseLegacy(json, new ForecastParser.Forecast());
+            fail("Error: a day without a weather id was read the old way");
+        } catch (JSONException e) {
+            // What we wanted
+        }
+    }
+
+    public void testParserBenchmark() throws Throwable {
+        benchmark(14, 200);
+        // Roughly the size of a 16 day hourly payload.
+        benchmark(16 * 24, 20);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void benchmark(int days, int iterations) throws Throwable {
+        byte[] payload = createForecastJson(days).getBytes("UTF-8");
+
+        // Warm up both paths before measuring anything.
+        runLegacy(payload);
+        runStreaming(payload);
+
+        Debug.startAllocCounting();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            runLegacy(payload);
+        }
+        long legacyNanos = System.nanoTime() - start;
+        int legacyAllocCount = Debug.getThreadAllocCount();
+        int legacyAllocSize = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            runStreaming(payload);
+        }
+        long streamingNanos = System.nanoTime() - start;
+        int streamingAllocCount = Debug.getThreadAllocCount();
+        int streamingAllocSize = Debug.getThreadAllocSize();
+
+        Debug.stopAllocCounting();
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d days, %d bytes: legacy %.3f ms/parse (%d allocs, %d bytes), " +
+                        "streaming %.3f ms/parse (%d allocs, %d bytes)",
+                days, payload.length,
+                legacyNanos / 1e6 / iterations,
+                legacyAllocCount / iterations, legacyAllocSize / iterations,
+                streamingNanos / 1e6 / iterations,
+                streamingAllocCount / iterations, streamingAllocSize / iterations));
+    }
+
+    // The old pipeline: read the whole response into a buffer, then build the JSON tree.
+    private static void runLegacy(byte[] payload) throws Throwable {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(payload)));
+        StringBuffer buffer = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line + "\n");
+        }
+        ForecastParser.Forecast forecast = new ForecastParser.Forecast();
+        ForecastParser.parseLegacy(buffer.toString(), forecast);
+        reader.close();
+    }
+
+    private static void runStreaming(byte[] payload) throws Throwable {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(payload)));
+        ForecastParser.Forecast forecast = new ForecastParser.Forecast();
+        ForecastParser.parse(reader, forecast);
+        reader.close();
+    }
+}
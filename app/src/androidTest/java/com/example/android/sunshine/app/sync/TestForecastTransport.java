@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Locale;
+
+/*
+    Fetches through an in-memory transport to check that gzipped responses are decompressed,
+    that the charset the server names is the one used, and what the sync reports about the
+    bytes it read; then through the real one against local servers, to check that a gzipped
+    response leaves the connection for the next request and that a server which stops
+    answering can't hold a fetch past its time.
+ */
+public class TestForecastTransport extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastTransport.class.getSimpleName();
+
+    private static final String CITY_NAME = "Zürich";
+    private static final String JSON_TYPE = "application/json";
+
+    private static String createForecastJson() {
+        return TestForecastParser.createForecastJson(14).replace("Mountain View", CITY_NAME);
+    }
+
+    public void testGzipIsDecompressed() throws Exception {
+        byte[] json = createForecastJson().getBytes("UTF-8");
+        byte[] gzipped = FakeForecastTransport.gzip(json);
+        FakeForecastTransport transport = new FakeForecastTransport(200,
+                FakeForecastTransport.headers("Content-Encoding", "gzip",
+                        "Content-Type", JSON_TYPE + "; charset=utf-8"),
+                gzipped);
+        TransferStats stats = new TransferStats();
+
+        ForecastFetcher.Response response = new ForecastFetcher(
+                ForecastFetcher.FORECAST_BASE_URL, transport).fetch("94043", null, null, stats);
+
+        assertEquals(14, response.forecast.getDays().size());
+        assertEquals(CITY_NAME, response.forecast.getCityName());
+        assertEquals("gzip", transport.requestHeaders.get(0).get("Accept-Encoding"));
+        assertEquals(Arrays.asList(true), transport.reusableCloses);
+        assertEquals(1, stats.getResponseCount());
+        assertEquals(gzipped.length, stats.getWireBytes());
+        assertEquals(json.length, stats.getBodyBytes());
+        assertTrue(stats.getWireBytes() < stats.getBodyBytes());
+    }
+
+    public void testCharsetIsHonored() throws Exception {
+        String json = createForecastJson();
+        TransferStats stats = new TransferStats();
+
+        FakeForecastTransport latin1 = new FakeForecastTransport(200,
+                FakeForecastTransport.headers("Content-Type", JSON_TYPE + "; charset=ISO-8859-1"),
+                json.getBytes("ISO-8859-1"));
+        assertEquals(CITY_NAME, new ForecastFetcher(ForecastFetcher.FORECAST_BASE_URL, latin1)
+                .fetch("94043", null, null, stats).forecast.getCityName());
+
+        // JSON is UTF-8 unless the server says otherwise, whatever the platform default.
+        FakeForecastTransport unnamed = new FakeForecastTransport(200,
+                FakeForecastTransport.headers("Content-Type", JSON_TYPE),
+                json.getBytes("UTF-8"));
+        assertEquals(CITY_NAME, new ForecastFetcher(ForecastFetcher.FORECAST_BASE_URL, unnamed)
+                .fetch("94043", null, null, stats).forecast.getCityName());
+
+        assertEquals("UTF-8", ForecastFetcher.getCharset("text/json; charset=bogus").name());
+        assertEquals("ISO-8859-1",
+                ForecastFetcher.getCharset("text/json;Charset=\"iso-8859-1\"").name());
+    }
+
+    public void testSyncReportsTransfer() throws Exception {
+        byte[] gzipped = FakeForecastTransport.gzip(createForecastJson().getBytes("UTF-8"));
+        FakeForecastTransport transport = new FakeForecastTransport(200,
+                FakeForecastTransport.headers("Content-Encoding", "gzip"), gzipped);
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setForecastFetcher(
+                new ForecastFetcher(ForecastFetcher.FORECAST_BASE_URL, transport));
+        try {
+            deleteAllRecords();
+            assertEquals(3 * 14, syncAdapter.syncLocations(Arrays.asList("a", "b", "c")));
+
+            TransferStats stats = syncAdapter.getTransferStats();
+            assertEquals(3, stats.getResponseCount());
+            assertEquals(3 * gzipped.length, stats.getWireBytes());
+            assertTrue(stats.getMaxTimeToLastByteNanos() >= stats.getMeanTimeToLastByteNanos());
+            Log.i(LOG_TAG, "In-memory sync: " + stats);
+        } finally {
+            deleteAllRecords();
+        }
+    }
+
+    public void testGzippedConnectionIsReused() throws Exception {
+        MockForecastServer server = new MockForecastServer();
+        try {
+            ForecastFetcher fetcher = new ForecastFetcher(server.getBaseUrl());
+            TransferStats stats = new TransferStats();
+            for (int i = 0; i < 5; i++) {
+                assertEquals(14, fetcher.fetch("reuse" + i, null, null, stats)
+                        .forecast.getDays().size());
+            }
+            assertEquals(5, server.getRequestCount());
+            assertEquals(1, server.getConnectionCount());
+            assertTrue(stats.getWireBytes() < stats.getBodyBytes());
+            Log.i(LOG_TAG, String.format(Locale.US, "Local server: %s, %.0f%% of the payload",
+                    stats, 100.0 * stats.getWireBytes() / stats.getBodyBytes()));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testStalledServerTimesOut() throws Exception {
+        // Takes the connection, but never answers.
+        ServerSocket stalled = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            ForecastFetcher fetcher = new ForecastFetcher(
+                    "http://127.0.0.1:" + stalled.getLocalPort() + "/?",
+                    new HttpTransport(500, 500));
+            long start = System.nanoTime();
+            try {
+                fetcher.fetch("94043", null, null, new TransferStats());
+                fail("Error: a server that never answered sent a forecast");
+            } catch (IOException e) {
+                // What we wanted
+            }
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            assertTrue("Error: gave up after " + elapsedMillis + " ms", elapsedMillis < 5000);
+        } finally {
+            stalled.close();
+        }
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
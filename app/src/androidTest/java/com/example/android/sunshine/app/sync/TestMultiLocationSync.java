@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+    Syncs several locations at once against a local mock server, and times syncs of 1, 10 and
+    100 locations fetched one at a time and in parallel.  The benchmark results go to the log.
+    The syncs fan out to subscribers that only take note, and keep their state in preferences
+    of the test's own, so the widgets, the notification and the app's settings are left alone.
+ */
+public class TestMultiLocationSync extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestMultiLocationSync.class.getSimpleName();
+
+    private static final long DEBOUNCE_MILLIS = 50;
+    private static final long WAIT_MILLIS = 5000;
+
+    // The subscribers of the sync's own dispatcher, in the order they run
+    private static final List<String> SUBSCRIBERS =
+            Arrays.asList("widgets", "muzei", "notification", "retention");
+    private static final int[] PRIORITIES = {
+            PostSyncDispatcher.PRIORITY_WIDGETS,
+            PostSyncDispatcher.PRIORITY_MUZEI,
+            PostSyncDispatcher.PRIORITY_NOTIFICATION,
+            PostSyncDispatcher.PRIORITY_RETENTION
+    };
+
+    private MockForecastServer mServer;
+    private HandlerThread mThread;
+    private ScratchPreferencesContext mSyncContext;
+    private PostSyncDispatcher mDispatcher;
+    private List<String> mRuns;
+
+    /*
+        Hands out preferences of the test's own in place of the ones asked for, the default
+        ones included, and remembers them so they can be cleared.
+     */
+    private static class ScratchPreferencesContext extends ContextWrapper {
+        private static final String PREFIX = TestMultiLocationSync.class.getSimpleName() + ".";
+
+        private final Set<String> mNames = Collections.synchronizedSet(new HashSet<String>());
+
+        ScratchPreferencesContext(Context base) {
+            super(base);
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            mNames.add(PREFIX + name);
+            return super.getSharedPreferences(PREFIX + name, mode);
+        }
+
+        void clearPreferences() {
+            synchronized (mNames) {
+                for (String name : mNames) {
+                    super.getSharedPreferences(name, MODE_PRIVATE).edit().clear().commit();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockForecastServer();
+        mThread = new HandlerThread(LOG_TAG);
+        mThread.start();
+        mSyncContext = new ScratchPreferencesContext(mContext);
+        mRuns = Collections.synchronizedList(new ArrayList<String>());
+        mDispatcher = new PostSyncDispatcher(mSyncContext, mThread.getLooper(),
+                DEBOUNCE_MILLIS, DEBOUNCE_MILLIS);
+        for (int i = 0; i < SUBSCRIBERS.size(); i++) {
+            final String name = SUBSCRIBERS.get(i);
+            mDispatcher.register(name, PRIORITIES[i], new PostSyncDispatcher.Subscriber() {
+                @Override
+                public void onDataUpdated(Context context) {
+                    mRuns.add(name);
+                }
+            });
+        }
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mThread.quit();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        // The validators and hashes of the stored forecasts go with them.
+        mSyncContext.clearPreferences();
+    }
+
+    private SunshineSyncAdapter createSyncAdapter(int maxParallelFetches) {
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mSyncContext, false);
+        syncAdapter.setForecastFetcher(new ForecastFetcher(mServer.getBaseUrl()));
+        syncAdapter.setMaxParallelFetches(maxParallelFetches);
+        syncAdapter.setPostSyncDispatcher(mDispatcher);
+        return syncAdapter;
+    }
+
+    /*
+        Waits for the subscribers to have run this many times; they run on the dispatcher's
+        thread, the last one after the others.
+     */
+    private void waitForDispatches(int count) throws InterruptedException {
+        String last = SUBSCRIBERS.get(SUBSCRIBERS.size() - 1);
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (mDispatcher.getRunCount(last) < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(DEBOUNCE_MILLIS);
+        }
+        assertEquals(count, mDispatcher.getRunCount(last));
+    }
+
+    private static List<String> createLocations(String prefix, int count) {
+        List<String> locations = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            locations.add(prefix + i);
+        }
+        return locations;
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /*
+        Every location gets its own row and its 14 days, in one sync, and the subscribers are
+        told once.  Syncing the same locations again writes nothing since none of the
+        forecasts changed, and tells no one.
+     */
+    public void testSyncEveryLocation() throws InterruptedException {
+        List<String> locations = createLocations("multi", 10);
+        SunshineSyncAdapter syncAdapter =
+                createSyncAdapter(SunshineSyncAdapter.MAX_PARALLEL_FETCHES);
+
+        assertEquals(10 * 14, syncAdapter.syncLocations(locations));
+        assertEquals(10, count(LocationEntry.CONTENT_URI));
+        assertEquals(10 * 14, count(WeatherEntry.CONTENT_URI));
+        assertEquals(10, mServer.getRequestCount());
+        assertTrue("Error: no connection was reused, " + mServer.getConnectionCount()
+                        + " connections for " + mServer.getRequestCount() + " requests",
+                mServer.getConnectionCount() < mServer.getRequestCount());
+        waitForDispatches(1);
+        assertEquals(SUBSCRIBERS, mRuns);
+
+        assertEquals(0, syncAdapter.syncLocations(locations));
+        assertEquals(10 * 14, count(WeatherEntry.CONTENT_URI));
+        assertEquals(1, mDispatcher.getRequestCount());
+    }
+
+    /*
+        A location whose fetch blows up is counted as that location's failure: the others'
+        forecasts are still stored, in the same sync.
+     */
+    public void testFailedLocationKeepsTheOthers() throws InterruptedException {
+        List<String> locations = createLocations("partial", 4);
+        final String broken = locations.get(2);
+        SunshineSyncAdapter syncAdapter =
+                createSyncAdapter(SunshineSyncAdapter.MAX_PARALLEL_FETCHES);
+        syncAdapter.setForecastFetcher(new ForecastFetcher(mServer.getBaseUrl()) {
+            @Override
+            Response fetch(String locationQuery, String eTag, String lastModified,
+                           TransferStats stats) throws IOException, JSONException {
+                if (broken.equals(locationQuery)) {
+                    throw new IllegalStateException("Broken on purpose");
+                }
+                return super.fetch(locationQuery, eTag, lastModified, stats);
+            }
+        });
+
+        assertEquals(3 * 14, syncAdapter.syncLocations(locations));
+        assertEquals(3, count(LocationEntry.CONTENT_URI));
+        assertEquals(3 * 14, count(WeatherEntry.CONTENT_URI));
+        waitForDispatches(1);
+        assertEquals(SUBSCRIBERS, mRuns);
+    }
+
+    public void testSyncScalingBenchmark() {
+        benchmark(1);
+        benchmark(10);
+        benchmark(100);
+    }
+
+    private void benchmark(int locationCount) {
+        long sequentialNanos = timeSync("seq", locationCount, 1);
+        int sequentialConnections = mServer.getConnectionCount();
+
+        long parallelNanos = timeSync("par", locationCount,
+                SunshineSyncAdapter.MAX_PARALLEL_FETCHES);
+        int parallelConnections = mServer.getConnectionCount();
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d locations: one at a time %.1f ms (%d connections), " +
+                        "%d at a time %.1f ms (%d connections)",
+                locationCount,
+                sequentialNanos / 1e6, sequentialConnections,
+                SunshineSyncAdapter.MAX_PARALLEL_FETCHES,
+                parallelNanos / 1e6, parallelConnections));
+    }
+
+    private long timeSync(String prefix, int locationCount, int maxParallelFetches) {
+        deleteAllRecords();
+        mServer.resetCounts();
+        List<String> locations = createLocations(prefix, locationCount);
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(maxParallelFetches);
+
+        long start = System.nanoTime();
+        int inserted = syncAdapter.syncLocations(locations);
+        long nanos = System.nanoTime() - start;
+
+        assertEquals(locationCount * 14, inserted);
+        return nanos;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Checks that the post-sync dispatcher tells its subscribers once for a burst of updates, in
+    order of priority, even when one of them fails, and that a sync no longer waits for them.
+    The time a sync takes with a slow subscriber goes to the log.
+ */
+public class TestPostSyncDispatcher extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestPostSyncDispatcher.class.getSimpleName();
+
+    private static final long DEBOUNCE_MILLIS = 200;
+    private static final long MAX_DELAY_MILLIS = 600;
+    private static final long SLOW_SUBSCRIBER_MILLIS = 2000;
+
+    private HandlerThread mThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread(LOG_TAG);
+        mThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private PostSyncDispatcher createDispatcher() {
+        return new PostSyncDispatcher(mContext, mThread.getLooper(), DEBOUNCE_MILLIS,
+                MAX_DELAY_MILLIS);
+    }
+
+    /*
+        Records the order the subscribers ran in, and counts the dispatch down once the last
+        one did.
+     */
+    private static PostSyncDispatcher.Subscriber createSubscriber(final String name,
+                                                                  final List<String> runs,
+                                                                  final CountDownLatch done) {
+        return new PostSyncDispatcher.Subscriber() {
+            @Override
+            public void onDataUpdated(Context context) {
+                synchronized (runs) {
+                    runs.add(name);
+                }
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        };
+    }
+
+    public void testBurstIsDispatchedOnce() throws InterruptedException {
+        PostSyncDispatcher dispatcher = createDispatcher();
+        List<String> runs = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(1);
+        // Registered out of order on purpose
+        dispatcher.register("notification", PostSyncDispatcher.PRIORITY_NOTIFICATION,
+                createSubscriber("notification", runs, done));
+        dispatcher.register("widgets", PostSyncDispatcher.PRIORITY_WIDGETS,
+                createSubscriber("widgets", runs, null));
+        dispatcher.register("failing", PostSyncDispatcher.PRIORITY_MUZEI,
+                new PostSyncDispatcher.Subscriber() {
+                    @Override
+                    public void onDataUpdated(Context context) {
+                        throw new IllegalStateException("Failing on purpose");
+                    }
+                });
+
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch();
+        }
+        assertTrue("Error: subscribers never ran", done.await(5, TimeUnit.SECONDS));
+        // Give a second dispatch, which there mustn't be, the time to happen.
+        Thread.sleep(2 * DEBOUNCE_MILLIS);
+
+        assertEquals(10, dispatcher.getRequestCount());
+        assertEquals(1, dispatcher.getDispatchCount());
+        assertEquals(Arrays.asList("widgets", "notification"), runs);
+        assertEquals(1, dispatcher.getRunCount("failing"));
+        assertEquals(1, dispatcher.getFailureCount("failing"));
+        assertEquals(0, dispatcher.getFailureCount("widgets"));
+    }
+
+    /*
+        Updates that keep coming mustn't hold the subscribers off forever.
+     */
+    public void testSteadyRequestsAreNotStarved() throws InterruptedException {
+        PostSyncDispatcher dispatcher = createDispatcher();
+        List<String> runs = new ArrayList<String>();
+        dispatcher.register("widgets", PostSyncDispatcher.PRIORITY_WIDGETS,
+                createSubscriber("widgets", runs, null));
+
+        long requestMillis = 3 * MAX_DELAY_MILLIS;
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < requestMillis) {
+            dispatcher.dispatch();
+            Thread.sleep(DEBOUNCE_MILLIS / 4);
+        }
+        Thread.sleep(2 * DEBOUNCE_MILLIS);
+
+        long dispatches = dispatcher.getDispatchCount();
+        assertTrue("Error: " + dispatches + " dispatches in " + requestMillis + " ms",
+                dispatches >= 2);
+        assertTrue(dispatches < dispatcher.getRequestCount());
+        assertEquals(dispatches, dispatcher.getRunCount("widgets"));
+    }
+
+    /*
+        A sync is done once the weather is stored, however long the subscribers take.
+     */
+    public void testSyncDoesNotWaitForSubscribers() throws Exception {
+        MockForecastServer server = new MockForecastServer();
+        try {
+            deleteAllRecords();
+            PostSyncDispatcher dispatcher = createDispatcher();
+            final CountDownLatch done = new CountDownLatch(1);
+            dispatcher.register("slow", PostSyncDispatcher.PRIORITY_NOTIFICATION,
+                    new PostSyncDispatcher.Subscriber() {
+                        @Override
+                        public void onDataUpdated(Context context) {
+                            try {
+                                Thread.sleep(SLOW_SUBSCRIBER_MILLIS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            done.countDown();
+                        }
+                    });
+
+            SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+            syncAdapter.setForecastFetcher(new ForecastFetcher(server.getBaseUrl()));
+            syncAdapter.setPostSyncDispatcher(dispatcher);
+
+            long start = System.nanoTime();
+            assertEquals(14, syncAdapter.syncLocations(Arrays.asList("dispatch")));
+            long syncNanos = System.nanoTime() - start;
+
+            assertTrue("Error: the subscriber never ran", done.await(
+                    DEBOUNCE_MILLIS + 2 * SLOW_SUBSCRIBER_MILLIS, TimeUnit.MILLISECONDS));
+            long subscriberNanos = dispatcher.getTotalNanos("slow");
+            assertTrue("Error: the sync waited for the subscriber",
+                    syncNanos < subscriberNanos);
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "Sync %.1f ms with a subscriber that took %.1f ms",
+                    syncNanos / 1e6, subscriberNanos / 1e6));
+        } finally {
+            server.shutdown();
+            deleteAllRecords();
+        }
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+}
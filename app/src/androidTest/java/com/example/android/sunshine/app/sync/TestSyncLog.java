@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Syncs against a local mock server and checks what goes into the sync log: the phases of a
+    sync that stored weather, fan-out included, and of one that failed; that the log keeps to
+    its size and can't be changed from outside.  The median and 95th percentile of each phase
+    over a run of syncs go to the log.
+ */
+public class TestSyncLog extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncLog.class.getSimpleName();
+
+    private static final long DEBOUNCE_MILLIS = 50;
+    private static final long WIDGETS_MILLIS = 20;
+    private static final long WAIT_MILLIS = 5000;
+
+    private static final String[] PHASES = {
+            SyncLogEntry.COLUMN_CONNECT,
+            SyncLogEntry.COLUMN_FIRST_BYTE,
+            SyncLogEntry.COLUMN_DOWNLOAD,
+            SyncLogEntry.COLUMN_PARSE,
+            SyncLogEntry.COLUMN_DB_WRITE,
+            SyncLogEntry.COLUMN_FANOUT_WIDGETS,
+            SyncLogEntry.COLUMN_FANOUT_RETENTION,
+            SyncLogEntry.COLUMN_DURATION
+    };
+
+    private MockForecastServer mServer;
+    private HandlerThread mThread;
+    private SunshineSyncAdapter mSyncAdapter;
+    // The last log entry before the test, so only the test's own are looked at
+    private long mLastId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockForecastServer();
+        mThread = new HandlerThread(LOG_TAG);
+        mThread.start();
+        deleteAllRecords();
+
+        PostSyncDispatcher dispatcher = new PostSyncDispatcher(mContext, mThread.getLooper(),
+                DEBOUNCE_MILLIS, DEBOUNCE_MILLIS);
+        dispatcher.register("widgets", PostSyncDispatcher.PRIORITY_WIDGETS,
+                new PostSyncDispatcher.Subscriber() {
+                    @Override
+                    public void onDataUpdated(Context context) {
+                        try {
+                            Thread.sleep(WIDGETS_MILLIS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+        // Stands in for the stale days' delete the sync used to do itself
+        dispatcher.register("retention", PostSyncDispatcher.PRIORITY_RETENTION,
+                new PostSyncDispatcher.Subscriber() {
+                    @Override
+                    public void onDataUpdated(Context context) {
+                        SunshineSyncAdapter.compactHistory(context);
+                    }
+                });
+        mSyncAdapter = new SunshineSyncAdapter(mContext, false);
+        mSyncAdapter.setForecastFetcher(new ForecastFetcher(mServer.getBaseUrl()));
+        mSyncAdapter.setPostSyncDispatcher(dispatcher);
+
+        List<ContentValues> entries = getEntries(null);
+        mLastId = entries.isEmpty() ? 0 : entries.get(entries.size() - 1)
+                .getAsLong(SyncLogEntry._ID);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mThread.quit();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        The entries after mLastId, oldest first, sorted by the column if there is one.
+     */
+    private List<ContentValues> getEntries(String orderBy) {
+        Cursor cursor = mContext.getContentResolver().query(SyncLogEntry.CONTENT_URI, null,
+                SyncLogEntry._ID + " > ?", new String[]{Long.toString(mLastId)},
+                orderBy != null ? orderBy : SyncLogEntry._ID);
+        assertNotNull(cursor);
+        List<ContentValues> entries = new ArrayList<ContentValues>();
+        while (cursor.moveToNext()) {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                if (!cursor.isNull(i)) {
+                    values.put(cursor.getColumnName(i), cursor.getLong(i));
+                }
+            }
+            entries.add(values);
+        }
+        cursor.close();
+        return entries;
+    }
+
+    /*
+        Waits for the sync log to hold this many entries of the test's; the ones with fan-out
+        come in on the dispatcher's thread.
+     */
+    private List<ContentValues> waitForEntries(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        List<ContentValues> entries = getEntries(null);
+        while (entries.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(DEBOUNCE_MILLIS);
+            entries = getEntries(null);
+        }
+        assertEquals(count, entries.size());
+        return entries;
+    }
+
+    public void testSyncIsLogged() throws InterruptedException {
+        assertEquals(14, mSyncAdapter.syncLocations(Arrays.asList("log")));
+
+        ContentValues entry = waitForEntries(1).get(0);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_OK,
+                (int) entry.getAsInteger(SyncLogEntry.COLUMN_OUTCOME));
+        assertEquals(1, (int) entry.getAsInteger(SyncLogEntry.COLUMN_LOCATIONS));
+        assertEquals(14, (int) entry.getAsInteger(SyncLogEntry.COLUMN_ROWS));
+        assertEquals(mSyncAdapter.getTransferStats().getWireBytes(),
+                (long) entry.getAsLong(SyncLogEntry.COLUMN_BYTES));
+        for (String phase : PHASES) {
+            assertTrue("Error: no " + phase, entry.containsKey(phase));
+        }
+        assertTrue(entry.getAsLong(SyncLogEntry.COLUMN_FANOUT_WIDGETS) >= WIDGETS_MILLIS * 1000);
+        // Not subscribed here
+        assertFalse(entry.containsKey(SyncLogEntry.COLUMN_FANOUT_MUZEI));
+    }
+
+    public void testFailedSyncIsLogged() throws InterruptedException {
+        mServer.failNext(MockForecastServer.ALWAYS, "404 Not Found");
+        assertEquals(0, mSyncAdapter.syncLocations(Arrays.asList("log")));
+
+        // Nothing was stored, so there's no fan-out to wait for.
+        List<ContentValues> entries = getEntries(null);
+        assertEquals(1, entries.size());
+        ContentValues entry = entries.get(0);
+        assertEquals(SunshineSyncAdapter.LOCATION_STATUS_SERVER_DOWN,
+                (int) entry.getAsInteger(SyncLogEntry.COLUMN_OUTCOME));
+        assertEquals(0, (int) entry.getAsInteger(SyncLogEntry.COLUMN_ROWS));
+        assertFalse(entry.containsKey(SyncLogEntry.COLUMN_DB_WRITE));
+        assertFalse(entry.containsKey(SyncLogEntry.COLUMN_FANOUT_WIDGETS));
+    }
+
+    public void testLogIsBounded() {
+        ContentValues values = new ContentValues();
+        values.put(SyncLogEntry.COLUMN_START_TIME, System.currentTimeMillis());
+        values.put(SyncLogEntry.COLUMN_DURATION, 1);
+        values.put(SyncLogEntry.COLUMN_OUTCOME, SunshineSyncAdapter.LOCATION_STATUS_OK);
+        values.put(SyncLogEntry.COLUMN_LOCATIONS, 1);
+        values.put(SyncLogEntry.COLUMN_BYTES, 0);
+        values.put(SyncLogEntry.COLUMN_ROWS, 0);
+        for (int i = 0; i < SyncLogEntry.MAX_ENTRIES + 10; i++) {
+            assertNotNull(mContext.getContentResolver().insert(SyncLogEntry.CONTENT_URI, values));
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(SyncLogEntry.CONTENT_URI, null,
+                null, null, null);
+        assertNotNull(cursor);
+        assertEquals(SyncLogEntry.MAX_ENTRIES, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testLogIsReadOnly() {
+        try {
+            mContext.getContentResolver().delete(SyncLogEntry.CONTENT_URI, null, null);
+            fail("Error: the sync log was deleted from");
+        } catch (UnsupportedOperationException e) {
+            // What we wanted
+        }
+        try {
+            ContentValues values = new ContentValues();
+            values.put(SyncLogEntry.COLUMN_OUTCOME, 0);
+            mContext.getContentResolver().update(SyncLogEntry.CONTENT_URI, values, null, null);
+            fail("Error: the sync log was updated");
+        } catch (UnsupportedOperationException e) {
+            // What we wanted
+        }
+    }
+
+    public void testPhasePercentiles() throws InterruptedException {
+        int syncs = 20;
+        for (int i = 0; i < syncs; i++) {
+            // A new location every time, so every sync stores and fans out.
+            mSyncAdapter.syncLocations(Arrays.asList("percentile" + i));
+            waitForEntries(i + 1);
+        }
+
+        for (String phase : PHASES) {
+            List<ContentValues> entries = getEntries(phase);
+            assertEquals(syncs, entries.size());
+            Log.i(LOG_TAG, String.format(Locale.US, "%s: p50 %.2f ms, p95 %.2f ms", phase,
+                    percentile(entries, phase, 0.5) / 1000.0,
+                    percentile(entries, phase, 0.95) / 1000.0));
+        }
+    }
+
+    private static long percentile(List<ContentValues> sorted, String column, double p) {
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0)).getAsLong(column);
+    }
+}
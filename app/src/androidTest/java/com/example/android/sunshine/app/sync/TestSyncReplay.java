@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.Cursor;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/*
+    Replays forecasts through the whole sync, fetch to parse to store, against the local mock
+    server, with no API key and no network: a thousand syncs over a couple hundred locations
+    as fast as they go, and a run on a slow, lossy connection.  The fixtures are the recorded
+    ones if testRecordFixtures was run on this device with an API key, made-up ones otherwise.
+    Throughput and the sync time percentiles go to the log.
+ */
+public class TestSyncReplay extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncReplay.class.getSimpleName();
+
+    // What testRecordFixtures asks OpenWeatherMap for
+    private static final String[] RECORDED_LOCATIONS = {
+            "94043", "London,UK", "Paris,FR", "Tokyo,JP", "Sydney,AU", "Reykjavik,IS",
+            "Cairo,EG", "Lima,PE", "Anchorage,US", "Singapore,SG"
+    };
+
+    private static final int THROUGHPUT_SYNCS = 1000;
+    private static final int THROUGHPUT_LOCATIONS = 200;
+
+    private static final int LOSSY_SYNCS = 100;
+    private static final int LOSSY_LOCATIONS = 50;
+    private static final long LOSSY_LATENCY_MILLIS = 30;
+    private static final long LOSSY_BYTES_PER_SECOND = 64 * 1024;
+    private static final double LOSSY_ERROR_RATE = 0.1;
+
+    private static final int LOCATIONS_PER_SYNC = 5;
+
+    private MockForecastServer mServer;
+    private HandlerThread mThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockForecastServer();
+        mServer.setFixtures(ForecastFixtures.load(mContext));
+        mThread = new HandlerThread(LOG_TAG);
+        mThread.start();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mThread.quit();
+        new CircuitBreaker(new SyncStateStore(mContext)).reset();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private SunshineSyncAdapter createSyncAdapter() {
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setForecastFetcher(new ForecastFetcher(mServer.getBaseUrl()));
+        // No widgets or notifications for thousands of made-up updates
+        syncAdapter.setPostSyncDispatcher(new PostSyncDispatcher(mContext, mThread.getLooper(),
+                PostSyncDispatcher.DEBOUNCE_MILLIS, PostSyncDispatcher.MAX_DELAY_MILLIS));
+        // Short waits, and a breaker that leaves the errors to the retries
+        syncAdapter.setRetryPolicy(new RetryPolicy(RetryPolicy.MAX_ATTEMPTS, 10, 100,
+                new Random(42)));
+        syncAdapter.setCircuitBreaker(new CircuitBreaker(new SyncStateStore(mContext),
+                Integer.MAX_VALUE, CircuitBreaker.BASE_COOLING_MILLIS,
+                CircuitBreaker.MAX_COOLING_MILLIS));
+        return syncAdapter;
+    }
+
+    /*
+        Records the forecasts of a few real locations for the replays to use.  Needs the
+        network and an API key, so without one there's nothing to do.
+     */
+    public void testRecordFixtures() throws Exception {
+        if (BuildConfig.OPEN_WEATHER_MAP_API_KEY.length() == 0) {
+            Log.i(LOG_TAG, "No API key, so no fixtures recorded");
+            return;
+        }
+        ForecastFixtures fixtures = new ForecastFixtures();
+        ForecastFetcher fetcher = new ForecastFetcher(ForecastFetcher.FORECAST_BASE_URL,
+                new RecordingTransport(new HttpTransport(), fixtures));
+        for (String location : RECORDED_LOCATIONS) {
+            fetcher.fetch(location, null, null, new TransferStats());
+        }
+        assertEquals(RECORDED_LOCATIONS.length, fixtures.size());
+        fixtures.save(mContext);
+        Log.i(LOG_TAG, "Recorded " + fixtures.size() + " locations to "
+                + ForecastFixtures.getDirectory(mContext));
+    }
+
+    public void testReplayThroughput() {
+        Replay replay = new Replay(THROUGHPUT_LOCATIONS).run(createSyncAdapter(),
+                THROUGHPUT_SYNCS);
+        assertEquals(replay.getSyncedLocationCount() * 14, countWeather());
+        log("Replay", replay);
+    }
+
+    public void testReplayOnLossyConnection() {
+        mServer.setLatency(LOSSY_LATENCY_MILLIS);
+        mServer.setBandwidth(LOSSY_BYTES_PER_SECOND);
+        mServer.setErrorRate(LOSSY_ERROR_RATE, "503 Service Unavailable", 42);
+
+        Replay replay = new Replay(LOSSY_LOCATIONS).run(createSyncAdapter(), LOSSY_SYNCS);
+        // Every location is synced ten times over, so each got through at least once.
+        assertEquals(replay.getSyncedLocationCount() * 14, countWeather());
+        assertTrue("Error: " + mServer.getRequestCount() + " requests for " + replay.fetches
+                        + " fetches, with every tenth failing",
+                mServer.getRequestCount() > replay.fetches);
+        log("Lossy replay", replay);
+    }
+
+    private int countWeather() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, null);
+        assertNotNull(cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private void log(String name, Replay replay) {
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%s: %d syncs of %d locations in %.1f s, %.1f fetches/s, %d requests, "
+                        + "%d bytes; sync p50 %.1f ms, p95 %.1f ms, max %.1f ms",
+                name, replay.durations.length, LOCATIONS_PER_SYNC, replay.totalNanos / 1e9,
+                replay.fetches / (replay.totalNanos / 1e9), mServer.getRequestCount(),
+                replay.bytes, replay.percentile(0.5) / 1e6, replay.percentile(0.95) / 1e6,
+                replay.percentile(1) / 1e6));
+    }
+
+    /*
+        Syncs a few locations at a time, going round all of them in turn.
+     */
+    private static class Replay {
+        final int locationCount;
+        final Set<String> synced = new HashSet<String>();
+
+        long[] durations;
+        long totalNanos;
+        int fetches;
+        long bytes;
+
+        Replay(int locationCount) {
+            this.locationCount = locationCount;
+        }
+
+        Replay run(SunshineSyncAdapter syncAdapter, int syncs) {
+            durations = new long[syncs];
+            long start = System.nanoTime();
+            for (int i = 0; i < syncs; i++) {
+                List<String> locations = new ArrayList<String>(LOCATIONS_PER_SYNC);
+                for (int j = 0; j < LOCATIONS_PER_SYNC; j++) {
+                    locations.add("replay" + (i * LOCATIONS_PER_SYNC + j) % locationCount);
+                }
+                long syncStart = System.nanoTime();
+                syncAdapter.syncLocations(locations);
+                durations[i] = System.nanoTime() - syncStart;
+                fetches += locations.size();
+                bytes += syncAdapter.getTransferStats().getWireBytes();
+                synced.addAll(locations);
+            }
+            totalNanos = System.nanoTime() - start;
+            Arrays.sort(durations);
+            return this;
+        }
+
+        int getSyncedLocationCount() {
+            return synced.size();
+        }
+
+        long percentile(double p) {
+            int index = (int) Math.ceil(p * durations.length) - 1;
+            return durations[Math.max(index, 0)];
+        }
+    }
+}
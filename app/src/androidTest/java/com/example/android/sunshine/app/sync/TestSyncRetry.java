@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+    Syncs against a local mock server that fails on demand, and checks that transient failures
+    are retried a bounded number of times, that errors which won't go away aren't, that the
+    server's Retry-After is honored, and that the circuit breaker keeps the sync off the
+    network until the cooling period is over.
+ */
+public class TestSyncRetry extends AndroidTestCase {
+
+    private static final String SERVICE_UNAVAILABLE = "503 Service Unavailable";
+    private static final long COOLING_MILLIS = 200;
+
+    private MockForecastServer mServer;
+    private CircuitBreaker mCircuitBreaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new MockForecastServer();
+        mCircuitBreaker = new CircuitBreaker(new SyncStateStore(mContext),
+                CircuitBreaker.FAILURE_THRESHOLD, COOLING_MILLIS, 4 * COOLING_MILLIS);
+        mCircuitBreaker.reset();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mCircuitBreaker.reset();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private SunshineSyncAdapter createSyncAdapter(CircuitBreaker circuitBreaker) {
+        SunshineSyncAdapter syncAdapter = new SunshineSyncAdapter(mContext, false);
+        syncAdapter.setForecastFetcher(new ForecastFetcher(mServer.getBaseUrl()));
+        // Short delays, so the tests don't wait on them
+        syncAdapter.setRetryPolicy(new RetryPolicy(RetryPolicy.MAX_ATTEMPTS, 10, 100,
+                new Random(42)));
+        syncAdapter.setCircuitBreaker(circuitBreaker);
+        return syncAdapter;
+    }
+
+    private int sync(SunshineSyncAdapter syncAdapter) {
+        return syncAdapter.syncLocations(Arrays.asList("retry"));
+    }
+
+    public void testTransientErrorIsRetried() {
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(mCircuitBreaker);
+        mServer.failNext(1, SERVICE_UNAVAILABLE);
+
+        assertEquals(14, sync(syncAdapter));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(0, mCircuitBreaker.getConsecutiveFailures());
+        assertEquals(0, syncAdapter.getSyncDelaySeconds());
+    }
+
+    public void testRetriesGiveUp() {
+        // A breaker that won't open, so only the retry policy stops the sync
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(new CircuitBreaker(
+                new SyncStateStore(mContext), 100, COOLING_MILLIS, COOLING_MILLIS));
+        mServer.failNext(MockForecastServer.ALWAYS, SERVICE_UNAVAILABLE);
+
+        assertEquals(0, sync(syncAdapter));
+        assertEquals(RetryPolicy.MAX_ATTEMPTS, mServer.getRequestCount());
+        assertTrue(syncAdapter.getSyncDelaySeconds() > 0);
+    }
+
+    public void testNotFoundIsNotRetried() {
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(mCircuitBreaker);
+        mServer.failNext(MockForecastServer.ALWAYS, "404 Not Found");
+
+        assertEquals(0, sync(syncAdapter));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, mCircuitBreaker.getConsecutiveFailures());
+        assertEquals(0, syncAdapter.getSyncDelaySeconds());
+    }
+
+    public void testRetryAfterIsHonored() {
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(mCircuitBreaker);
+        mServer.failNext(MockForecastServer.ALWAYS, "429 Too Many Requests");
+        mServer.setRetryAfter(3600);
+
+        assertEquals(0, sync(syncAdapter));
+        // Too long to wait for within the sync: left for the next one
+        assertEquals(1, mServer.getRequestCount());
+        assertTrue(syncAdapter.getSyncDelaySeconds() >= 3600);
+    }
+
+    public void testCircuitOpensAndCools() throws InterruptedException {
+        SunshineSyncAdapter syncAdapter = createSyncAdapter(mCircuitBreaker);
+        mServer.failNext(MockForecastServer.ALWAYS, SERVICE_UNAVAILABLE);
+
+        assertEquals(0, sync(syncAdapter));
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD, mCircuitBreaker.getConsecutiveFailures());
+        assertTrue(mCircuitBreaker.getRemainingCoolingMillis() > 0);
+
+        // Open: the next sync doesn't go out at all.
+        mServer.resetCounts();
+        assertEquals(0, sync(syncAdapter));
+        assertEquals(0, mServer.getRequestCount());
+        assertTrue(syncAdapter.getSyncDelaySeconds() > 0);
+
+        // Cooled down, and the server is back: the trial request closes the circuit.
+        Thread.sleep(2 * COOLING_MILLIS);
+        mServer.heal();
+        assertEquals(14, sync(syncAdapter));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, mCircuitBreaker.getConsecutiveFailures());
+        assertEquals(0, syncAdapter.getSyncDelaySeconds());
+    }
+
+    public void testHalfOpenLetsOneThrough() throws InterruptedException {
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertTrue(mCircuitBreaker.allowRequest());
+            mCircuitBreaker.onFailure();
+        }
+        assertFalse(mCircuitBreaker.allowRequest());
+
+        Thread.sleep(2 * COOLING_MILLIS);
+        assertTrue(mCircuitBreaker.allowRequest());
+        assertFalse("Error: a second request got through while the first was trying",
+                mCircuitBreaker.allowRequest());
+
+        // The trial failed too: open again, for longer.
+        mCircuitBreaker.onFailure();
+        assertTrue(mCircuitBreaker.getRemainingCoolingMillis() > COOLING_MILLIS);
+    }
+
+    public void testBackoffIsBounded() {
+        RetryPolicy policy = new RetryPolicy(5, 100, 1000, new Random(42));
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long cap = Math.min(1000, 100 << attempt);
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.getRetryDelayMillis(attempt);
+                assertTrue(delay >= 0 && delay <= cap);
+            }
+        }
+        for (int failures = 1; failures < 20; failures++) {
+            long cap = Math.min(RetryPolicy.MAX_SYNC_DELAY_SECONDS,
+                    RetryPolicy.BASE_SYNC_DELAY_SECONDS << (failures - 1));
+            long delay = policy.getSyncDelaySeconds(failures);
+            assertTrue(delay >= cap / 2 && delay <= cap);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Locale;
+
+/*
+    Checks how SyncScheduler reacts to each of its signals, then replays a week of made-up
+    conditions (a storm midweek, the app looked at a few times a day, a watch worn in the
+    daytime, no network at night and a metered one on the commute) against the fixed three
+    hour interval.  The number of syncs, and how old and how far off the forecast was whenever
+    someone looked, go to the log.
+ */
+public class TestSyncScheduler extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestSyncScheduler.class.getSimpleName();
+
+    private static final long MINUTE_IN_MILLIS = 1000 * 60;
+    private static final long HOUR_IN_MILLIS = 60 * MINUTE_IN_MILLIS;
+    private static final long DAY_IN_MILLIS = 24 * HOUR_IN_MILLIS;
+    private static final long STEP_MILLIS = 5 * MINUTE_IN_MILLIS;
+
+    private static SyncScheduler.Conditions createConditions(double volatility) {
+        SyncScheduler.Conditions conditions = new SyncScheduler.Conditions();
+        conditions.volatility = volatility;
+        conditions.sinceViewed = 6 * HOUR_IN_MILLIS;
+        conditions.sinceSuccess = HOUR_IN_MILLIS;
+        return conditions;
+    }
+
+    public void testVolatileForecastSyncsMoreOften() {
+        long unknown = SyncScheduler.computeInterval(createConditions(-1));
+        long calm = SyncScheduler.computeInterval(createConditions(0.1));
+        long volatile_ = SyncScheduler.computeInterval(createConditions(10));
+        assertEquals(SyncScheduler.BASE_INTERVAL_MILLIS, unknown);
+        assertTrue(calm > unknown);
+        assertTrue(volatile_ < unknown);
+    }
+
+    public void testViewedSyncsMoreOften() {
+        SyncScheduler.Conditions conditions = createConditions(-1);
+        long unviewed = SyncScheduler.computeInterval(conditions);
+
+        conditions.sinceViewed = 10 * MINUTE_IN_MILLIS;
+        assertTrue(SyncScheduler.computeInterval(conditions) < unviewed);
+
+        conditions.sinceViewed = 2 * DAY_IN_MILLIS;
+        long idle = SyncScheduler.computeInterval(conditions);
+        assertTrue(idle > unviewed);
+
+        // Unless a watch shows it
+        conditions.sinceWatchUpdated = HOUR_IN_MILLIS;
+        assertTrue(SyncScheduler.computeInterval(conditions) < idle);
+    }
+
+    public void testMeteredSyncsLessOften() {
+        SyncScheduler.Conditions conditions = createConditions(-1);
+        long unmetered = SyncScheduler.computeInterval(conditions);
+        conditions.metered = true;
+        assertTrue(SyncScheduler.computeInterval(conditions) > unmetered);
+    }
+
+    public void testStaleSyncsSoon() {
+        SyncScheduler.Conditions conditions = createConditions(0.1);
+        conditions.metered = true;
+        conditions.sinceSuccess = SyncScheduler.MAX_STALENESS_MILLIS;
+        assertEquals(SyncScheduler.MIN_INTERVAL_MILLIS, SyncScheduler.computeInterval(conditions));
+
+        conditions.sinceSuccess = Long.MAX_VALUE;
+        assertEquals(SyncScheduler.MIN_INTERVAL_MILLIS, SyncScheduler.computeInterval(conditions));
+    }
+
+    public void testIntervalIsBounded() {
+        SyncScheduler.Conditions conditions = createConditions(0);
+        conditions.sinceViewed = Long.MAX_VALUE;
+        conditions.metered = true;
+        assertEquals(SyncScheduler.MAX_INTERVAL_MILLIS, SyncScheduler.computeInterval(conditions));
+
+        conditions = createConditions(1000);
+        conditions.sinceViewed = 0;
+        conditions.sinceWatchUpdated = 0;
+        assertEquals(SyncScheduler.MIN_INTERVAL_MILLIS, SyncScheduler.computeInterval(conditions));
+    }
+
+    public void testVolatilityAverage() {
+        assertEquals(4.0, SyncScheduler.updateVolatility(-1, 4), 0);
+        double volatility = 4;
+        for (int i = 0; i < 50; i++) {
+            volatility = SyncScheduler.updateVolatility(volatility, 1);
+        }
+        assertEquals(1.0, volatility, 0.001);
+    }
+
+    public void testWeekSimulation() {
+        Simulation fixed = new Simulation(false).run();
+        Simulation adaptive = new Simulation(true).run();
+        log("fixed", fixed);
+        log("adaptive", adaptive);
+
+        long minSyncs = 7 * DAY_IN_MILLIS / SyncScheduler.MAX_INTERVAL_MILLIS;
+        long maxSyncs = 7 * DAY_IN_MILLIS / SyncScheduler.MIN_INTERVAL_MILLIS;
+        assertTrue(adaptive.syncs >= minSyncs && adaptive.syncs <= maxSyncs);
+        // Fresher where it matters, and fewer syncs where it doesn't
+        assertTrue("Error: the forecast was further off when looked at than with the fixed " +
+                "interval", adaptive.getMeanViewedError() < fixed.getMeanViewedError());
+        assertTrue("Error: " + adaptive.calmSyncs + " syncs on calm days, " + fixed.calmSyncs +
+                " with the fixed interval", adaptive.calmSyncs < fixed.calmSyncs);
+    }
+
+    private static void log(String name, Simulation simulation) {
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%s: %d syncs a week (%d on calm days), forecast age when looked at " +
+                        "%.0f min on average (%.0f min at most), %.2f degrees off on average",
+                name, simulation.syncs, simulation.calmSyncs,
+                simulation.getMeanViewedAge() / 60000.0, simulation.maxViewedAge / 60000.0,
+                simulation.getMeanViewedError()));
+    }
+
+    /*
+        A week in steps of five minutes.  The periodic sync runs once its interval is up and
+        there's a network; the adaptive one picks a new interval after each sync and whenever
+        the app is looked at, as the app does.
+     */
+    private static class Simulation {
+        final boolean adaptive;
+
+        int syncs;
+        int calmSyncs;
+        long viewedSteps;
+        long viewedAgeSum;
+        long maxViewedAge;
+        double viewedErrorSum;
+
+        Simulation(boolean adaptive) {
+            this.adaptive = adaptive;
+        }
+
+        Simulation run() {
+            double volatility = -1;
+            long lastSync = 0;
+            long lastViewed = -1;
+            long lastWatchUpdate = -1;
+            // How far the real forecast moved from the one we hold
+            double drift = 0;
+            long interval = SyncScheduler.BASE_INTERVAL_MILLIS;
+
+            for (long now = 0; now < 7 * DAY_IN_MILLIS; now += STEP_MILLIS) {
+                long timeOfDay = now % DAY_IN_MILLIS;
+                drift += getDriftPerHour(now) * STEP_MILLIS / HOUR_IN_MILLIS;
+
+                boolean viewed = isViewed(timeOfDay);
+                if (viewed) {
+                    viewedSteps++;
+                    long age = now - lastSync;
+                    viewedAgeSum += age;
+                    maxViewedAge = Math.max(maxViewedAge, age);
+                    viewedErrorSum += drift;
+                    if (adaptive && lastViewed != now - STEP_MILLIS) {
+                        // Coming to the foreground reschedules.
+                        lastViewed = now;
+                        interval = computeInterval(now, volatility, lastViewed, lastWatchUpdate,
+                                lastSync, timeOfDay);
+                    }
+                    lastViewed = now;
+                }
+
+                if (now - lastSync >= interval && hasNetwork(timeOfDay)) {
+                    syncs++;
+                    if (!isStorm(now)) {
+                        calmSyncs++;
+                    }
+                    volatility = SyncScheduler.updateVolatility(volatility, drift);
+                    drift = 0;
+                    lastSync = now;
+                    if (isWatchWorn(timeOfDay)) {
+                        lastWatchUpdate = now;
+                    }
+                    if (adaptive) {
+                        interval = computeInterval(now, volatility, lastViewed, lastWatchUpdate,
+                                lastSync, timeOfDay);
+                    }
+                }
+            }
+            return this;
+        }
+
+        private static long computeInterval(long now, double volatility, long lastViewed,
+                                            long lastWatchUpdate, long lastSync, long timeOfDay) {
+            SyncScheduler.Conditions conditions = new SyncScheduler.Conditions();
+            conditions.volatility = volatility;
+            conditions.sinceViewed = lastViewed == -1 ? Long.MAX_VALUE : now - lastViewed;
+            conditions.sinceWatchUpdated =
+                    lastWatchUpdate == -1 ? Long.MAX_VALUE : now - lastWatchUpdate;
+            conditions.sinceSuccess = now - lastSync;
+            conditions.metered = isMetered(timeOfDay);
+            return SyncScheduler.computeInterval(conditions);
+        }
+
+        // Calm, but for a storm on the third and fourth days
+        private static double getDriftPerHour(long now) {
+            return isStorm(now) ? 1.5 : 0.15;
+        }
+
+        private static boolean isStorm(long now) {
+            long day = now / DAY_IN_MILLIS;
+            return day == 2 || day == 3;
+        }
+
+        // Breakfast, lunch and the evening
+        private static boolean isViewed(long timeOfDay) {
+            return between(timeOfDay, 7 * 60 + 30, 7 * 60 + 40)
+                    || between(timeOfDay, 12 * 60 + 30, 12 * 60 + 35)
+                    || between(timeOfDay, 18 * 60, 18 * 60 + 20);
+        }
+
+        private static boolean isWatchWorn(long timeOfDay) {
+            return between(timeOfDay, 8 * 60, 22 * 60);
+        }
+
+        private static boolean hasNetwork(long timeOfDay) {
+            return !between(timeOfDay, 60, 6 * 60);
+        }
+
+        private static boolean isMetered(long timeOfDay) {
+            return between(timeOfDay, 8 * 60, 9 * 60) || between(timeOfDay, 17 * 60, 18 * 60);
+        }
+
+        private static boolean between(long timeOfDay, long fromMinute, long toMinute) {
+            return timeOfDay >= fromMinute * MINUTE_IN_MILLIS
+                    && timeOfDay < toMinute * MINUTE_IN_MILLIS;
+        }
+
+        double getMeanViewedAge() {
+            return viewedSteps == 0 ? 0 : (double) viewedAgeSum / viewedSteps;
+        }
+
+        double getMeanViewedError() {
+            return viewedSteps == 0 ? 0 : viewedErrorSum / viewedSteps;
+        }
+    }
+}
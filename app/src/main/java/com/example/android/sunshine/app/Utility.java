@@ -20,8 +20,8 @@ import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.preference.PreferenceManager;
-import android.text.format.Time;
 
+import com.example.android.sunshine.app.data.EpochDays;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
 import java.text.DateFormat;
@@ -79,28 +79,25 @@ public class Utility {
         // For the next 5 days: "Wednesday" (just the day name)
         // For all days after that: "Mon Jun 8"
 
-        Time time = new Time();
-        time.setToNow();
-        long currentTime = System.currentTimeMillis();
-        int julianDay = Time.getJulianDay(dateInMillis, time.gmtoff);
-        int currentJulianDay = Time.getJulianDay(currentTime, time.gmtoff);
+        EpochDays days = EpochDays.getDefault();
+        int daysFromToday = days.daysFrom(System.currentTimeMillis(), dateInMillis);
 
         // If the date we're building the String for is today's date, the format
         // is "Today, June 24"
-        if (displayLongToday && julianDay == currentJulianDay) {
+        if (displayLongToday && daysFromToday == 0) {
             String today = context.getString(R.string.today);
             int formatId = R.string.format_full_friendly_date;
             return String.format(context.getString(
                     formatId,
                     today,
                     getFormattedMonthDay(context, dateInMillis)));
-        } else if ( julianDay < currentJulianDay + 7 ) {
+        } else if ( daysFromToday < 7 ) {
             // If the input date is less than a week in the future, just return the day name.
             return getDayName(context, dateInMillis);
         } else {
             // Otherwise, use the form "Mon Jun 3"
-            SimpleDateFormat shortenedDateFormat = new SimpleDateFormat("EEE MMM dd");
-            return shortenedDateFormat.format(dateInMillis);
+            DayFormats formats = getDayFormats(days);
+            return formats.format(formats.shortenedDate, dateInMillis);
         }
     }
 
@@ -134,20 +131,16 @@ public class Utility {
         // If the date is today, return the localized version of "Today" instead of the actual
         // day name.
 
-        Time t = new Time();
-        t.setToNow();
-        int julianDay = Time.getJulianDay(dateInMillis, t.gmtoff);
-        int currentJulianDay = Time.getJulianDay(System.currentTimeMillis(), t.gmtoff);
-        if (julianDay == currentJulianDay) {
+        EpochDays days = EpochDays.getDefault();
+        int daysFromToday = days.daysFrom(System.currentTimeMillis(), dateInMillis);
+        if (daysFromToday == 0) {
             return context.getString(R.string.today);
-        } else if ( julianDay == currentJulianDay +1 ) {
+        } else if ( daysFromToday == 1 ) {
             return context.getString(R.string.tomorrow);
         } else {
-            Time time = new Time();
-            time.setToNow();
             // Otherwise, the format is just the day of the week (e.g "Wednesday".
-            SimpleDateFormat dayFormat = new SimpleDateFormat("EEEE");
-            return dayFormat.format(dateInMillis);
+            DayFormats formats = getDayFormats(days);
+            return formats.format(formats.dayName, dateInMillis);
         }
     }
 
@@ -159,12 +152,51 @@ public class Utility {
      * @return The day in the form of a string formatted "December 6"
      */
     public static String getFormattedMonthDay(Context context, long dateInMillis ) {
-        Time time = new Time();
-        time.setToNow();
-        SimpleDateFormat dbDateFormat = new SimpleDateFormat(Utility.DATE_FORMAT);
-        SimpleDateFormat monthDayFormat = new SimpleDateFormat("MMMM dd");
-        String monthDayString = monthDayFormat.format(dateInMillis);
-        return monthDayString;
+        DayFormats formats = getDayFormats(EpochDays.getDefault());
+        return formats.format(formats.monthDay, dateInMillis);
+    }
+
+    // The formats above run for every row the list binds, so they're made once per thread
+    // (SimpleDateFormat isn't thread-safe), and again only when the locale or zone changes.
+    private static final ThreadLocal<DayFormats> sDayFormats = new ThreadLocal<DayFormats>();
+
+    private static final class DayFormats {
+        final Locale locale;
+        final EpochDays days;
+        final SimpleDateFormat dayName;
+        final SimpleDateFormat monthDay;
+        final SimpleDateFormat shortenedDate;
+        private final Date mDate = new Date();
+
+        DayFormats(Locale locale, EpochDays days) {
+            this.locale = locale;
+            this.days = days;
+            dayName = createFormat("EEEE", locale, days);
+            monthDay = createFormat("MMMM dd", locale, days);
+            shortenedDate = createFormat("EEE MMM dd", locale, days);
+        }
+
+        private static SimpleDateFormat createFormat(String pattern, Locale locale,
+                                                     EpochDays days) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, locale);
+            format.setTimeZone(days.getZone());
+            return format;
+        }
+
+        String format(SimpleDateFormat format, long dateInMillis) {
+            mDate.setTime(dateInMillis);
+            return format.format(mDate);
+        }
+    }
+
+    private static DayFormats getDayFormats(EpochDays days) {
+        DayFormats formats = sDayFormats.get();
+        Locale locale = Locale.getDefault();
+        if (formats == null || formats.days != days || !formats.locale.equals(locale)) {
+            formats = new DayFormats(locale, days);
+            sDayFormats.set(formats);
+        }
+        return formats;
     }
 
     public static String getFormattedWind(Context context, float windSpeed, float degrees) {
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Local calendar days counted from 1 January 1970, for the date arithmetic the provider, the
+ * sync and the list do on every row: which day a time falls on, when that day starts, and how
+ * far it is from today.  It does the same as android.text.format.Time's getJulianDay and
+ * setJulianDay, without a Time, or any other object, per call.
+ *
+ * The zone's UTC offset is cached a day at a time, so most calls don't look it up at all.
+ * Instances are thread-safe, and nothing here needs Android, so it runs on a plain JVM too.
+ */
+public final class EpochDays {
+
+    public static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    // The Julian day of 1 January 1970, as Time counts them
+    public static final int EPOCH_JULIAN_DAY = 2440588;
+
+    // How long getDefault goes without checking whether the default zone changed
+    private static final long ZONE_CHECK_MILLIS = 1000;
+
+    // Direct-mapped by UTC day; a power of two
+    private static final int CACHE_SIZE = 32;
+    // No real UTC day is this far back, so no lookup matches an empty entry.
+    private static final long EMPTY = (long) Integer.MIN_VALUE << 32;
+
+    private static volatile EpochDays sDefault;
+    private static volatile long sDefaultCheckedAt;
+
+    private final TimeZone mZone;
+    private final int mRawOffset;
+    // Each entry holds a UTC day in its high half and the zone's offset, the same all day, in
+    // its low half.
+    private final AtomicLongArray mOffsets = new AtomicLongArray(CACHE_SIZE);
+
+    public EpochDays(TimeZone zone) {
+        mZone = (TimeZone) zone.clone();
+        mRawOffset = mZone.getRawOffset();
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            mOffsets.set(i, EMPTY);
+        }
+    }
+
+    /**
+     * @return the days of the default zone.  A change of zone is picked up within a second.
+     */
+    public static EpochDays getDefault() {
+        EpochDays days = sDefault;
+        long now = System.currentTimeMillis();
+        if (days == null || now - sDefaultCheckedAt > ZONE_CHECK_MILLIS
+                || now < sDefaultCheckedAt) {
+            TimeZone zone = TimeZone.getDefault();
+            if (days == null || !days.mZone.hasSameRules(zone)
+                    || !days.mZone.getID().equals(zone.getID())) {
+                days = new EpochDays(zone);
+                sDefault = days;
+            }
+            sDefaultCheckedAt = now;
+        }
+        return days;
+    }
+
+    public TimeZone getZone() {
+        return (TimeZone) mZone.clone();
+    }
+
+    /**
+     * @return the zone's offset from UTC at the time, in milliseconds.
+     */
+    public int getOffset(long millis) {
+        int utcDay = (int) floorDiv(millis, DAY_IN_MILLIS);
+        int index = utcDay & (CACHE_SIZE - 1);
+        long entry = mOffsets.get(index);
+        if ((int) (entry >> 32) == utcDay) {
+            return (int) entry;
+        }
+        long dayStart = utcDay * DAY_IN_MILLIS;
+        int offset = mZone.getOffset(millis);
+        // Only a day without a change of offset can be answered for all of it.
+        if (mZone.getOffset(dayStart) == offset
+                && mZone.getOffset(dayStart + DAY_IN_MILLIS - 1) == offset) {
+            mOffsets.set(index, ((long) utcDay << 32) | (offset & 0xFFFFFFFFL));
+        }
+        return offset;
+    }
+
+    /**
+     * @return the local day the time falls on.
+     */
+    public int toEpochDay(long millis) {
+        return (int) floorDiv(millis + getOffset(millis), DAY_IN_MILLIS);
+    }
+
+    /**
+     * @return the time the local day starts.  If the clocks skip midnight that day, the time
+     * they skip to.
+     */
+    public long toMillis(int epochDay) {
+        long localMillis = epochDay * DAY_IN_MILLIS;
+        int offset = getOffset(localMillis - mRawOffset);
+        long millis = localMillis - offset;
+        int actualOffset = getOffset(millis);
+        if (actualOffset == offset) {
+            return millis;
+        }
+        // Near a change of offset: take the other one if it's the one in force then.
+        long otherMillis = localMillis - actualOffset;
+        if (getOffset(otherMillis) == actualOffset) {
+            return otherMillis;
+        }
+        // Midnight never happened: the offset from before the change puts it after the gap.
+        return localMillis - Math.min(offset, actualOffset);
+    }
+
+    /**
+     * @return the start of the local day the time falls on.
+     */
+    public long normalize(long millis) {
+        return toMillis(toEpochDay(millis));
+    }
+
+    /**
+     * @return how many local days the date is after the one now falls on: 0 for today, 1 for
+     * tomorrow, negative for the days gone by.
+     */
+    public int daysFrom(long nowMillis, long dateMillis) {
+        return toEpochDay(dateMillis) - toEpochDay(nowMillis);
+    }
+
+    /**
+     * @return the day of the week, as {@link java.util.Calendar#SUNDAY} to
+     * {@link java.util.Calendar#SATURDAY}.
+     */
+    public static int getDayOfWeek(int epochDay) {
+        // 1 January 1970 was a Thursday.
+        return (int) floorMod(epochDay + 4, 7) + 1;
+    }
+
+    /**
+     * @return the Monday of the week the day falls in.
+     */
+    public static int getWeekStart(int epochDay) {
+        // 1 January 1970 was the fourth day of its week.
+        return epochDay - (int) floorMod(epochDay + 3, 7);
+    }
+
+    /**
+     * @return the first day of the month the day falls in.
+     */
+    public static int getMonthStart(int epochDay) {
+        return epochDay - getDayOfMonth(epochDay) + 1;
+    }
+
+    /**
+     * @return the first day of the month after the one the day falls in.
+     */
+    public static int getNextMonthStart(int epochDay) {
+        // No month is longer than 31 days, and none is shorter than the 3 days past it.
+        return getMonthStart(getMonthStart(epochDay) + 31);
+    }
+
+    /**
+     * @return the day of the month, from 1, in the Gregorian calendar.
+     */
+    public static int getDayOfMonth(int epochDay) {
+        // Counted in 400-year eras of March-based years, so the leap day comes last.
+        long z = epochDay + 719468L;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096)
+                / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long month = (5 * dayOfYear + 2) / 153;
+        return (int) (dayOfYear - (153 * month + 2) / 5 + 1);
+    }
+
+    public static int toJulianDay(int epochDay) {
+        return epochDay + EPOCH_JULIAN_DAY;
+    }
+
+    public static int fromJulianDay(int julianDay) {
+        return julianDay - EPOCH_JULIAN_DAY;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * A location's forecast from a start date, one day per index in date order, read in one go
+ * and never changed after.  The views bind straight from its arrays instead of going through
+ * a cursor's columns; see {@link #query}.
+ */
+public final class ForecastSnapshot {
+
+    // The provider's call() method behind query(), and its arguments
+    static final String METHOD_QUERY = "queryForecastSnapshot";
+    static final String EXTRA_START_DATE = "startDate";
+
+    private static final String KEY_LOCATION_ID = "locationId";
+    private static final String KEY_LOCATION_SETTING = "locationSetting";
+    private static final String KEY_CITY_NAME = "cityName";
+    private static final String KEY_COORD_LAT = "coordLat";
+    private static final String KEY_COORD_LONG = "coordLong";
+    private static final String KEY_IDS = "ids";
+    private static final String KEY_DATES = "dates";
+    private static final String KEY_DESCRIPTIONS = "descriptions";
+    private static final String KEY_WEATHER_IDS = "weatherIds";
+    private static final String KEY_LOW = "low";
+    private static final String KEY_HIGH = "high";
+    private static final String KEY_HUMIDITY = "humidity";
+    private static final String KEY_PRESSURE = "pressure";
+    private static final String KEY_WIND = "wind";
+    private static final String KEY_DEGREES = "degrees";
+
+    // The columns of the weather/location join a snapshot is read from.  Only the weather _ID
+    // needs its table; location._id is the same value as location_id.
+    static final String[] PROJECTION = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            LocationEntry.COLUMN_CITY_NAME,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+    static final int COL_WEATHER_ID = 0;
+    static final int COL_LOC_KEY = 1;
+    static final int COL_DATE = 2;
+    static final int COL_SHORT_DESC = 3;
+    static final int COL_CONDITION_ID = 4;
+    static final int COL_MIN_TEMP = 5;
+    static final int COL_MAX_TEMP = 6;
+    static final int COL_HUMIDITY = 7;
+    static final int COL_PRESSURE = 8;
+    static final int COL_WIND_SPEED = 9;
+    static final int COL_DEGREES = 10;
+    static final int COL_LOCATION_SETTING = 11;
+    static final int COL_CITY_NAME = 12;
+    static final int COL_COORD_LAT = 13;
+    static final int COL_COORD_LONG = 14;
+
+    private final long mLocationId;
+    private final String mLocationSetting;
+    private final String mCityName;
+    private final double mCoordLat;
+    private final double mCoordLong;
+
+    private final long[] mIds;
+    private final long[] mDates;
+    private final String[] mDescriptions;
+    private final int[] mWeatherIds;
+    private final double[] mLow;
+    private final double[] mHigh;
+    private final double[] mHumidity;
+    private final double[] mPressure;
+    private final double[] mWind;
+    private final double[] mDegrees;
+
+    private ForecastSnapshot(long locationId, String locationSetting, String cityName,
+                             double coordLat, double coordLong, long[] ids, long[] dates,
+                             String[] descriptions, int[] weatherIds, double[] low, double[] high,
+                             double[] humidity, double[] pressure, double[] wind,
+                             double[] degrees) {
+        mLocationId = locationId;
+        mLocationSetting = locationSetting;
+        mCityName = cityName;
+        mCoordLat = coordLat;
+        mCoordLong = coordLong;
+        mIds = ids;
+        mDates = dates;
+        mDescriptions = descriptions;
+        mWeatherIds = weatherIds;
+        mLow = low;
+        mHigh = high;
+        mHumidity = humidity;
+        mPressure = pressure;
+        mWind = wind;
+        mDegrees = degrees;
+    }
+
+    /**
+     * Reads the forecast of the location from the start date, from the provider's cached
+     * snapshot if it has one.  Don't call this on the main thread.
+     *
+     * @return the forecast, with no days if there are none from the start date.
+     */
+    public static ForecastSnapshot query(ContentResolver resolver, String locationSetting,
+                                         long startDate) {
+        long normalizedDate = WeatherContract.normalizeDate(startDate);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return callProvider(resolver, locationSetting, normalizedDate);
+        }
+        // Without call(), the provider can only hand it over as rows.
+        return queryRows(resolver,
+                WeatherEntry.buildWeatherLocationWithStartDate(locationSetting, normalizedDate));
+    }
+
+    /**
+     * Reads no more than the first days of the location's forecast from the start date,
+     * straight from the database, for those who only show today or the next few days and
+     * shouldn't make the provider read and cache all of it.  Don't call this on the main
+     * thread.
+     */
+    public static ForecastSnapshot query(ContentResolver resolver, String locationSetting,
+                                         long startDate, int limit) {
+        return queryRows(resolver, WeatherEntry.withLimit(
+                WeatherEntry.buildWeatherLocationWithStartDate(locationSetting, startDate),
+                limit));
+    }
+
+    /**
+     * Reads the location's forecast from the start date to the end date, both included,
+     * straight from the database.  Don't call this on the main thread.
+     */
+    public static ForecastSnapshot queryRange(ContentResolver resolver, String locationSetting,
+                                              long startDate, long endDate) {
+        return queryRows(resolver,
+                WeatherEntry.buildWeatherLocationWithRange(locationSetting, startDate, endDate));
+    }
+
+    private static ForecastSnapshot queryRows(ContentResolver resolver, Uri uri) {
+        Cursor cursor = resolver.query(uri, PROJECTION, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            return read(cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static ForecastSnapshot callProvider(ContentResolver resolver, String locationSetting,
+                                                 long startDate) {
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_START_DATE, startDate);
+        Bundle result = resolver.call(WeatherEntry.CONTENT_URI, METHOD_QUERY, locationSetting,
+                extras);
+        return result == null ? read(null) : fromBundle(result);
+    }
+
+    /**
+     * @param cursor the join, selected with {@link #PROJECTION} in date order, or null.
+     */
+    static ForecastSnapshot read(Cursor cursor) {
+        int count = cursor == null ? 0 : cursor.getCount();
+        long locationId = -1;
+        String locationSetting = null;
+        String cityName = null;
+        double coordLat = 0;
+        double coordLong = 0;
+        long[] ids = new long[count];
+        long[] dates = new long[count];
+        String[] descriptions = new String[count];
+        int[] weatherIds = new int[count];
+        double[] low = new double[count];
+        double[] high = new double[count];
+        double[] humidity = new double[count];
+        double[] pressure = new double[count];
+        double[] wind = new double[count];
+        double[] degrees = new double[count];
+
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            if (i == 0) {
+                locationId = cursor.getLong(COL_LOC_KEY);
+                locationSetting = cursor.getString(COL_LOCATION_SETTING);
+                cityName = cursor.getString(COL_CITY_NAME);
+                coordLat = cursor.getDouble(COL_COORD_LAT);
+                coordLong = cursor.getDouble(COL_COORD_LONG);
+            }
+            ids[i] = cursor.getLong(COL_WEATHER_ID);
+            dates[i] = cursor.getLong(COL_DATE);
+            descriptions[i] = cursor.getString(COL_SHORT_DESC);
+            weatherIds[i] = cursor.getInt(COL_CONDITION_ID);
+            low[i] = cursor.getDouble(COL_MIN_TEMP);
+            high[i] = cursor.getDouble(COL_MAX_TEMP);
+            humidity[i] = cursor.getDouble(COL_HUMIDITY);
+            pressure[i] = cursor.getDouble(COL_PRESSURE);
+            wind[i] = cursor.getDouble(COL_WIND_SPEED);
+            degrees[i] = cursor.getDouble(COL_DEGREES);
+        }
+        return new ForecastSnapshot(locationId, locationSetting, cityName, coordLat, coordLong,
+                ids, dates, descriptions, weatherIds, low, high, humidity, pressure, wind,
+                degrees);
+    }
+
+    /**
+     * @return the snapshot as the provider's call() hands it back.  The arrays aren't copied:
+     * within the app's own process the bundle is never parcelled.
+     */
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(KEY_LOCATION_ID, mLocationId);
+        bundle.putString(KEY_LOCATION_SETTING, mLocationSetting);
+        bundle.putString(KEY_CITY_NAME, mCityName);
+        bundle.putDouble(KEY_COORD_LAT, mCoordLat);
+        bundle.putDouble(KEY_COORD_LONG, mCoordLong);
+        bundle.putLongArray(KEY_IDS, mIds);
+        bundle.putLongArray(KEY_DATES, mDates);
+        bundle.putStringArray(KEY_DESCRIPTIONS, mDescriptions);
+        bundle.putIntArray(KEY_WEATHER_IDS, mWeatherIds);
+        bundle.putDoubleArray(KEY_LOW, mLow);
+        bundle.putDoubleArray(KEY_HIGH, mHigh);
+        bundle.putDoubleArray(KEY_HUMIDITY, mHumidity);
+        bundle.putDoubleArray(KEY_PRESSURE, mPressure);
+        bundle.putDoubleArray(KEY_WIND, mWind);
+        bundle.putDoubleArray(KEY_DEGREES, mDegrees);
+        return bundle;
+    }
+
+    private static ForecastSnapshot fromBundle(Bundle bundle) {
+        return new ForecastSnapshot(
+                bundle.getLong(KEY_LOCATION_ID),
+                bundle.getString(KEY_LOCATION_SETTING),
+                bundle.getString(KEY_CITY_NAME),
+                bundle.getDouble(KEY_COORD_LAT),
+                bundle.getDouble(KEY_COORD_LONG),
+                bundle.getLongArray(KEY_IDS),
+                bundle.getLongArray(KEY_DATES),
+                bundle.getStringArray(KEY_DESCRIPTIONS),
+                bundle.getIntArray(KEY_WEATHER_IDS),
+                bundle.getDoubleArray(KEY_LOW),
+                bundle.getDoubleArray(KEY_HIGH),
+                bundle.getDoubleArray(KEY_HUMIDITY),
+                bundle.getDoubleArray(KEY_PRESSURE),
+                bundle.getDoubleArray(KEY_WIND),
+                bundle.getDoubleArray(KEY_DEGREES));
+    }
+
+    /**
+     * @param names the cursor's column names.
+     * @param columns for each of them, the index of its column in {@link #PROJECTION}.
+     * @param date only the row of this day, or -1 for all of them.
+     * @return a cursor over the projection of the days, its columns named as SQLite would
+     * name them.
+     */
+    Cursor createCursor(String[] names, int[] columns, long date) {
+        MatrixCursor cursor = new MatrixCursor(names, date == -1 ? mDates.length : 1);
+        for (int i = 0; i < mDates.length; i++) {
+            if (date != -1 && mDates[i] != date) {
+                continue;
+            }
+            Object[] values = new Object[columns.length];
+            for (int c = 0; c < columns.length; c++) {
+                values[c] = getValue(i, columns[c]);
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private Object getValue(int day, int column) {
+        switch (column) {
+            case COL_WEATHER_ID:
+                return mIds[day];
+            case COL_LOC_KEY:
+                return mLocationId;
+            case COL_DATE:
+                return mDates[day];
+            case COL_SHORT_DESC:
+                return mDescriptions[day];
+            case COL_CONDITION_ID:
+                return mWeatherIds[day];
+            case COL_MIN_TEMP:
+                return mLow[day];
+            case COL_MAX_TEMP:
+                return mHigh[day];
+            case COL_HUMIDITY:
+                return mHumidity[day];
+            case COL_PRESSURE:
+                return mPressure[day];
+            case COL_WIND_SPEED:
+                return mWind[day];
+            case COL_DEGREES:
+                return mDegrees[day];
+            case COL_LOCATION_SETTING:
+                return mLocationSetting;
+            case COL_CITY_NAME:
+                return mCityName;
+            case COL_COORD_LAT:
+                return mCoordLat;
+            case COL_COORD_LONG:
+                return mCoordLong;
+            default:
+                throw new IllegalArgumentException("Unknown column: " + column);
+        }
+    }
+
+    /**
+     * @return the number of days.
+     */
+    public int size() {
+        return mDates.length;
+    }
+
+    public boolean isEmpty() {
+        return mDates.length == 0;
+    }
+
+    /**
+     * @return the index of the day with the given (normalized) date, or -1.
+     */
+    public int indexOf(long date) {
+        for (int i = 0; i < mDates.length; i++) {
+            if (mDates[i] == date) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the location's row ID, or -1 if there are no days.
+     */
+    public long getLocationId() {
+        return mLocationId;
+    }
+
+    /**
+     * @return the location setting, or null if there are no days.
+     */
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    public String getCityName() {
+        return mCityName;
+    }
+
+    public double getCoordLat() {
+        return mCoordLat;
+    }
+
+    public double getCoordLong() {
+        return mCoordLong;
+    }
+
+    public long getId(int day) {
+        return mIds[day];
+    }
+
+    public long getDate(int day) {
+        return mDates[day];
+    }
+
+    public String getDescription(int day) {
+        return mDescriptions[day];
+    }
+
+    public int getWeatherId(int day) {
+        return mWeatherIds[day];
+    }
+
+    public double getLow(int day) {
+        return mLow[day];
+    }
+
+    public double getHigh(int day) {
+        return mHigh[day];
+    }
+
+    public double getHumidity(int day) {
+        return mHumidity[day];
+    }
+
+    public double getPressure(int day) {
+        return mPressure[day];
+    }
+
+    public double getWindSpeed(int day) {
+        return mWind[day];
+    }
+
+    public double getDegrees(int day) {
+        return mDegrees[day];
+    }
+}
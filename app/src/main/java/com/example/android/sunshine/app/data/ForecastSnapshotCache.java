@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * Keeps the forecast of a location from a start date in memory, as the provider last read it,
+ * so the views that all ask for the same rows right after a sync only cost one query between
+ * them.  A {@link ForecastSnapshot} never changes; a write to its location (or to anything the
+ * provider can't pin to a location) drops it.
+ */
+class ForecastSnapshotCache extends LocationKeyedCache<ForecastSnapshot> {
+
+    // The preferred location from today, and the few other locations or start dates the
+    // detail views ask for.
+    private static final int MAX_SNAPSHOTS = 16;
+
+    // A snapshot is meant for a forecast, not a location's whole history.
+    static final int MAX_ROWS = 64;
+
+    // A snapshot runs to the location's last day.
+    private static final long NO_END_DATE = Long.MAX_VALUE;
+
+    ForecastSnapshotCache() {
+        super(MAX_SNAPSHOTS);
+    }
+
+    /**
+     * @return the snapshot of the location's rows from the start date.  For a single day any
+     * snapshot of the location that starts on or before it will do.  Null if there's none, or
+     * the cache is off.
+     */
+    ForecastSnapshot get(String locationSetting, long startDate, boolean singleDay) {
+        return get(locationSetting, startDate, NO_END_DATE, singleDay);
+    }
+
+    /**
+     * Keeps the snapshot, unless there was a write since the generation was taken.
+     */
+    void put(String locationSetting, long startDate, ForecastSnapshot snapshot,
+             long generation) {
+        put(locationSetting, startDate, NO_END_DATE, snapshot, generation);
+    }
+
+    /**
+     * @return for each column of the projection, its index in
+     * {@link ForecastSnapshot#PROJECTION}.  Null if there's no projection, or it asks for
+     * anything but plain columns of the join (SQLite has the last word on those).
+     */
+    static int[] getColumnIndices(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = getColumnIndex(projection[i]);
+            if (columns[i] == -1) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    private static int getColumnIndex(String column) {
+        if (column.equals(WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID)) {
+            return ForecastSnapshot.COL_WEATHER_ID;
+        }
+        if (column.equals(LocationEntry.TABLE_NAME + "." + LocationEntry._ID)) {
+            return ForecastSnapshot.COL_LOC_KEY;
+        }
+        if (column.equals(WeatherEntry._ID)) {
+            // Ambiguous in the join
+            return -1;
+        }
+        String name = getColumnName(column);
+        for (int i = 0; i < ForecastSnapshot.PROJECTION.length; i++) {
+            if (i != ForecastSnapshot.COL_WEATHER_ID
+                    && ForecastSnapshot.PROJECTION[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the names SQLite would give the projection's columns: without their table.
+     */
+    static String[] getColumnNames(String[] projection) {
+        String[] names = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            names[i] = getColumnName(projection[i]);
+        }
+        return names;
+    }
+
+    private static String getColumnName(String column) {
+        if (column.startsWith(WeatherEntry.TABLE_NAME + ".")) {
+            return column.substring(WeatherEntry.TABLE_NAME.length() + 1);
+        }
+        if (column.startsWith(LocationEntry.TABLE_NAME + ".")) {
+            return column.substring(LocationEntry.TABLE_NAME.length() + 1);
+        }
+        return column;
+    }
+
+    /**
+     * @return true if rows sorted this way come in the order a snapshot keeps them.
+     */
+    static boolean isDateOrder(String sortOrder) {
+        if (sortOrder == null) {
+            // The (location_id, date) index gives a location's days in date order.
+            return true;
+        }
+        String order = sortOrder.trim();
+        return order.equalsIgnoreCase(WeatherEntry.COLUMN_DATE)
+                || order.equalsIgnoreCase(WeatherEntry.COLUMN_DATE + " ASC");
+    }
+}
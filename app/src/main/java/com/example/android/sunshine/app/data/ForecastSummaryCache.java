@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+/**
+ * Keeps the summaries the provider last computed, so the week and month views asking for the
+ * same ranges again don't make SQLite go over the days again until they change.  A summary is
+ * a row that mustn't be changed, kept under its location and dates.
+ */
+class ForecastSummaryCache extends LocationKeyedCache<Object[]> {
+
+    // A few weeks or months of the preferred location, and then some
+    private static final int MAX_SUMMARIES = 64;
+
+    ForecastSummaryCache() {
+        super(MAX_SUMMARIES);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.ChangeEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The steps the provider takes to bring the history in line with a {@link RetentionPolicy}:
+ * the oldest week past the window is rolled from the weather table into the archive, the
+ * oldest month past the weekly period from the archive's weeks into a month, the months
+ * past the monthly period dropped, and the change log of the days gone by pruned.  Always
+ * the oldest first, so a run that's cut short picks up where it left off.
+ *
+ * A week or a month is only rolled up once all of its days are past, so it's summed up from
+ * all of them in one go.
+ */
+class HistoryCompactor {
+
+    // Change log rows deleted per step
+    static final int CHANGE_BATCH_SIZE = 500;
+
+    /**
+     * What a step changed.
+     */
+    static final class Step {
+        // The location whose days were rolled up, or -1 for a step on no one location
+        final long locationId;
+        // The days deleted from the weather table
+        final List<Long> dates;
+        final boolean archiveChanged;
+
+        Step(long locationId, List<Long> dates, boolean archiveChanged) {
+            this.locationId = locationId;
+            this.dates = dates;
+            this.archiveChanged = archiveChanged;
+        }
+    }
+
+    //location_id = ? AND period = ? AND start_date = ?
+    private static final String sPeriodSelection =
+            ArchiveEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    ArchiveEntry.COLUMN_PERIOD + " = ? AND " +
+                    ArchiveEntry.COLUMN_START_DATE + " = ? ";
+
+    // The weeks of a month, summed up the way the weeks sum up their days.  The weather id of
+    // the most days goes by the weeks it was the weather id of, which is as close as the
+    // weeks can tell.  Takes the location's ID, the month's first day and the next month's
+    // first day, twice.
+    private static final String sMonthQuery =
+            "SELECT SUM(" + ArchiveEntry.COLUMN_DAYS + "), " +
+                    "MIN(" + ArchiveEntry.COLUMN_MIN_TEMP + "), " +
+                    "MAX(" + ArchiveEntry.COLUMN_MAX_TEMP + "), " +
+                    weightedAverage(ArchiveEntry.COLUMN_AVG_MIN_TEMP) + ", " +
+                    weightedAverage(ArchiveEntry.COLUMN_AVG_MAX_TEMP) + ", " +
+                    weightedAverage(ArchiveEntry.COLUMN_AVG_HUMIDITY) + ", " +
+                    weightedAverage(ArchiveEntry.COLUMN_AVG_PRESSURE) + ", " +
+                    "(SELECT " + ArchiveEntry.COLUMN_WEATHER_ID +
+                    " FROM " + ArchiveEntry.TABLE_NAME +
+                    " WHERE " + weeksOfMonth() +
+                    " GROUP BY " + ArchiveEntry.COLUMN_WEATHER_ID +
+                    " ORDER BY SUM(" + ArchiveEntry.COLUMN_DAYS + ") DESC, " +
+                    ArchiveEntry.COLUMN_WEATHER_ID + " ASC LIMIT 1)" +
+                    " FROM " + ArchiveEntry.TABLE_NAME +
+                    " WHERE " + weeksOfMonth();
+
+    // Where the days, min, max, average min, average max, average humidity, average pressure
+    // and weather id of a period are: in a row of the provider's sSummaryQuery, which sums up
+    // a week's days, and in one of sMonthQuery
+    private static final int[] sWeekColumns = {0, 1, 2, 3, 4, 7, 10, 11};
+    private static final int[] sMonthColumns = {0, 1, 2, 3, 4, 5, 6, 7};
+
+    private final SQLiteDatabase mDb;
+    private final EpochDays mDays;
+    // Today, as a local day
+    private final int mToday;
+    // The first day kept at full resolution, the first one kept a week to a row, and the
+    // first one kept at all
+    private final int mWindowStart;
+    private final int mWeeksStart;
+    private final int mMonthsStart;
+
+    HistoryCompactor(SQLiteDatabase db, EpochDays days, RetentionPolicy policy, long now) {
+        mDb = db;
+        mDays = days;
+        mToday = days.toEpochDay(now);
+        mWindowStart = mToday - policy.getWindowDays();
+        mWeeksStart = mWindowStart - 7 * policy.getWeeklyWeeks();
+        int monthsStart = EpochDays.getMonthStart(mWeeksStart);
+        for (int i = 0; i < policy.getMonthlyMonths(); i++) {
+            monthsStart = EpochDays.getMonthStart(monthsStart - 1);
+        }
+        mMonthsStart = monthsStart;
+    }
+
+    /**
+     * Takes the next step.  Call it in a transaction of its own.
+     *
+     * @return what the step changed, or null if there's nothing left to do.
+     */
+    Step compactNext() {
+        Step step = rollUpOldestWeek();
+        if (step == null) {
+            step = rollUpOldestMonth();
+        }
+        if (step == null) {
+            step = dropOldMonths();
+        }
+        if (step == null) {
+            step = pruneChanges();
+        }
+        return step;
+    }
+
+    private Step rollUpOldestWeek() {
+        // On the date index: the oldest day of any location
+        Cursor cursor = mDb.query(WeatherEntry.TABLE_NAME,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY, WeatherEntry.COLUMN_DATE},
+                WeatherEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(mDays.toMillis(mWindowStart))},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC", "1");
+        long locationId;
+        int day;
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            locationId = cursor.getLong(0);
+            day = mDays.toEpochDay(cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+        int weekStart = EpochDays.getWeekStart(day);
+        int start = Math.max(weekStart, EpochDays.getMonthStart(day));
+        int end = Math.min(weekStart + 7, EpochDays.getNextMonthStart(day));
+        if (end > mWindowStart) {
+            // Not over yet, and every other location's oldest week is no older.
+            return null;
+        }
+
+        String location = Long.toString(locationId);
+        String startDate = Long.toString(mDays.toMillis(start));
+        String endDate = Long.toString(mDays.toMillis(end) - 1);
+        String[] rangeArgs = {location, startDate, endDate};
+        List<Long> dates = new ArrayList<Long>(7);
+        cursor = mDb.query(WeatherEntry.TABLE_NAME, new String[]{WeatherEntry.COLUMN_DATE},
+                WeatherProvider.sLocationIdWithDateRangeSelection, rangeArgs,
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                dates.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = mDb.rawQuery(WeatherProvider.sSummaryQuery,
+                new String[]{location, startDate, endDate, location, startDate, endDate});
+        try {
+            cursor.moveToFirst();
+            writePeriod(locationId, ArchiveEntry.PERIOD_WEEK, start, end, cursor, sWeekColumns);
+        } finally {
+            cursor.close();
+        }
+        mDb.delete(WeatherEntry.TABLE_NAME, WeatherProvider.sLocationIdWithDateRangeSelection,
+                rangeArgs);
+        // Those the delete just added too: no one asks for the changes of days gone by.
+        mDb.delete(ChangeEntry.TABLE_NAME, WeatherProvider.sLocationIdWithDateRangeSelection,
+                rangeArgs);
+        return new Step(locationId, dates, true);
+    }
+
+    private Step rollUpOldestMonth() {
+        Cursor cursor = mDb.query(ArchiveEntry.TABLE_NAME,
+                new String[]{ArchiveEntry.COLUMN_LOC_KEY, ArchiveEntry.COLUMN_START_DATE},
+                ArchiveEntry.COLUMN_PERIOD + " = ? AND " + ArchiveEntry.COLUMN_START_DATE + " < ?",
+                new String[]{Integer.toString(ArchiveEntry.PERIOD_WEEK),
+                        Long.toString(mDays.toMillis(mWeeksStart))},
+                null, null, ArchiveEntry.COLUMN_START_DATE + " ASC", "1");
+        long locationId;
+        int day;
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            locationId = cursor.getLong(0);
+            day = mDays.toEpochDay(cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+        int start = EpochDays.getMonthStart(day);
+        int end = EpochDays.getNextMonthStart(day);
+        if (end > mWeeksStart) {
+            return null;
+        }
+
+        String location = Long.toString(locationId);
+        String startDate = Long.toString(mDays.toMillis(start));
+        String endDate = Long.toString(mDays.toMillis(end));
+        String[] monthArgs = {location, startDate, endDate};
+        cursor = mDb.rawQuery(sMonthQuery,
+                new String[]{location, startDate, endDate, location, startDate, endDate});
+        try {
+            cursor.moveToFirst();
+            writePeriod(locationId, ArchiveEntry.PERIOD_MONTH, start, end, cursor,
+                    sMonthColumns);
+        } finally {
+            cursor.close();
+        }
+        mDb.delete(ArchiveEntry.TABLE_NAME, weeksOfMonth(), monthArgs);
+        return new Step(locationId, Collections.<Long>emptyList(), true);
+    }
+
+    private Step dropOldMonths() {
+        int deleted = mDb.delete(ArchiveEntry.TABLE_NAME,
+                ArchiveEntry.COLUMN_PERIOD + " = ? AND " + ArchiveEntry.COLUMN_START_DATE + " < ?",
+                new String[]{Integer.toString(ArchiveEntry.PERIOD_MONTH),
+                        Long.toString(mDays.toMillis(mMonthsStart))});
+        return deleted == 0 ? null : new Step(-1, Collections.<Long>emptyList(), true);
+    }
+
+    private Step pruneChanges() {
+        // SQLite's DELETE takes no LIMIT unless it was built to, so the batch is selected.
+        int deleted = mDb.delete(ChangeEntry.TABLE_NAME,
+                ChangeEntry._ID + " IN (SELECT " + ChangeEntry._ID +
+                        " FROM " + ChangeEntry.TABLE_NAME +
+                        " WHERE " + ChangeEntry.COLUMN_DATE + " < ? LIMIT " +
+                        CHANGE_BATCH_SIZE + ")",
+                new String[]{Long.toString(mDays.toMillis(mToday))});
+        return deleted == 0 ? null : new Step(-1, Collections.<Long>emptyList(), false);
+    }
+
+    /**
+     * Writes the period's row, summed up by the cursor, merged with the row the period
+     * already has, if any: the days of a period don't all have to go past at once, if the
+     * policy was changed say.
+     */
+    private void writePeriod(long locationId, int period, int start, int end, Cursor summary,
+                             int[] columns) {
+        int days = summary.getInt(columns[0]);
+        if (days == 0) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(ArchiveEntry.COLUMN_LOC_KEY, locationId);
+        values.put(ArchiveEntry.COLUMN_PERIOD, period);
+        values.put(ArchiveEntry.COLUMN_START_DATE, mDays.toMillis(start));
+        values.put(ArchiveEntry.COLUMN_END_DATE, mDays.toMillis(end - 1));
+        values.put(ArchiveEntry.COLUMN_DAYS, days);
+        String[] doubles = {ArchiveEntry.COLUMN_MIN_TEMP, ArchiveEntry.COLUMN_MAX_TEMP,
+                ArchiveEntry.COLUMN_AVG_MIN_TEMP, ArchiveEntry.COLUMN_AVG_MAX_TEMP,
+                ArchiveEntry.COLUMN_AVG_HUMIDITY, ArchiveEntry.COLUMN_AVG_PRESSURE};
+        for (int i = 0; i < doubles.length; i++) {
+            values.put(doubles[i], summary.getDouble(columns[i + 1]));
+        }
+        values.put(ArchiveEntry.COLUMN_WEATHER_ID, summary.getInt(columns[7]));
+
+        Cursor existing = mDb.query(ArchiveEntry.TABLE_NAME, null, sPeriodSelection,
+                new String[]{Long.toString(locationId), Integer.toString(period),
+                        Long.toString(mDays.toMillis(start))},
+                null, null, null);
+        try {
+            if (existing.moveToFirst()) {
+                merge(values, existing);
+            }
+        } finally {
+            existing.close();
+        }
+        // Replaces the existing row, by the UNIQUE constraint
+        mDb.insertOrThrow(ArchiveEntry.TABLE_NAME, null, values);
+    }
+
+    private static void merge(ContentValues values, Cursor existing) {
+        int days = values.getAsInteger(ArchiveEntry.COLUMN_DAYS);
+        int existingDays = existing.getInt(existing.getColumnIndex(ArchiveEntry.COLUMN_DAYS));
+        values.put(ArchiveEntry.COLUMN_DAYS, days + existingDays);
+        values.put(ArchiveEntry.COLUMN_MIN_TEMP,
+                Math.min(values.getAsDouble(ArchiveEntry.COLUMN_MIN_TEMP),
+                        getDouble(existing, ArchiveEntry.COLUMN_MIN_TEMP)));
+        values.put(ArchiveEntry.COLUMN_MAX_TEMP,
+                Math.max(values.getAsDouble(ArchiveEntry.COLUMN_MAX_TEMP),
+                        getDouble(existing, ArchiveEntry.COLUMN_MAX_TEMP)));
+        String[] averages = {ArchiveEntry.COLUMN_AVG_MIN_TEMP, ArchiveEntry.COLUMN_AVG_MAX_TEMP,
+                ArchiveEntry.COLUMN_AVG_HUMIDITY, ArchiveEntry.COLUMN_AVG_PRESSURE};
+        for (String column : averages) {
+            values.put(column, (values.getAsDouble(column) * days
+                    + getDouble(existing, column) * existingDays) / (days + existingDays));
+        }
+        if (existingDays > days) {
+            values.put(ArchiveEntry.COLUMN_WEATHER_ID, existing.getInt(
+                    existing.getColumnIndex(ArchiveEntry.COLUMN_WEATHER_ID)));
+        }
+    }
+
+    private static double getDouble(Cursor cursor, String column) {
+        return cursor.getDouble(cursor.getColumnIndex(column));
+    }
+
+    private static String weightedAverage(String column) {
+        return "SUM(" + column + " * " + ArchiveEntry.COLUMN_DAYS + ") / SUM(" +
+                ArchiveEntry.COLUMN_DAYS + ")";
+    }
+
+    //location_id = ? AND period = PERIOD_WEEK AND start_date >= ? AND start_date < ?
+    private static String weeksOfMonth() {
+        return ArchiveEntry.COLUMN_LOC_KEY + " = ? AND " +
+                ArchiveEntry.COLUMN_PERIOD + " = " + ArchiveEntry.PERIOD_WEEK + " AND " +
+                ArchiveEntry.COLUMN_START_DATE + " >= ? AND " +
+                ArchiveEntry.COLUMN_START_DATE + " < ? ";
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The row ID of each location setting, and the other way round, so the sync doesn't need a
+ * query to turn the same location setting into the same ID on every sync, and the provider
+ * doesn't need one to turn a weather row's location ID back into the setting it notifies, or
+ * a weather/[location] query's setting into the ID it selects on.
+ *
+ * One per process, like the database.  Only the provider fills it: from inside its write
+ * transactions, and from its reads as long as no location was changed since they began, so
+ * it never holds an ID that wasn't in the table at the time.  An update or delete of any
+ * location, or a write that's rolled back, empties it.
+ */
+public final class LocationIdCache {
+
+    private static final LocationIdCache sInstance = new LocationIdCache();
+
+    private final Map<String, Long> mIds = new HashMap<String, Long>();
+    private final Map<Long, String> mLocationSettings = new HashMap<Long, String>();
+
+    private long mGeneration;
+    private boolean mEnabled = true;
+    private long mHitCount;
+    private long mMissCount;
+
+    private LocationIdCache() {
+    }
+
+    public static LocationIdCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the row ID of the location, or -1 if it isn't known.  It may not be in the
+     * table anymore if it was deleted since, as with any ID read earlier.
+     */
+    public synchronized long getLocationId(String locationSetting) {
+        Long id = mEnabled ? mIds.get(locationSetting) : null;
+        if (id == null) {
+            mMissCount++;
+            return -1;
+        }
+        mHitCount++;
+        return id;
+    }
+
+    /**
+     * @return the location setting of the row ID, or null if it isn't known.
+     */
+    synchronized String getLocationSetting(long locationId) {
+        return mEnabled ? mLocationSettings.get(locationId) : null;
+    }
+
+    /**
+     * Call this with the location's row in the current transaction.
+     */
+    synchronized void put(String locationSetting, long locationId) {
+        if (mEnabled) {
+            mIds.put(locationSetting, locationId);
+            mLocationSettings.put(locationId, locationSetting);
+        }
+    }
+
+    /**
+     * @return the generation to hand to {@link #put(String, long, long)} for an ID about to be
+     * read.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Keeps the ID read outside a write transaction, unless a location was changed since the
+     * generation was taken.
+     */
+    synchronized void put(String locationSetting, long locationId, long generation) {
+        if (generation == mGeneration) {
+            put(locationSetting, locationId);
+        }
+    }
+
+    synchronized void invalidate() {
+        mGeneration++;
+        mIds.clear();
+        mLocationSettings.clear();
+    }
+
+    synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            invalidate();
+        }
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.net.Uri;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps what the provider last read for a location's dates, least recently used first, and
+ * drops it when a write to the location (or to anything the provider can't pin to a location)
+ * could have made it out of date.
+ *
+ * Reads and writes race: a value read before a write was committed mustn't be kept after the
+ * write dropped the old one.  So every write moves the generation on, and a value is only kept
+ * if the generation is still the one from before it was read.
+ */
+class LocationKeyedCache<V> {
+
+    private static final class Key {
+        final String locationSetting;
+        final long startDate;
+        final long endDate;
+
+        Key(String locationSetting, long startDate, long endDate) {
+            this.locationSetting = locationSetting;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return startDate == other.startDate && endDate == other.endDate
+                    && locationSetting.equals(other.locationSetting);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = locationSetting.hashCode();
+            hash = 31 * hash + (int) (startDate ^ (startDate >>> 32));
+            return 31 * hash + (int) (endDate ^ (endDate >>> 32));
+        }
+    }
+
+    private final LinkedHashMap<Key, V> mEntries;
+
+    private long mGeneration;
+    private boolean mEnabled = true;
+    private long mHitCount;
+    private long mMissCount;
+
+    LocationKeyedCache(final int maxEntries) {
+        mEntries = new LinkedHashMap<Key, V>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the value kept for the location's dates, or null if there's none or the cache is
+     * off.
+     */
+    synchronized V get(String locationSetting, long startDate, long endDate) {
+        return get(locationSetting, startDate, endDate, false);
+    }
+
+    /**
+     * @param orEarlierStart whether, failing the exact dates, any value of the location with
+     *                       the same end date and an earlier start date will do
+     */
+    synchronized V get(String locationSetting, long startDate, long endDate,
+                       boolean orEarlierStart) {
+        if (!mEnabled) {
+            return null;
+        }
+        V value = mEntries.get(new Key(locationSetting, startDate, endDate));
+        if (value == null && orEarlierStart) {
+            for (Map.Entry<Key, V> entry : mEntries.entrySet()) {
+                Key key = entry.getKey();
+                if (key.startDate <= startDate && key.endDate == endDate
+                        && key.locationSetting.equals(locationSetting)) {
+                    value = entry.getValue();
+                    break;
+                }
+            }
+        }
+        if (value == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return value;
+    }
+
+    /**
+     * @return the generation to hand to {@link #put} for a value about to be read.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Keeps the value, unless there was a write since the generation was taken.
+     */
+    synchronized void put(String locationSetting, long startDate, long endDate, V value,
+                          long generation) {
+        if (mEnabled && generation == mGeneration) {
+            mEntries.put(new Key(locationSetting, startDate, endDate), value);
+        }
+    }
+
+    /**
+     * Drops the values a change to the URI could have made out of date: those of its location
+     * for weather/[location] and below, all of them for anything else.
+     */
+    synchronized void invalidate(Uri uri) {
+        mGeneration++;
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2 || !WeatherContract.PATH_WEATHER.equals(segments.get(0))) {
+            mEntries.clear();
+            return;
+        }
+        String locationSetting = segments.get(1);
+        Iterator<Key> keys = mEntries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().locationSetting.equals(locationSetting)) {
+                keys.remove();
+            }
+        }
+    }
+
+    synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            mEntries.clear();
+        }
+    }
+
+    synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.os.Build;
+import android.os.Bundle;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * How long the weather history is kept, and how finely.  The days before today are kept as
+ * they are for the window, then summed up a week to a row in the archive, then a month to a
+ * row, and in the end dropped.  So the database holds a bounded number of rows per location
+ * however long the app runs.
+ *
+ * {@link #compact} does the rolling up in small steps, each a transaction of its own, so it
+ * can run behind the sync without holding up the next one.
+ */
+public final class RetentionPolicy {
+
+    // Every day of the last month, at full resolution
+    public static final int WINDOW_DAYS = 31;
+    // Then the weeks of the last quarter before that
+    public static final int WEEKLY_WEEKS = 13;
+    // Then the months of two years before that
+    public static final int MONTHLY_MONTHS = 24;
+
+    public static final RetentionPolicy DEFAULT =
+            new RetentionPolicy(WINDOW_DAYS, WEEKLY_WEEKS, MONTHLY_MONTHS);
+
+    // The provider's call() method behind compact(), and its arguments and result
+    static final String METHOD_COMPACT = "compactHistory";
+    static final String EXTRA_NOW = "now";
+    static final String EXTRA_MAX_STEPS = "maxSteps";
+    static final String EXTRA_WINDOW_DAYS = "windowDays";
+    static final String EXTRA_WEEKLY_WEEKS = "weeklyWeeks";
+    static final String EXTRA_MONTHLY_MONTHS = "monthlyMonths";
+    static final String KEY_STEPS = "steps";
+
+    private final int mWindowDays;
+    private final int mWeeklyWeeks;
+    private final int mMonthlyMonths;
+
+    /**
+     * @param windowDays how many days before today are kept at full resolution.
+     * @param weeklyWeeks how many weeks before those are kept a week to a row.
+     * @param monthlyMonths how many months before those are kept a month to a row.
+     */
+    public RetentionPolicy(int windowDays, int weeklyWeeks, int monthlyMonths) {
+        if (windowDays < 0 || weeklyWeeks < 0 || monthlyMonths < 0) {
+            throw new IllegalArgumentException("Negative retention: " + windowDays + ", " +
+                    weeklyWeeks + ", " + monthlyMonths);
+        }
+        mWindowDays = windowDays;
+        mWeeklyWeeks = weeklyWeeks;
+        mMonthlyMonths = monthlyMonths;
+    }
+
+    public int getWindowDays() {
+        return mWindowDays;
+    }
+
+    public int getWeeklyWeeks() {
+        return mWeeklyWeeks;
+    }
+
+    public int getMonthlyMonths() {
+        return mMonthlyMonths;
+    }
+
+    /**
+     * Rolls up the history that went past the policy's periods as of now, in no more than the
+     * given number of steps.  A step is a week or a month of one location, or a batch of the
+     * change log.  Don't call this on the main thread.
+     *
+     * @return the steps taken: fewer than maxSteps once there's nothing left to do.
+     */
+    public int compact(ContentResolver resolver, long now, int maxSteps) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return callProvider(resolver, now, maxSteps);
+        }
+        return compactLocally(now, maxSteps);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private int callProvider(ContentResolver resolver, long now, int maxSteps) {
+        Bundle result = resolver.call(WeatherEntry.CONTENT_URI, METHOD_COMPACT, null,
+                toBundle(now, maxSteps));
+        return result == null ? 0 : result.getInt(KEY_STEPS);
+    }
+
+    /**
+     * Runs the compaction on the provider of this process, which is where the sync runs: there's
+     * no call() to reach it through before Honeycomb.  Package-private for the tests.
+     */
+    int compactLocally(long now, int maxSteps) {
+        WeatherProvider provider = WeatherProvider.getLocalInstance();
+        if (provider == null) {
+            return 0;
+        }
+        return provider.compactHistory(toBundle(now, maxSteps)).getInt(KEY_STEPS);
+    }
+
+    private Bundle toBundle(long now, int maxSteps) {
+        Bundle extras = toBundle();
+        extras.putLong(EXTRA_NOW, now);
+        extras.putInt(EXTRA_MAX_STEPS, maxSteps);
+        return extras;
+    }
+
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putInt(EXTRA_WINDOW_DAYS, mWindowDays);
+        bundle.putInt(EXTRA_WEEKLY_WEEKS, mWeeklyWeeks);
+        bundle.putInt(EXTRA_MONTHLY_MONTHS, mMonthlyMonths);
+        return bundle;
+    }
+
+    static RetentionPolicy fromBundle(Bundle bundle) {
+        return new RetentionPolicy(bundle.getInt(EXTRA_WINDOW_DAYS, WINDOW_DAYS),
+                bundle.getInt(EXTRA_WEEKLY_WEEKS, WEEKLY_WEEKS),
+                bundle.getInt(EXTRA_MONTHLY_MONTHS, MONTHLY_MONTHS));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+
+import com.example.android.sunshine.app.data.WeatherContract.ChangeEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+
+/**
+ * Reads the change log for one consumer of the weather, such as a widget, so it can tell
+ * whether the days it shows were written since it last showed them.  The consumer asks
+ * {@link #hasChanged} before it does its work, and calls {@link #markSeen} once it's done; a
+ * consumer that stops halfway sees the same changes again next time.
+ *
+ * The sequence number seen last is kept in preferences of the consumer's own, along with the
+ * location and start date it was for: a different location or day is always a change.
+ */
+public class WeatherChangeTracker {
+
+    private static final String PREFS_SEQUENCE = "sequence";
+    private static final String PREFS_LOCATION_SETTING = "location_setting";
+    private static final String PREFS_START_DATE = "start_date";
+
+    private static final String[] CHANGE_COLUMNS = {
+            ChangeEntry._ID,
+            ChangeEntry.COLUMN_DATE,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+    private static final int COL_SEQUENCE = 0;
+    private static final int COL_DATE = 1;
+    private static final int COL_LOCATION_SETTING = 2;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    // What hasChanged read, for markSeen to keep
+    private long mLatestSequence;
+    private String mLocationSetting;
+    private long mStartDate;
+
+    /**
+     * @param consumer a name that's the consumer's alone, such as its class name.
+     */
+    public WeatherChangeTracker(Context context, String consumer) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(
+                WeatherChangeTracker.class.getName() + "." + consumer, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Reads the changes logged since the consumer's last {@link #markSeen}.
+     *
+     * @return true if any of them was for the location between the two dates (inclusive), or
+     * if the consumer hasn't seen this location from this date yet.
+     */
+    public boolean hasChanged(String locationSetting, long startDate, long endDate) {
+        startDate = WeatherContract.normalizeDate(startDate);
+        endDate = WeatherContract.normalizeDate(endDate);
+        long sequence = mPrefs.getLong(PREFS_SEQUENCE, 0);
+        boolean changed = sequence == 0
+                || !locationSetting.equals(mPrefs.getString(PREFS_LOCATION_SETTING, null))
+                || startDate != mPrefs.getLong(PREFS_START_DATE, 0);
+
+        mLatestSequence = sequence;
+        mLocationSetting = locationSetting;
+        mStartDate = startDate;
+
+        // All of them, not just this location's, so the latest sequence number comes along.
+        Cursor cursor = mContext.getContentResolver().query(
+                ChangeEntry.buildChangesSinceUri(sequence), CHANGE_COLUMNS, null, null, null);
+        if (cursor == null) {
+            return true;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                mLatestSequence = Math.max(mLatestSequence, cursor.getLong(COL_SEQUENCE));
+                long date = cursor.getLong(COL_DATE);
+                if (!changed && date >= startDate && date <= endDate
+                        && locationSetting.equals(cursor.getString(COL_LOCATION_SETTING))) {
+                    changed = true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return changed;
+    }
+
+    /**
+     * Remembers everything {@link #hasChanged} read as seen.
+     */
+    public void markSeen() {
+        if (mLocationSetting == null) {
+            throw new IllegalStateException("markSeen called before hasChanged");
+        }
+        mPrefs.edit()
+                .putLong(PREFS_SEQUENCE, mLatestSequence)
+                .putString(PREFS_LOCATION_SETTING, mLocationSetting)
+                .putLong(PREFS_START_DATE, mStartDate)
+                .apply();
+    }
+}
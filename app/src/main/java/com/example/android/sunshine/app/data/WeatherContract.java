@@ -19,7 +19,6 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
 
 /**
  * Defines table and column names for the weather database.
@@ -43,15 +42,17 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_SYNC_LOG = "sync_log";
+    public static final String PATH_RANGE = "range";
+    public static final String PATH_SUMMARY = "summary";
+    public static final String PATH_ARCHIVE = "archive";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
-    // the database to the start of the the Julian day at UTC.
+    // the database to the start of the local day.  This runs for every row written, so it
+    // doesn't allocate.
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        return EpochDays.getDefault().normalize(startDate);
     }
 
     /* Inner class that defines the table contents of the location table */
@@ -99,7 +100,9 @@ public class WeatherContract {
 
         public static final String TABLE_NAME = "weather";
 
-        // Column with the foreign key into the location table.
+        // Column with the foreign key into the location table.  A row inserted with the
+        // LocationEntry columns in its place gets the ID of that location, which is added or
+        // brought up to date in the same transaction as the row.
         public static final String COLUMN_LOC_KEY = "location_id";
         // Date, stored as long in milliseconds since the epoch
         public static final String COLUMN_DATE = "date";
@@ -126,6 +129,9 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // Query parameter of the weather/[location] queries: at most this many days
+        public static final String PARAM_LIMIT = "limit";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -149,6 +155,26 @@ public class WeatherContract {
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        /**
+         * @return weather/[location]/range/[start]/[end], the days from the start date to the
+         * end date, both included.
+         */
+        public static Uri buildWeatherLocationWithRange(String locationSetting, long startDate,
+                                                        long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).appendPath(PATH_RANGE)
+                    .appendPath(Long.toString(normalizeDate(startDate)))
+                    .appendPath(Long.toString(normalizeDate(endDate))).build();
+        }
+
+        /**
+         * @return the weather/[location] query of the URI, for no more than the first days of
+         * it.
+         */
+        public static Uri withLimit(Uri uri, int limit) {
+            return uri.buildUpon()
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
@@ -164,5 +190,228 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        public static long getRangeStartFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(3));
+        }
+
+        public static long getRangeEndFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(4));
+        }
+
+        /**
+         * @return the most days the query may return, or 0 if there's no limit.
+         */
+        public static int getLimitFromUri(Uri uri) {
+            String limitString = uri.getQueryParameter(PARAM_LIMIT);
+            if (null != limitString && limitString.length() > 0)
+                return Integer.parseInt(limitString);
+            else
+                return 0;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the change log: one row for every write
+        to a weather row, filled in by the database itself.  The _ID is the sequence number of
+        the change, and only ever goes up.
+     */
+    public static final class ChangeEntry implements BaseColumns {
+
+        // A path of its own, so it can't be taken for weather/[location] nor hide a location
+        // called "changes"
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_CHANGES).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+
+        public static final String TABLE_NAME = "weather_changes";
+
+        // The location and day of the weather row that was inserted, updated or deleted
+        public static final String COLUMN_LOC_KEY = "location_id";
+        public static final String COLUMN_DATE = "date";
+
+        // Query parameter: only the changes with a greater sequence number
+        public static final String PARAM_SINCE = "since";
+
+        /**
+         * @return changes?since=[sequence]
+         */
+        public static Uri buildChangesSinceUri(long sequence) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_SINCE, Long.toString(sequence)).build();
+        }
+
+        public static long getSinceFromUri(Uri uri) {
+            String sinceString = uri.getQueryParameter(PARAM_SINCE);
+            if (null != sinceString && sinceString.length() > 0)
+                return Long.parseLong(sinceString);
+            else
+                return 0;
+        }
+    }
+
+    /*
+        Inner class that defines the columns of a forecast summary: one row that sums up the
+        weather of a location over a range of days, computed by the database.  There's no table
+        behind it; the temperatures, humidity and pressure are those of the weather table, and
+        a column is null if there are no days in the range.  Days already rolled up into the
+        archive aren't counted: read those through ArchiveEntry.
+     */
+    public static final class SummaryEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SUMMARY).build();
+
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SUMMARY;
+
+        // How many days there are in the range
+        public static final String COLUMN_DAYS = "days";
+        // The lowest low and the highest high
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        // The average low and the average high
+        public static final String COLUMN_AVG_MIN_TEMP = "avg_min";
+        public static final String COLUMN_AVG_MAX_TEMP = "avg_max";
+        public static final String COLUMN_MIN_HUMIDITY = "min_humidity";
+        public static final String COLUMN_MAX_HUMIDITY = "max_humidity";
+        public static final String COLUMN_AVG_HUMIDITY = "avg_humidity";
+        public static final String COLUMN_MIN_PRESSURE = "min_pressure";
+        public static final String COLUMN_MAX_PRESSURE = "max_pressure";
+        public static final String COLUMN_AVG_PRESSURE = "avg_pressure";
+        // The weather id of the most days.  If there's a tie, the lowest of them, which the
+        // API gives the rougher weather.
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        /**
+         * @return summary/[location]/[start]/[end], the days from the start date to the end
+         * date, both included.
+         */
+        public static Uri buildSummaryUri(String locationSetting, long startDate, long endDate) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(startDate)))
+                    .appendPath(Long.toString(normalizeDate(endDate))).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+
+        public static long getEndDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(3));
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the weather archive: the days past the
+        full-resolution window, summed up a week or a month to a row.  A week runs from Monday,
+        but stops at the end of a month, so the weeks of a month add up to it exactly.  The
+        rows are written by the history compaction only; see RetentionPolicy.
+     */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_ARCHIVE).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_ARCHIVE;
+
+        public static final String TABLE_NAME = "weather_archive";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // PERIOD_WEEK or PERIOD_MONTH
+        public static final String COLUMN_PERIOD = "period";
+        // The first and the last day of the period, both normalized
+        public static final String COLUMN_START_DATE = "start_date";
+        public static final String COLUMN_END_DATE = "end_date";
+        // How many of the period's days there was weather for
+        public static final String COLUMN_DAYS = "days";
+        // The lowest low and the highest high
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        public static final String COLUMN_AVG_MIN_TEMP = "avg_min";
+        public static final String COLUMN_AVG_MAX_TEMP = "avg_max";
+        public static final String COLUMN_AVG_HUMIDITY = "avg_humidity";
+        public static final String COLUMN_AVG_PRESSURE = "avg_pressure";
+        // The weather id of the most days
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        public static final int PERIOD_WEEK = 1;
+        public static final int PERIOD_MONTH = 2;
+
+        /**
+         * @return archive/[location], the location's weeks and months.
+         */
+        public static Uri buildArchiveLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the sync log: one row for each of the
+        latest syncs, with where its time went.  The sync writes it; everyone else can only
+        read it.  Durations are in microseconds, and those of the network phases are summed
+        over the requests of the sync, which may overlap.  A phase that didn't happen is null.
+     */
+    public static final class SyncLogEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_LOG).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_LOG;
+
+        public static final String TABLE_NAME = "sync_log";
+
+        // How many syncs are kept; older ones make way for new ones.
+        public static final int MAX_ENTRIES = 100;
+
+        // When the sync started, in milliseconds since the epoch
+        public static final String COLUMN_START_TIME = "start_time";
+        // From the start of the sync until the weather was stored, fan-out excluded
+        public static final String COLUMN_DURATION = "duration";
+        // The status of the preferred location, as reported to the UI, or OUTCOME_NOT_STORED
+        public static final String COLUMN_OUTCOME = "outcome";
+        public static final String COLUMN_LOCATIONS = "locations";
+        // Bytes of response bodies over the wire, before decompression
+        public static final String COLUMN_BYTES = "bytes";
+        // Weather rows written
+        public static final String COLUMN_ROWS = "row_count";
+
+        // Resolving the host and connecting
+        public static final String COLUMN_CONNECT = "connect";
+        // From connected to the response headers
+        public static final String COLUMN_FIRST_BYTE = "first_byte";
+        // Waiting for the body
+        public static final String COLUMN_DOWNLOAD = "download";
+        // Decompressing, decoding and parsing the body
+        public static final String COLUMN_PARSE = "parse";
+        // Finding the row ID of each location.  No longer written: the locations are looked
+        // up in the same transaction as the weather, so it's part of COLUMN_DB_WRITE.
+        public static final String COLUMN_LOCATION_LOOKUP = "location_lookup";
+        public static final String COLUMN_DB_WRITE = "db_write";
+        // The sync's delete of the days before today, before version 6.  No longer written:
+        // the days are compacted instead, timed in COLUMN_FANOUT_RETENTION.
+        public static final String COLUMN_DELETE_STALE = "delete_stale";
+        // Each of the updates run once the weather is stored
+        public static final String COLUMN_FANOUT_WIDGETS = "fanout_widgets";
+        public static final String COLUMN_FANOUT_MUZEI = "fanout_muzei";
+        public static final String COLUMN_FANOUT_NOTIFICATION = "fanout_notification";
+        // Compacting the days past the retention window, after the updates above
+        public static final String COLUMN_FANOUT_RETENTION = "fanout_retention";
+
+        // The forecasts were fetched, but couldn't be stored
+        public static final int OUTCOME_NOT_STORED = -1;
     }
 }
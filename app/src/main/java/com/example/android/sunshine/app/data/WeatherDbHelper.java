@@ -15,11 +15,18 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.SparseArray;
 
+import com.example.android.sunshine.app.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.app.data.WeatherContract.ChangeEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
@@ -28,12 +35,217 @@ import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 6;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Every column of a weather row but its _ID, in the order the compiled statements below
+    // bind them.  A column's index is also its bit in an UPDATE's column mask.
+    static final String[] WEATHER_COLUMNS = {
+            WeatherEntry.COLUMN_LOC_KEY,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // The location_setting UNIQUE constraint indexes the location table for the join: it
+    // holds the setting and the row ID, which is all the join needs.  The weather table's
+    // UNIQUE (location_id, date) does the same for a location's days.  That leaves the
+    // deletes of past days, which go by date alone.
+    static final String WEATHER_DATE_INDEX = "weather_date_index";
+    static final String SQL_CREATE_WEATHER_DATE_INDEX = "CREATE INDEX " + WEATHER_DATE_INDEX +
+            " ON " + WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_DATE + ");";
+
+    // The change log, and the triggers that fill it in.  Whoever writes a weather row, and
+    // however, the day it was written for goes in.  An update that moves a row to another
+    // location or day changes both.
+    static final String SQL_CREATE_CHANGE_TABLE = "CREATE TABLE " + ChangeEntry.TABLE_NAME + " (" +
+            // AUTOINCREMENT, so a sequence number is never handed out twice, even after the
+            // latest changes have been deleted.
+            ChangeEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            ChangeEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            ChangeEntry.COLUMN_DATE + " INTEGER NOT NULL);";
+    static final String SQL_CREATE_INSERT_TRIGGER = "CREATE TRIGGER weather_insert_change " +
+            "AFTER INSERT ON " + WeatherEntry.TABLE_NAME + " BEGIN " +
+            insertChange("NEW") + " END;";
+    static final String SQL_CREATE_UPDATE_TRIGGER = "CREATE TRIGGER weather_update_change " +
+            "AFTER UPDATE ON " + WeatherEntry.TABLE_NAME + " BEGIN " +
+            insertChange("NEW") + " " +
+            "INSERT INTO " + ChangeEntry.TABLE_NAME + " (" +
+            ChangeEntry.COLUMN_LOC_KEY + ", " + ChangeEntry.COLUMN_DATE + ") " +
+            "SELECT OLD." + WeatherEntry.COLUMN_LOC_KEY + ", OLD." + WeatherEntry.COLUMN_DATE +
+            " WHERE OLD." + WeatherEntry.COLUMN_LOC_KEY + " != NEW." + WeatherEntry.COLUMN_LOC_KEY +
+            " OR OLD." + WeatherEntry.COLUMN_DATE + " != NEW." + WeatherEntry.COLUMN_DATE + ";" +
+            " END;";
+    static final String SQL_CREATE_DELETE_TRIGGER = "CREATE TRIGGER weather_delete_change " +
+            "AFTER DELETE ON " + WeatherEntry.TABLE_NAME + " BEGIN " +
+            insertChange("OLD") + " END;";
+
+    // The sync log, and the trigger that keeps it to the latest syncs.
+    static final String SQL_CREATE_SYNC_LOG_TABLE = "CREATE TABLE " + SyncLogEntry.TABLE_NAME +
+            " (" +
+            SyncLogEntry._ID + " INTEGER PRIMARY KEY, " +
+            SyncLogEntry.COLUMN_START_TIME + " INTEGER NOT NULL, " +
+            SyncLogEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+            SyncLogEntry.COLUMN_OUTCOME + " INTEGER NOT NULL, " +
+            SyncLogEntry.COLUMN_LOCATIONS + " INTEGER NOT NULL, " +
+            SyncLogEntry.COLUMN_BYTES + " INTEGER NOT NULL, " +
+            SyncLogEntry.COLUMN_ROWS + " INTEGER NOT NULL, " +
+            SyncLogEntry.COLUMN_CONNECT + " INTEGER, " +
+            SyncLogEntry.COLUMN_FIRST_BYTE + " INTEGER, " +
+            SyncLogEntry.COLUMN_DOWNLOAD + " INTEGER, " +
+            SyncLogEntry.COLUMN_PARSE + " INTEGER, " +
+            SyncLogEntry.COLUMN_LOCATION_LOOKUP + " INTEGER, " +
+            SyncLogEntry.COLUMN_DB_WRITE + " INTEGER, " +
+            SyncLogEntry.COLUMN_DELETE_STALE + " INTEGER, " +
+            SyncLogEntry.COLUMN_FANOUT_WIDGETS + " INTEGER, " +
+            SyncLogEntry.COLUMN_FANOUT_MUZEI + " INTEGER, " +
+            SyncLogEntry.COLUMN_FANOUT_NOTIFICATION + " INTEGER, " +
+            SyncLogEntry.COLUMN_FANOUT_RETENTION + " INTEGER);";
+    static final String SQL_CREATE_SYNC_LOG_TRIGGER = "CREATE TRIGGER sync_log_trim " +
+            "AFTER INSERT ON " + SyncLogEntry.TABLE_NAME + " BEGIN " +
+            "DELETE FROM " + SyncLogEntry.TABLE_NAME + " WHERE " + SyncLogEntry._ID + " <= " +
+            "NEW." + SyncLogEntry._ID + " - " + SyncLogEntry.MAX_ENTRIES + "; END;";
+
+    // The weather archive.  Its UNIQUE constraint is the index the compaction looks up a
+    // location's period by, and there's only ever a few dozen rows per location.
+    static final String SQL_CREATE_ARCHIVE_TABLE = "CREATE TABLE " + ArchiveEntry.TABLE_NAME +
+            " (" +
+            ArchiveEntry._ID + " INTEGER PRIMARY KEY, " +
+            ArchiveEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+            ArchiveEntry.COLUMN_PERIOD + " INTEGER NOT NULL, " +
+            ArchiveEntry.COLUMN_START_DATE + " INTEGER NOT NULL, " +
+            ArchiveEntry.COLUMN_END_DATE + " INTEGER NOT NULL, " +
+            ArchiveEntry.COLUMN_DAYS + " INTEGER NOT NULL, " +
+            ArchiveEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_AVG_MIN_TEMP + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_AVG_MAX_TEMP + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_AVG_HUMIDITY + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_AVG_PRESSURE + " REAL NOT NULL, " +
+            ArchiveEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+            " FOREIGN KEY (" + ArchiveEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+            " UNIQUE (" + ArchiveEntry.COLUMN_LOC_KEY + ", " + ArchiveEntry.COLUMN_PERIOD + ", " +
+            ArchiveEntry.COLUMN_START_DATE + ") ON CONFLICT REPLACE);";
+
+    private static String insertChange(String row) {
+        return "INSERT INTO " + ChangeEntry.TABLE_NAME + " (" +
+                ChangeEntry.COLUMN_LOC_KEY + ", " + ChangeEntry.COLUMN_DATE + ") VALUES (" +
+                row + "." + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                row + "." + WeatherEntry.COLUMN_DATE + ");";
+    }
+
+    // Compiled once and kept for as long as the database is open.
+    private SQLiteStatement mInsertWeatherStatement;
+    // By the mask of the columns they set.  A sync only ever changes a few sets of columns
+    // (the temperatures, the whole day), so there are only ever a few of them.
+    private final SparseArray<SQLiteStatement> mUpdateWeatherStatements =
+            new SparseArray<SQLiteStatement>();
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Opens a database by another name, with the same schema.  For tests that mustn't touch
+     * the real one.
+     */
+    WeatherDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        // With write-ahead logging a sync's write transaction doesn't lock out the readers
+        // that wake up as soon as it's done: each of them gets its own connection from the
+        // pool and reads the last committed state while the write goes on.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // It may not be the database the cached location IDs came from.
+        LocationIdCache.getInstance().invalidate();
+        // Before Jelly Bean write-ahead logging can only be turned on once the database is open.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * @return INSERT INTO weather (WEATHER_COLUMNS) VALUES (?, ...), compiled against the
+     * writable database.
+     */
+    synchronized SQLiteStatement getInsertWeatherStatement() {
+        if (mInsertWeatherStatement == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ")
+                    .append(WeatherEntry.TABLE_NAME).append(" (");
+            for (int i = 0; i < WEATHER_COLUMNS.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(WEATHER_COLUMNS[i]);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < WEATHER_COLUMNS.length; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(')');
+            mInsertWeatherStatement = getWritableDatabase().compileStatement(sql.toString());
+        }
+        return mInsertWeatherStatement;
+    }
+
+    /**
+     * @param columnMask bit i set for WEATHER_COLUMNS[i] to be set.
+     * @return UPDATE weather SET column = ?, ... WHERE _id = ? for the columns of the mask, in
+     * WEATHER_COLUMNS order, compiled against the writable database.  The _ID is the last
+     * argument.
+     */
+    synchronized SQLiteStatement getUpdateWeatherStatement(int columnMask) {
+        SQLiteStatement statement = mUpdateWeatherStatements.get(columnMask);
+        if (statement == null) {
+            StringBuilder sql = new StringBuilder("UPDATE ")
+                    .append(WeatherEntry.TABLE_NAME).append(" SET ");
+            boolean first = true;
+            for (int i = 0; i < WEATHER_COLUMNS.length; i++) {
+                if ((columnMask & (1 << i)) != 0) {
+                    sql.append(first ? "" : ", ").append(WEATHER_COLUMNS[i]).append(" = ?");
+                    first = false;
+                }
+            }
+            sql.append(" WHERE ").append(WeatherEntry._ID).append(" = ?");
+            statement = getWritableDatabase().compileStatement(sql.toString());
+            mUpdateWeatherStatements.put(columnMask, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * @return how many UPDATE statements have been compiled since the database was opened.
+     */
+    synchronized int getUpdateWeatherStatementCount() {
+        return mUpdateWeatherStatements.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        // The statements belong to the database that's about to be closed.
+        if (mInsertWeatherStatement != null) {
+            mInsertWeatherStatement.close();
+            mInsertWeatherStatement = null;
+        }
+        for (int i = 0; i < mUpdateWeatherStatements.size(); i++) {
+            mUpdateWeatherStatements.valueAt(i).close();
+        }
+        mUpdateWeatherStatements.clear();
+        super.close();
     }
 
     @Override
@@ -75,24 +287,164 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
 
                 // To assure the application have just one weather entry per day
-                // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
-                WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
+                // per location, it's created a UNIQUE constraint with REPLACE strategy.
+                // The location comes first, so the constraint's index is also the one every
+                // query for a location's days (from a date, on a date, in a range) searches,
+                // already in date order.
+                " UNIQUE (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
 
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_CHANGE_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_INSERT_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_UPDATE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_DELETE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_LOG_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_LOG_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
+        // This database is only a cache for online data, but discarding it on every schema
+        // change means every user starts the new version with an empty list and syncs
+        // everything at once.  So the changes of each version are applied in turn, on top of
+        // the data we have.  This runs in a single transaction: it all happens, or none of it.
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+        if (oldVersion < 2) {
+            // Older than anything we know how to migrate: discard the data and start over.
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ChangeEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncLogEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
+            onCreate(sqLiteDatabase);
+            return;
+        }
+        for (int version = oldVersion; version < newVersion; version++) {
+            switch (version) {
+                case 2:
+                    upgradeFrom2To3(sqLiteDatabase);
+                    break;
+                case 3:
+                    upgradeFrom3To4(sqLiteDatabase);
+                    break;
+                case 4:
+                    upgradeFrom4To5(sqLiteDatabase);
+                    break;
+                case 5:
+                    upgradeFrom5To6(sqLiteDatabase);
+                    break;
+                default:
+                    throw new IllegalStateException("No upgrade from database version " + version);
+            }
+        }
+    }
+
+    /**
+     * Version 3 turned the weather table's UNIQUE (date, location_id) around.  SQLite can't
+     * change a constraint in place, so the table is rebuilt and its rows, _IDs included,
+     * copied over.  The statements here describe version 3 and must not follow later changes
+     * to onCreate.
+     */
+    private static void upgradeFrom2To3(SQLiteDatabase db) {
+        String columns = "_id, location_id, date, short_desc, weather_id, min, max, humidity, " +
+                "pressure, wind, degrees";
+        db.execSQL("ALTER TABLE weather RENAME TO weather_v2");
+        db.execSQL("CREATE TABLE weather (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "location_id INTEGER NOT NULL, " +
+                "date INTEGER NOT NULL, " +
+                "short_desc TEXT NOT NULL, " +
+                "weather_id INTEGER NOT NULL," +
+                "min REAL NOT NULL, " +
+                "max REAL NOT NULL, " +
+                "humidity REAL NOT NULL, " +
+                "pressure REAL NOT NULL, " +
+                "wind REAL NOT NULL, " +
+                "degrees REAL NOT NULL, " +
+                " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                " UNIQUE (location_id, date) ON CONFLICT REPLACE);");
+        db.execSQL("INSERT INTO weather (" + columns + ") SELECT " + columns + " FROM weather_v2");
+        db.execSQL("DROP TABLE weather_v2");
+        db.execSQL("CREATE INDEX weather_date_index ON weather (date);");
+    }
+
+    /**
+     * Version 4 added the change log and its triggers.  The weather already stored isn't in
+     * it: whoever reads the log for the first time has to start from scratch anyway.
+     */
+    private static void upgradeFrom3To4(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE weather_changes (" +
+                "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "location_id INTEGER NOT NULL, " +
+                "date INTEGER NOT NULL);");
+        db.execSQL("CREATE TRIGGER weather_insert_change AFTER INSERT ON weather BEGIN " +
+                "INSERT INTO weather_changes (location_id, date) " +
+                "VALUES (NEW.location_id, NEW.date); END;");
+        db.execSQL("CREATE TRIGGER weather_update_change AFTER UPDATE ON weather BEGIN " +
+                "INSERT INTO weather_changes (location_id, date) " +
+                "VALUES (NEW.location_id, NEW.date); " +
+                "INSERT INTO weather_changes (location_id, date) " +
+                "SELECT OLD.location_id, OLD.date " +
+                "WHERE OLD.location_id != NEW.location_id OR OLD.date != NEW.date; END;");
+        db.execSQL("CREATE TRIGGER weather_delete_change AFTER DELETE ON weather BEGIN " +
+                "INSERT INTO weather_changes (location_id, date) " +
+                "VALUES (OLD.location_id, OLD.date); END;");
+    }
+
+    /**
+     * Version 5 added the sync log, which starts out empty, and the trigger that keeps it to
+     * the latest 100 syncs.
+     */
+    private static void upgradeFrom4To5(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE sync_log (" +
+                "_id INTEGER PRIMARY KEY, " +
+                "start_time INTEGER NOT NULL, " +
+                "duration INTEGER NOT NULL, " +
+                "outcome INTEGER NOT NULL, " +
+                "locations INTEGER NOT NULL, " +
+                "bytes INTEGER NOT NULL, " +
+                "row_count INTEGER NOT NULL, " +
+                "connect INTEGER, " +
+                "first_byte INTEGER, " +
+                "download INTEGER, " +
+                "parse INTEGER, " +
+                "location_lookup INTEGER, " +
+                "db_write INTEGER, " +
+                "delete_stale INTEGER, " +
+                "fanout_widgets INTEGER, " +
+                "fanout_muzei INTEGER, " +
+                "fanout_notification INTEGER);");
+        db.execSQL("CREATE TRIGGER sync_log_trim AFTER INSERT ON sync_log BEGIN " +
+                "DELETE FROM sync_log WHERE _id <= NEW._id - 100; END;");
+    }
+
+    /**
+     * Version 6 added the weather archive.  It starts out empty: the sync of earlier versions
+     * deleted every past day, so there's no history to roll into it.  The sync log got a
+     * column for the time the compaction takes, which the earlier syncs didn't run.
+     */
+    private static void upgradeFrom5To6(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE weather_archive (" +
+                "_id INTEGER PRIMARY KEY, " +
+                "location_id INTEGER NOT NULL, " +
+                "period INTEGER NOT NULL, " +
+                "start_date INTEGER NOT NULL, " +
+                "end_date INTEGER NOT NULL, " +
+                "days INTEGER NOT NULL, " +
+                "min REAL NOT NULL, " +
+                "max REAL NOT NULL, " +
+                "avg_min REAL NOT NULL, " +
+                "avg_max REAL NOT NULL, " +
+                "avg_humidity REAL NOT NULL, " +
+                "avg_pressure REAL NOT NULL, " +
+                "weather_id INTEGER NOT NULL, " +
+                " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                " UNIQUE (location_id, period, start_date) ON CONFLICT REPLACE);");
+        db.execSQL("ALTER TABLE sync_log ADD COLUMN fanout_retention INTEGER;");
     }
 }
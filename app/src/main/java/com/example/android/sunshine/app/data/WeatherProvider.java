@@ -17,25 +17,61 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
+    // The provider of this process, for what can't go through a resolver before Honeycomb
+    private static WeatherProvider sLocalInstance;
     private WeatherDbHelper mOpenHelper;
+    private final ForecastSnapshotCache mSnapshotCache = new ForecastSnapshotCache();
+    private final ForecastSummaryCache mSummaryCache = new ForecastSummaryCache();
+    private final LocationIdCache mLocationIdCache = LocationIdCache.getInstance();
+    // How many times the stored days of a location were read to compare a write against
+    private final AtomicLong mWeatherLookupCount = new AtomicLong();
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_WITH_LOCATION_AND_RANGE = 103;
+    static final int CHANGES = 200;
     static final int LOCATION = 300;
+    static final int SYNC_LOG = 400;
+    static final int SUMMARY = 500;
+    static final int ARCHIVE = 600;
+    static final int ARCHIVE_WITH_LOCATION = 601;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -51,63 +87,570 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.LocationEntry._ID);
     }
 
+    static final SQLiteQueryBuilder sWeatherQueryBuilder;
+
+    static{
+        sWeatherQueryBuilder = new SQLiteQueryBuilder();
+        sWeatherQueryBuilder.setTables(WeatherContract.WeatherEntry.TABLE_NAME);
+    }
+
+    static final SQLiteQueryBuilder sChangesQueryBuilder;
+
+    static{
+        sChangesQueryBuilder = new SQLiteQueryBuilder();
+
+        //This is an outer join, as the location may have gone since, which looks like
+        //weather_changes LEFT OUTER JOIN location ON weather_changes.location_id = location._id
+        sChangesQueryBuilder.setTables(
+                WeatherContract.ChangeEntry.TABLE_NAME + " LEFT OUTER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.ChangeEntry.TABLE_NAME +
+                        "." + WeatherContract.ChangeEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
+
+        Map<String, String> columns = new HashMap<String, String>();
+        columns.put(WeatherContract.ChangeEntry._ID, WeatherContract.ChangeEntry.TABLE_NAME +
+                "." + WeatherContract.ChangeEntry._ID + " AS " + WeatherContract.ChangeEntry._ID);
+        columns.put(WeatherContract.ChangeEntry.COLUMN_LOC_KEY,
+                WeatherContract.ChangeEntry.COLUMN_LOC_KEY);
+        columns.put(WeatherContract.ChangeEntry.COLUMN_DATE,
+                WeatherContract.ChangeEntry.COLUMN_DATE);
+        columns.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        sChangesQueryBuilder.setProjectionMap(columns);
+    }
+
+    //weather_changes._id > ?
+    static final String sChangesSinceSelection =
+            WeatherContract.ChangeEntry.TABLE_NAME +
+                    "." + WeatherContract.ChangeEntry._ID + " > ? ";
+
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    // The weather/[location] queries turn the location setting into its row ID first, so
+    // they select on the weather table's own (location_id, date) index, and only join the
+    // location table when the caller asks for its columns.
+
+    //weather.location_id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //weather.location_id = ? AND date >= ?
+    static final String sLocationIdWithStartDateSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    //weather.location_id = ? AND date = ?
+    static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    // The columns of the weather table, as a projection may name them
+    private static final Set<String> sWeatherColumns = new HashSet<String>();
+
+    static {
+        String[] columns = {
+                WeatherContract.WeatherEntry._ID,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                WeatherContract.WeatherEntry.COLUMN_DATE,
+                WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherContract.WeatherEntry.COLUMN_DEGREES
+        };
+        for (String column : columns) {
+            sWeatherColumns.add(column);
+            sWeatherColumns.add(WeatherContract.WeatherEntry.TABLE_NAME + "." + column);
+        }
+    }
+
+    //location_id = ? AND date BETWEEN ? AND ?
+    // Also the weather/[location]/range query's: the location table has no location_id.
+    static final String sLocationIdWithDateRangeSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " BETWEEN ? AND ? ";
+
+    // The columns of a summary, in the order sSummaryQuery selects them
+    private static final String[] sSummaryColumns = {
+            WeatherContract.SummaryEntry.COLUMN_DAYS,
+            WeatherContract.SummaryEntry.COLUMN_MIN_TEMP,
+            WeatherContract.SummaryEntry.COLUMN_MAX_TEMP,
+            WeatherContract.SummaryEntry.COLUMN_AVG_MIN_TEMP,
+            WeatherContract.SummaryEntry.COLUMN_AVG_MAX_TEMP,
+            WeatherContract.SummaryEntry.COLUMN_MIN_HUMIDITY,
+            WeatherContract.SummaryEntry.COLUMN_MAX_HUMIDITY,
+            WeatherContract.SummaryEntry.COLUMN_AVG_HUMIDITY,
+            WeatherContract.SummaryEntry.COLUMN_MIN_PRESSURE,
+            WeatherContract.SummaryEntry.COLUMN_MAX_PRESSURE,
+            WeatherContract.SummaryEntry.COLUMN_AVG_PRESSURE,
+            WeatherContract.SummaryEntry.COLUMN_WEATHER_ID
+    };
+
+    // The index of the days column, and of the weather id's; all those between are doubles.
+    private static final int SUMMARY_COL_DAYS = 0;
+    private static final int SUMMARY_COL_WEATHER_ID = 11;
+
+    // One pass over the range on the (location_id, date) index, and one more for the weather
+    // id of the most days.  Takes the location's ID and the range twice: the subquery's first.
+    static final String sSummaryQuery =
+            "SELECT COUNT(*), " +
+                    "MIN(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + "), " +
+                    "MAX(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + "), " +
+                    "AVG(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + "), " +
+                    "AVG(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + "), " +
+                    "MIN(" + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + "), " +
+                    "MAX(" + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + "), " +
+                    "AVG(" + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + "), " +
+                    "MIN(" + WeatherContract.WeatherEntry.COLUMN_PRESSURE + "), " +
+                    "MAX(" + WeatherContract.WeatherEntry.COLUMN_PRESSURE + "), " +
+                    "AVG(" + WeatherContract.WeatherEntry.COLUMN_PRESSURE + "), " +
+                    "(SELECT " + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID +
+                    " FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+                    " WHERE " + sLocationIdWithDateRangeSelection +
+                    " GROUP BY " + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID +
+                    " ORDER BY COUNT(*) DESC, " + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID +
+                    " ASC LIMIT 1)" +
+                    " FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+                    " WHERE " + sLocationIdWithDateRangeSelection;
+
+    // A write that changes more days than this for one location notifies the location's URI
+    // rather than each day's.
+    private static final int MAX_DAY_NOTIFICATIONS = 31;
+
+    // The change notifications held back while a batch is being applied on this thread, or
+    // null when there is no batch.
+    private final ThreadLocal<Set<Uri>> mPendingNotifications = new ThreadLocal<Set<Uri>>();
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        String limit = getLimit(uri);
+
+        // A limited query reads only the days it asked for, instead of a whole snapshot.
+        if (limit == null) {
+            Cursor cursor = getWeatherFromSnapshot(locationSetting, startDate, false, projection,
+                    sortOrder);
+            if (cursor != null) {
+                return cursor;
+            }
+        } else if (sortOrder == null) {
+            sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        }
 
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String locationId = Long.toString(getLocationId(db, locationSetting));
         String[] selectionArgs;
         String selection;
 
         if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+            selection = sLocationIdSelection;
+            selectionArgs = new String[]{locationId};
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+            selectionArgs = new String[]{locationId, Long.toString(startDate)};
+            selection = sLocationIdWithStartDateSelection;
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        return getQueryBuilder(projection, sortOrder).query(db,
                 projection,
                 selection,
                 selectionArgs,
                 null,
                 null,
+                sortOrder,
+                limit
+        );
+    }
+
+    private Cursor getWeatherByLocationSettingAndRange(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        long startDate = WeatherContract.WeatherEntry.getRangeStartFromUri(uri);
+        long endDate = WeatherContract.WeatherEntry.getRangeEndFromUri(uri);
+        String limit = getLimit(uri);
+        if (limit != null && sortOrder == null) {
+            sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        return getQueryBuilder(projection, sortOrder).query(db,
+                projection,
+                sLocationIdWithDateRangeSelection,
+                new String[]{Long.toString(getLocationId(db, locationSetting)),
+                        Long.toString(startDate), Long.toString(endDate)},
+                null,
+                null,
+                sortOrder,
+                limit
+        );
+    }
+
+    private Cursor getArchiveByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.ArchiveEntry.getLocationSettingFromUri(uri);
+        if (sortOrder == null) {
+            sortOrder = WeatherContract.ArchiveEntry.COLUMN_START_DATE + " ASC";
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        return db.query(WeatherContract.ArchiveEntry.TABLE_NAME,
+                projection,
+                WeatherContract.ArchiveEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(getLocationId(db, locationSetting))},
+                null,
+                null,
                 sortOrder
         );
     }
 
+    /**
+     * Answers a summary/[location]/[start]/[end] query, from the cache if the summary is
+     * there.  Otherwise SQLite computes it, and it's kept for next time.
+     */
+    private Cursor getSummary(Uri uri, String[] projection) {
+        String locationSetting = WeatherContract.SummaryEntry.getLocationSettingFromUri(uri);
+        long startDate = WeatherContract.SummaryEntry.getStartDateFromUri(uri);
+        long endDate = WeatherContract.SummaryEntry.getEndDateFromUri(uri);
+
+        // Checked before SQLite is bothered, so a bad projection fails the same either way.
+        int[] columns = getSummaryColumnIndices(projection);
+        Object[] row = mSummaryCache.get(locationSetting, startDate, endDate);
+        if (row == null) {
+            // Taken before the read, so a write that lands meanwhile keeps it out of the cache.
+            long generation = mSummaryCache.getGeneration();
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            String locationId = Long.toString(getLocationId(db, locationSetting));
+            String start = Long.toString(startDate);
+            String end = Long.toString(endDate);
+            Cursor cursor = db.rawQuery(sSummaryQuery,
+                    new String[]{locationId, start, end, locationId, start, end});
+            try {
+                cursor.moveToFirst();
+                row = readSummary(cursor);
+            } finally {
+                cursor.close();
+            }
+            mSummaryCache.put(locationSetting, startDate, endDate, row, generation);
+        }
+
+        String[] names = new String[columns.length];
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = sSummaryColumns[columns[i]];
+            values[i] = row[columns[i]];
+        }
+        MatrixCursor summary = new MatrixCursor(names, 1);
+        summary.addRow(values);
+        return summary;
+    }
+
+    /**
+     * @return for each column of the projection, its index in the summary; all of them if
+     * there's no projection.
+     */
+    private static int[] getSummaryColumnIndices(String[] projection) {
+        if (projection == null) {
+            projection = sSummaryColumns;
+        }
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = Arrays.asList(sSummaryColumns).indexOf(projection[i]);
+            if (columns[i] == -1) {
+                throw new IllegalArgumentException("Unknown summary column: " + projection[i]);
+            }
+        }
+        return columns;
+    }
+
+    private static Object[] readSummary(Cursor cursor) {
+        Object[] row = new Object[sSummaryColumns.length];
+        for (int i = 0; i < row.length; i++) {
+            if (cursor.isNull(i)) {
+                continue;
+            }
+            if (i == SUMMARY_COL_DAYS || i == SUMMARY_COL_WEATHER_ID) {
+                row[i] = cursor.getLong(i);
+            } else {
+                row[i] = cursor.getDouble(i);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @return the URI's limit, as SQLite's LIMIT takes it, or null if it has none.
+     */
+    private static String getLimit(Uri uri) {
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
+        if (limit < 0) {
+            throw new IllegalArgumentException("Invalid limit: " + uri);
+        }
+        return limit == 0 ? null : Integer.toString(limit);
+    }
+
     private Cursor getWeatherByLocationSettingAndDate(
             Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+        Cursor cursor = getWeatherFromSnapshot(locationSetting, date, true, projection, sortOrder);
+        if (cursor != null) {
+            return cursor;
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        return getQueryBuilder(projection, sortOrder).query(db,
                 projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
+                sLocationIdAndDaySelection,
+                new String[]{Long.toString(getLocationId(db, locationSetting)),
+                        Long.toString(date)},
                 null,
                 null,
                 sortOrder
         );
     }
 
+    /**
+     * @return the row ID of the location, or -1 if there's no such location.
+     */
+    private long getLocationId(SQLiteDatabase db, String locationSetting) {
+        long locationId = mLocationIdCache.getLocationId(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+        // Taken before the read, so a write that lands meanwhile keeps it out of the cache.
+        long generation = mLocationIdCache.getGeneration();
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                sLocationSettingSelection, new String[]{locationSetting}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                locationId = cursor.getLong(0);
+                mLocationIdCache.put(locationSetting, locationId, generation);
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationId;
+    }
+
+    /**
+     * @return the weather table on its own if that's all the query needs, or its join with
+     * the location table if it projects or sorts by location columns.
+     */
+    static SQLiteQueryBuilder getQueryBuilder(String[] projection, String sortOrder) {
+        return needsLocation(projection, sortOrder)
+                ? sWeatherByLocationSettingQueryBuilder : sWeatherQueryBuilder;
+    }
+
+    private static boolean needsLocation(String[] projection, String sortOrder) {
+        if (projection == null) {
+            // All the columns, the location's too
+            return true;
+        }
+        for (String column : projection) {
+            // Anything but a plain weather column, an expression say, may need the join.
+            if (!sWeatherColumns.contains(column)) {
+                return true;
+            }
+        }
+        if (sortOrder != null) {
+            String order = sortOrder.toLowerCase(Locale.US);
+            return order.contains(WeatherContract.LocationEntry.TABLE_NAME + ".")
+                    || order.contains(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                    || order.contains(WeatherContract.LocationEntry.COLUMN_CITY_NAME)
+                    || order.contains(WeatherContract.LocationEntry.COLUMN_COORD_LAT)
+                    || order.contains(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+        }
+        return false;
+    }
+
+    /**
+     * Answers a weather/[location] query, or a weather/[location]/[date] one if singleDay is
+     * set, from the location's snapshot.
+     *
+     * @return null if the query needs SQLite after all: the cache is off, or the projection or
+     * sort order is one a snapshot can't answer.
+     */
+    private Cursor getWeatherFromSnapshot(String locationSetting, long date, boolean singleDay,
+                                          String[] projection, String sortOrder) {
+        int[] columns = ForecastSnapshotCache.getColumnIndices(projection);
+        if (columns == null || !ForecastSnapshotCache.isDateOrder(sortOrder)
+                || !mSnapshotCache.isEnabled()) {
+            return null;
+        }
+        ForecastSnapshot snapshot = getForecastSnapshot(locationSetting, date, singleDay);
+        return snapshot.createCursor(ForecastSnapshotCache.getColumnNames(projection), columns,
+                singleDay ? date : -1);
+    }
+
+    /**
+     * @return the location's forecast from the date, or for a single day a forecast that
+     * holds it, from the cache if it's there.  Otherwise it's read, and kept for next time.
+     */
+    private ForecastSnapshot getForecastSnapshot(String locationSetting, long date,
+                                                 boolean singleDay) {
+        ForecastSnapshot snapshot = mSnapshotCache.get(locationSetting, date, singleDay);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // Taken before the read, so a write that lands meanwhile keeps it out of the cache.
+        long generation = mSnapshotCache.getGeneration();
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        // The snapshot holds the location's columns, so this one joins, on the location's ID.
+        Cursor cursor = sWeatherByLocationSettingQueryBuilder.query(db,
+                ForecastSnapshot.PROJECTION,
+                sLocationIdWithStartDateSelection,
+                new String[]{Long.toString(getLocationId(db, locationSetting)),
+                        Long.toString(date)},
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        try {
+            snapshot = ForecastSnapshot.read(cursor);
+        } finally {
+            cursor.close();
+        }
+        if (snapshot.size() <= ForecastSnapshotCache.MAX_ROWS) {
+            mSnapshotCache.put(locationSetting, date, snapshot, generation);
+        }
+        return snapshot;
+    }
+
+    /**
+     * The changes recorded after the sequence number in the URI's since parameter, oldest
+     * first unless the caller sorts them otherwise.
+     */
+    private Cursor getChangesSince(Uri uri, String[] projection, String selection,
+                                   String[] selectionArgs, String sortOrder) {
+        long since = WeatherContract.ChangeEntry.getSinceFromUri(uri);
+        String changesSelection = sChangesSinceSelection;
+        String[] changesSelectionArgs = new String[]{Long.toString(since)};
+        if (selection != null) {
+            changesSelection += "AND (" + selection + ")";
+            if (selectionArgs != null) {
+                changesSelectionArgs = new String[selectionArgs.length + 1];
+                changesSelectionArgs[0] = Long.toString(since);
+                System.arraycopy(selectionArgs, 0, changesSelectionArgs, 1,
+                        selectionArgs.length);
+            }
+        }
+        if (sortOrder == null) {
+            sortOrder = WeatherContract.ChangeEntry.TABLE_NAME + "." +
+                    WeatherContract.ChangeEntry._ID + " ASC";
+        }
+        return sChangesQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                changesSelection,
+                changesSelectionArgs,
+                null,
+                null,
+                sortOrder
+        );
+    }
+
+    /**
+     * Hands {@link ForecastSnapshot#query} the snapshot it asked for, and runs
+     * {@link RetentionPolicy#compact}'s compaction.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (ForecastSnapshot.METHOD_QUERY.equals(method)) {
+            long startDate = extras == null
+                    ? 0 : extras.getLong(ForecastSnapshot.EXTRA_START_DATE);
+            return getForecastSnapshot(arg, startDate, false).toBundle();
+        }
+        if (RetentionPolicy.METHOD_COMPACT.equals(method)) {
+            return compactHistory(extras == null ? new Bundle() : extras);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Takes up to the maximum number of the {@link HistoryCompactor}'s steps, each in a
+     * transaction of its own, so a reader or the sync never waits on more than one week's or
+     * month's worth of rows.  The days it took out of the weather table are notified once
+     * it's done.  Called directly, rather than through call(), before Honeycomb.
+     */
+    Bundle compactHistory(Bundle extras) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long now = extras.getLong(RetentionPolicy.EXTRA_NOW, System.currentTimeMillis());
+        int maxSteps = extras.getInt(RetentionPolicy.EXTRA_MAX_STEPS, Integer.MAX_VALUE);
+        HistoryCompactor compactor = new HistoryCompactor(db, EpochDays.getDefault(),
+                RetentionPolicy.fromBundle(extras), now);
+
+        Set<Uri> changedUris = new LinkedHashSet<Uri>();
+        boolean archiveChanged = false;
+        int steps = 0;
+        while (steps < maxSteps) {
+            HistoryCompactor.Step step;
+            db.beginTransaction();
+            try {
+                step = compactor.compactNext();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (step == null) {
+                break;
+            }
+            steps++;
+            archiveChanged |= step.archiveChanged;
+            if (!step.dates.isEmpty()) {
+                addChangedDayUris(db, step.locationId, step.dates, changedUris);
+            }
+        }
+
+        notifyChanges(changedUris);
+        if (archiveChanged) {
+            // No snapshot or summary reads the archive, so they stay.
+            getContext().getContentResolver().notifyChange(
+                    WeatherContract.ArchiveEntry.CONTENT_URI, null);
+        }
+        Bundle result = new Bundle();
+        result.putInt(RetentionPolicy.KEY_STEPS, steps);
+        return result;
+    }
+
+    /**
+     * The cache of the weather/[location] queries.  Package-private for the tests.
+     */
+    ForecastSnapshotCache getSnapshotCache() {
+        return mSnapshotCache;
+    }
+
+    /**
+     * @return how many times a write read a location's stored days to compare against.
+     * Package-private for the tests.
+     */
+    long getWeatherLookupCount() {
+        return mWeatherLookupCount.get();
+    }
+
+    /**
+     * @return how many sets of weather columns the compiled UPDATEs have been for.
+     * Package-private for the tests.
+     */
+    int getUpdateWeatherStatementCount() {
+        return mOpenHelper.getUpdateWeatherStatementCount();
+    }
+
+    /**
+     * The cache of the summary/[location] queries.  Package-private for the tests.
+     */
+    ForecastSummaryCache getSummaryCache() {
+        return mSummaryCache;
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -128,8 +671,15 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" +
+                WeatherContract.PATH_RANGE + "/#/#", WEATHER_WITH_LOCATION_AND_RANGE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_CHANGES, CHANGES);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_LOG, SYNC_LOG);
+        matcher.addURI(authority, WeatherContract.PATH_SUMMARY + "/*/#/#", SUMMARY);
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE, ARCHIVE);
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE + "/*", ARCHIVE_WITH_LOCATION);
         return matcher;
     }
 
@@ -140,9 +690,19 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mOpenHelper = new WeatherDbHelper(getContext());
+        synchronized (WeatherProvider.class) {
+            sLocalInstance = this;
+        }
         return true;
     }
 
+    /**
+     * @return the provider of this process, or null if it hasn't been created.
+     */
+    static synchronized WeatherProvider getLocalInstance() {
+        return sLocalInstance;
+    }
+
     /*
         Students: Here's where you'll code the getType function that uses the UriMatcher.  You can
         test this by uncommenting testGetType in TestProvider.
@@ -160,10 +720,22 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case WEATHER_WITH_LOCATION_AND_RANGE:
+                return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
+            case CHANGES:
+                return WeatherContract.ChangeEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_LOG:
+                return WeatherContract.SyncLogEntry.CONTENT_TYPE;
+            case SUMMARY:
+                return WeatherContract.SummaryEntry.CONTENT_ITEM_TYPE;
+            case ARCHIVE:
+                return WeatherContract.ArchiveEntry.CONTENT_TYPE;
+            case ARCHIVE_WITH_LOCATION:
+                return WeatherContract.ArchiveEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -175,6 +747,7 @@ public class WeatherProvider extends ContentProvider {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
+        Uri notificationUri = uri;
         switch (sUriMatcher.match(uri)) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
@@ -187,6 +760,15 @@ public class WeatherProvider extends ContentProvider {
                 retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
                 break;
             }
+            // "weather/*/range/#/#"
+            case WEATHER_WITH_LOCATION_AND_RANGE: {
+                retCursor = getWeatherByLocationSettingAndRange(uri, projection, sortOrder);
+                // Changes are notified on weather/[location]/[date], which the range's own
+                // URI isn't above.
+                notificationUri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+                break;
+            }
             // "weather"
             case WEATHER: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
@@ -200,6 +782,14 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "changes"
+            case CHANGES: {
+                retCursor = getChangesSince(uri, projection, selection, selectionArgs,
+                        sortOrder);
+                // Logged with every write to the weather, which is notified under weather
+                notificationUri = WeatherContract.WeatherEntry.CONTENT_URI;
+                break;
+            }
             // "location"
             case LOCATION: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
@@ -213,11 +803,52 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_log"
+            case SYNC_LOG: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncLogEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "summary/*/#/#"
+            case SUMMARY: {
+                retCursor = getSummary(uri, projection);
+                // Out of date whenever the location's weather changes
+                notificationUri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                        WeatherContract.SummaryEntry.getLocationSettingFromUri(uri));
+                break;
+            }
+            // "archive"
+            case ARCHIVE: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.ArchiveEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "archive/*"
+            case ARCHIVE_WITH_LOCATION: {
+                retCursor = getArchiveByLocationSetting(uri, projection, sortOrder);
+                // Rolled up into and out of as a whole
+                notificationUri = WeatherContract.ArchiveEntry.CONTENT_URI;
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        retCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return retCursor;
     }
 
@@ -232,26 +863,57 @@ public class WeatherProvider extends ContentProvider {
 
         switch (match) {
             case WEATHER: {
-                normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                Set<Uri> changedUris = new LinkedHashSet<Uri>();
+                long _id;
+                db.beginTransaction();
+                try {
+                    _id = upsertWeather(db, new ContentValues[]{values}, changedUris)[0];
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+                // Only the day that changed, if it did
+                notifyChanges(changedUris);
+                return returnUri;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                boolean[] changed = new boolean[1];
+                long _id;
+                db.beginTransaction();
+                try {
+                    _id = upsertLocation(db, values, changed);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                if (!changed[0]) {
+                    // A location we had already, as it was
+                    return returnUri;
+                }
                 break;
             }
+            case SYNC_LOG: {
+                // Only ever appended to, by the sync: there's no updating or deleting it, and
+                // the trigger gets rid of the oldest rows.
+                long _id = db.insert(WeatherContract.SyncLogEntry.TABLE_NAME, null, values);
+                if ( _id <= 0 )
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                // No weather changed, so the snapshots stay.
+                getContext().getContentResolver().notifyChange(uri, null);
+                return ContentUris.withAppendedId(uri, _id);
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -267,16 +929,31 @@ public class WeatherProvider extends ContentProvider {
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case CHANGES:
+                // Pruning the log changes no weather, so there's no one to tell.
+                return db.delete(
+                        WeatherContract.ChangeEntry.TABLE_NAME, selection, selectionArgs);
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    mLocationIdCache.invalidate();
+                }
                 break;
+            case ARCHIVE:
+                rowsDeleted = db.delete(
+                        WeatherContract.ArchiveEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    // No weather changed, so the snapshots stay.
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                return rowsDeleted;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -305,12 +982,16 @@ public class WeatherProvider extends ContentProvider {
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0) {
+                    // The setting may have changed, or moved to another row.
+                    mLocationIdCache.invalidate();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -321,27 +1002,506 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
+                Set<Uri> changedUris = new LinkedHashSet<Uri>();
                 db.beginTransaction();
                 int returnCount = 0;
+                boolean successful = false;
                 try {
-                    for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                    for (long _id : upsertWeather(db, values, changedUris)) {
                         if (_id != -1) {
                             returnCount++;
                         }
                     }
                     db.setTransactionSuccessful();
+                    successful = true;
                 } finally {
                     db.endTransaction();
+                    if (!successful) {
+                        // The IDs of the locations it inserted are free again.
+                        mLocationIdCache.invalidate();
+                    }
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChanges(changedUris);
                 return returnCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Inserts the location, or if there's a row for its location setting already, brings that
+     * one up to date, so the same setting always comes back with the same ID.  Call this
+     * inside a transaction: the lookup and the write are one, and nothing can come between.
+     *
+     * @param changed set to true if a row was inserted or updated.
+     * @return the row ID of the location, or -1 if it couldn't be written.
+     */
+    private long upsertLocation(SQLiteDatabase db, ContentValues values, boolean[] changed) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (locationSetting == null) {
+            // Let the NOT NULL constraint have it.
+            return db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+        }
+
+        long id = -1;
+        ContentValues changedValues = values;
+        Cursor stored = db.query(WeatherContract.LocationEntry.TABLE_NAME, null,
+                sLocationSettingSelection, new String[]{locationSetting}, null, null, null);
+        try {
+            if (stored.moveToFirst()) {
+                id = stored.getLong(stored.getColumnIndex(WeatherContract.LocationEntry._ID));
+                changedValues = getChangedValues(stored, values);
+            }
+        } finally {
+            stored.close();
+        }
+
+        if (id == -1) {
+            id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+            changed[0] = id != -1;
+        } else if (changedValues.size() > 0) {
+            db.update(WeatherContract.LocationEntry.TABLE_NAME, changedValues,
+                    WeatherContract.LocationEntry._ID + " = ?", new String[]{Long.toString(id)});
+            changed[0] = true;
+        }
+        if (id != -1) {
+            mLocationIdCache.put(locationSetting, id);
+        }
+        return id;
+    }
+
+    /**
+     * Gives each weather row that names its location by the location's own columns instead
+     * of {@link WeatherContract.WeatherEntry#COLUMN_LOC_KEY} the ID of that location, upserting
+     * the location first, once for all of its rows.  Done inside the transaction that writes
+     * the rows, so the location can't be deleted in between and leave them pointing nowhere.
+     */
+    private void resolveLocations(SQLiteDatabase db, ContentValues[] values,
+                                  Set<Uri> changedUris) {
+        Map<String, Long> locationIds = new HashMap<String, Long>();
+        boolean[] changed = new boolean[1];
+        for (ContentValues value : values) {
+            String locationSetting =
+                    value.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+            if (locationSetting == null) {
+                continue;
+            }
+            ContentValues locationValues = new ContentValues();
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    locationSetting);
+            value.remove(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+            if (value.containsKey(WeatherContract.LocationEntry.COLUMN_CITY_NAME)) {
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                        value.getAsString(WeatherContract.LocationEntry.COLUMN_CITY_NAME));
+                value.remove(WeatherContract.LocationEntry.COLUMN_CITY_NAME);
+            }
+            if (value.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LAT)) {
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                        value.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LAT));
+                value.remove(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
+            }
+            if (value.containsKey(WeatherContract.LocationEntry.COLUMN_COORD_LONG)) {
+                locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+                        value.getAsDouble(WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+                value.remove(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
+            }
+
+            Long locationId = locationIds.get(locationSetting);
+            if (locationId == null) {
+                locationId = upsertLocation(db, locationValues, changed);
+                locationIds.put(locationSetting, locationId);
+            }
+            if (locationId != -1) {
+                value.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+            }
+        }
+        if (changed[0]) {
+            changedUris.add(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+    }
+
+    /**
+     * Writes weather rows without disturbing the ones that didn't change.  Rows for days we
+     * don't have yet are inserted; rows for days we already have are updated in place, so
+     * their _ID stays the same, and only in the columns whose value is different.  Rows that
+     * match what we store aren't written at all.
+     *
+     * Call this inside a transaction.  The URIs of the days that were written are added to
+     * changedUris for the caller to notify once the transaction is over.
+     *
+     * @return the row ID of each value, or -1 where the row couldn't be written.
+     */
+    private long[] upsertWeather(SQLiteDatabase db, ContentValues[] values, Set<Uri> changedUris) {
+        long[] ids = new long[values.length];
+        resolveLocations(db, values, changedUris);
+
+        // Group the rows by location so each location's stored days are read in one query.
+        Map<Long, List<Integer>> rowsByLocation = new LinkedHashMap<Long, List<Integer>>();
+        for (int i = 0; i < values.length; i++) {
+            ContentValues value = values[i];
+            normalizeDate(value);
+            Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+            if (locationId == null
+                    || value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE) == null) {
+                // Nothing to compare it against; let the database sort it out.
+                ids[i] = insertWeather(db, value);
+                if (ids[i] != -1) {
+                    changedUris.add(WeatherContract.WeatherEntry.CONTENT_URI);
+                }
+                continue;
+            }
+            List<Integer> rows = rowsByLocation.get(locationId);
+            if (rows == null) {
+                rows = new ArrayList<Integer>();
+                rowsByLocation.put(locationId, rows);
+            }
+            rows.add(i);
+        }
+
+        for (Map.Entry<Long, List<Integer>> entry : rowsByLocation.entrySet()) {
+            long locationId = entry.getKey();
+            List<Integer> rows = entry.getValue();
+
+            long minDate = Long.MAX_VALUE;
+            long maxDate = Long.MIN_VALUE;
+            for (int i : rows) {
+                long date = values[i].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                minDate = Math.min(minDate, date);
+                maxDate = Math.max(maxDate, date);
+            }
+
+            List<Long> changedDates = new ArrayList<Long>(rows.size());
+            mWeatherLookupCount.incrementAndGet();
+            Cursor stored = db.query(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                    sLocationIdWithDateRangeSelection,
+                    new String[]{Long.toString(locationId), Long.toString(minDate),
+                            Long.toString(maxDate)},
+                    null, null, null);
+            try {
+                int idIndex = stored.getColumnIndex(WeatherContract.WeatherEntry._ID);
+                int dateIndex = stored.getColumnIndex(WeatherContract.WeatherEntry.COLUMN_DATE);
+                Map<Long, Integer> positions = new HashMap<Long, Integer>(stored.getCount());
+                while (stored.moveToNext()) {
+                    positions.put(stored.getLong(dateIndex), stored.getPosition());
+                }
+
+                for (int i : rows) {
+                    ContentValues value = values[i];
+                    long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+                    Integer position = positions.get(date);
+                    if (position == null) {
+                        ids[i] = insertWeather(db, value);
+                        if (ids[i] != -1) {
+                            changedDates.add(date);
+                        }
+                        continue;
+                    }
+
+                    stored.moveToPosition(position);
+                    ids[i] = stored.getLong(idIndex);
+                    ContentValues changed = getChangedValues(stored, value);
+                    if (changed.size() > 0) {
+                        updateWeather(db, ids[i], changed);
+                        changedDates.add(date);
+                    }
+                }
+            } finally {
+                stored.close();
+            }
+
+            if (!changedDates.isEmpty()) {
+                addChangedDayUris(db, locationId, changedDates, changedUris);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Inserts a weather row, through the compiled INSERT if the values are a complete row.
+     *
+     * @return the row ID, or -1 if the row couldn't be inserted.
+     */
+    private long insertWeather(SQLiteDatabase db, ContentValues values) {
+        if (!isCompleteWeatherRow(values)) {
+            return db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+        }
+        SQLiteStatement insert = mOpenHelper.getInsertWeatherStatement();
+        // The statement is shared, and its bindings with it.
+        synchronized (insert) {
+            try {
+                bindWeatherRow(insert, values);
+                return insert.executeInsert();
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Error inserting " + values, e);
+                return -1;
+            } finally {
+                insert.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Writes the changed values, and only those, to the weather row with the given ID: through
+     * the compiled UPDATE for just those columns, unless one of them isn't a weather column.
+     */
+    private void updateWeather(SQLiteDatabase db, long id, ContentValues changed) {
+        int columnMask = getWeatherColumnMask(changed);
+        if (columnMask == -1) {
+            db.update(WeatherContract.WeatherEntry.TABLE_NAME, changed,
+                    WeatherContract.WeatherEntry._ID + " = ?",
+                    new String[]{Long.toString(id)});
+            return;
+        }
+        SQLiteStatement update = mOpenHelper.getUpdateWeatherStatement(columnMask);
+        synchronized (update) {
+            try {
+                int index = 1;
+                for (int i = 0; i < WeatherDbHelper.WEATHER_COLUMNS.length; i++) {
+                    if ((columnMask & (1 << i)) != 0) {
+                        bindValue(update, index++,
+                                changed.get(WeatherDbHelper.WEATHER_COLUMNS[i]));
+                    }
+                }
+                update.bindLong(index, id);
+                update.execute();
+            } finally {
+                update.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * @return bit i set for each of the values' columns that is
+     * {@link WeatherDbHelper#WEATHER_COLUMNS}[i], or -1 if any of them isn't one.
+     */
+    private static int getWeatherColumnMask(ContentValues values) {
+        int mask = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int bit = 0;
+            while (bit < WeatherDbHelper.WEATHER_COLUMNS.length
+                    && !WeatherDbHelper.WEATHER_COLUMNS[bit].equals(entry.getKey())) {
+                bit++;
+            }
+            if (bit == WeatherDbHelper.WEATHER_COLUMNS.length) {
+                return -1;
+            }
+            mask |= 1 << bit;
+        }
+        return mask;
+    }
+
+    /**
+     * @return true if the values hold every column of a weather row but the _ID, and nothing
+     * else.
+     */
+    private static boolean isCompleteWeatherRow(ContentValues values) {
+        if (values.size() != WeatherDbHelper.WEATHER_COLUMNS.length) {
+            return false;
+        }
+        for (String column : WeatherDbHelper.WEATHER_COLUMNS) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Binds the values to the statement in {@link WeatherDbHelper#WEATHER_COLUMNS} order.
+     */
+    private static void bindWeatherRow(SQLiteStatement statement, ContentValues values) {
+        for (int i = 0; i < WeatherDbHelper.WEATHER_COLUMNS.length; i++) {
+            bindValue(statement, i + 1, values.get(WeatherDbHelper.WEATHER_COLUMNS[i]));
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * @return the values that differ from the cursor's current row.  The _ID is never part of
+     * them.
+     */
+    private static ContentValues getChangedValues(Cursor stored, ContentValues values) {
+        ContentValues changed = new ContentValues(values);
+        changed.remove(WeatherContract.WeatherEntry._ID);
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            int index = stored.getColumnIndex(entry.getKey());
+            if (index != -1 && isSameValue(stored, index, entry.getValue())) {
+                changed.remove(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    private static boolean isSameValue(Cursor cursor, int index, Object value) {
+        if (value == null || cursor.isNull(index)) {
+            return value == null && cursor.isNull(index);
+        }
+        if (value instanceof Number) {
+            return cursor.getDouble(index) == ((Number) value).doubleValue();
+        }
+        if (value instanceof Boolean) {
+            return (cursor.getLong(index) != 0) == (Boolean) value;
+        }
+        if (value instanceof byte[]) {
+            return Arrays.equals(cursor.getBlob(index), (byte[]) value);
+        }
+        return value.toString().equals(cursor.getString(index));
+    }
+
+    /**
+     * Adds the weather/[location]/[date] URI of each day that changed.
+     */
+    private void addChangedDayUris(SQLiteDatabase db, long locationId,
+                                   List<Long> changedDates, Set<Uri> changedUris) {
+        String locationSetting = mLocationIdCache.getLocationSetting(locationId);
+        if (locationSetting == null) {
+            Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                    WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)},
+                    null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    locationSetting = cursor.getString(0);
+                    mLocationIdCache.put(locationSetting, locationId);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (locationSetting == null) {
+            // Weather for a location we don't know; only the whole table will do.
+            changedUris.add(WeatherContract.WeatherEntry.CONTENT_URI);
+        } else {
+            for (long date : changedDates) {
+                // The dates are normalized already, so build the URI as it is.
+                changedUris.add(WeatherContract.WeatherEntry.CONTENT_URI.buildUpon()
+                        .appendPath(locationSetting)
+                        .appendPath(Long.toString(date))
+                        .build());
+            }
+        }
+    }
+
+    /**
+     * Applies the whole batch in one transaction.  The operations' change notifications are
+     * held back until it has been committed, and then sent once each, so observers never see
+     * half a batch and only wake up once for all of it.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> changedUris = new LinkedHashSet<Uri>();
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        mPendingNotifications.set(changedUris);
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mPendingNotifications.remove();
+            if (!successful) {
+                // The IDs of the locations it inserted are free again.
+                mLocationIdCache.invalidate();
+            }
+        }
+        notifyChanges(changedUris);
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.add(uri);
+        } else {
+            // Out with the old rows before the observers come back for the new ones.
+            mSnapshotCache.invalidate(uri);
+            mSummaryCache.invalidate(uri);
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Notifies each of the URIs, unless it's already covered by another one: a notification
+     * reaches the observers of every URI below it, so a URI with an ancestor in the set goes.
+     * More than {@link #MAX_DAY_NOTIFICATIONS} URIs under the same parent, such as the days of
+     * one location, are replaced by the parent.
+     */
+    private void notifyChanges(Set<Uri> changedUris) {
+        Set<Uri> pending = mPendingNotifications.get();
+        if (pending != null) {
+            pending.addAll(changedUris);
+            return;
+        }
+
+        Map<Uri, Integer> childCounts = new HashMap<Uri, Integer>();
+        for (Uri changedUri : changedUris) {
+            Uri parentUri = getParentUri(changedUri);
+            if (parentUri != null) {
+                Integer count = childCounts.get(parentUri);
+                childCounts.put(parentUri, count == null ? 1 : count + 1);
+            }
+        }
+
+        Set<Uri> notifiedUris = new LinkedHashSet<Uri>(changedUris.size());
+        for (Uri changedUri : changedUris) {
+            Uri parentUri = getParentUri(changedUri);
+            if (parentUri != null && childCounts.get(parentUri) > MAX_DAY_NOTIFICATIONS) {
+                changedUri = parentUri;
+            }
+            boolean covered = false;
+            for (Uri ancestorUri = getParentUri(changedUri); ancestorUri != null && !covered;
+                 ancestorUri = getParentUri(ancestorUri)) {
+                covered = changedUris.contains(ancestorUri);
+            }
+            if (!covered && notifiedUris.add(changedUri)) {
+                mSnapshotCache.invalidate(changedUri);
+                mSummaryCache.invalidate(changedUri);
+                getContext().getContentResolver().notifyChange(changedUri, null);
+            }
+        }
+    }
+
+    /**
+     * @return the URI one path segment up, or null for a URI without a path.
+     */
+    private static Uri getParentUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            return null;
+        }
+        Uri.Builder builder = new Uri.Builder()
+                .scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        for (int i = 0; i < segments.size() - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
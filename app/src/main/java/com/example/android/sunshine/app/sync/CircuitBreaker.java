@@ -0,0 +1,110 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Random;
+
+/**
+ * Stops sending requests to the server for a while once enough of them failed in a row, so a
+ * user who keeps hitting refresh during an outage doesn't send a burst of requests that are
+ * bound to fail.
+ *
+ * After {@link #FAILURE_THRESHOLD} failures the circuit opens: no request goes out until the
+ * cooling period is over.  Then a single request is let through.  If it gets through, the
+ * circuit closes again; if it fails, the circuit opens for twice as long, up to
+ * {@link #MAX_COOLING_MILLIS}.  The state is kept in {@link SyncStateStore}, so it survives
+ * the sync and the process.
+ */
+class CircuitBreaker {
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_COOLING_MILLIS = 5 * 60 * 1000;
+    static final long MAX_COOLING_MILLIS = 60 * 60 * 1000;
+
+    private final SyncStateStore mSyncState;
+    private final int mFailureThreshold;
+    private final long mBaseCoolingMillis;
+    private final long mMaxCoolingMillis;
+    private final Random mRandom = new Random();
+
+    CircuitBreaker(SyncStateStore syncState) {
+        this(syncState, FAILURE_THRESHOLD, BASE_COOLING_MILLIS, MAX_COOLING_MILLIS);
+    }
+
+    CircuitBreaker(SyncStateStore syncState, int failureThreshold, long baseCoolingMillis,
+                   long maxCoolingMillis) {
+        mSyncState = syncState;
+        mFailureThreshold = failureThreshold;
+        mBaseCoolingMillis = baseCoolingMillis;
+        mMaxCoolingMillis = maxCoolingMillis;
+    }
+
+    /**
+     * @return true if a request may be sent now.  Once the cooling period is over, only the
+     * first caller gets to try.
+     */
+    boolean allowRequest() {
+        synchronized (SyncStateStore.class) {
+            if (mSyncState.getConsecutiveFailures() < mFailureThreshold) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now < mSyncState.getCircuitOpenUntil()) {
+                return false;
+            }
+            // Everyone else waits for this one to come back.
+            mSyncState.setCircuitOpenUntil(now + getCoolingMillis());
+            return true;
+        }
+    }
+
+    void onSuccess() {
+        synchronized (SyncStateStore.class) {
+            if (mSyncState.getConsecutiveFailures() != 0) {
+                mSyncState.setConsecutiveFailures(0);
+                mSyncState.setCircuitOpenUntil(0);
+            }
+        }
+    }
+
+    void onFailure() {
+        synchronized (SyncStateStore.class) {
+            int failures = mSyncState.getConsecutiveFailures() + 1;
+            mSyncState.setConsecutiveFailures(failures);
+            if (failures >= mFailureThreshold) {
+                mSyncState.setCircuitOpenUntil(System.currentTimeMillis() + getCoolingMillis());
+            }
+        }
+    }
+
+    /**
+     * @return how long until requests may be sent again, in milliseconds; 0 if they may now.
+     */
+    long getRemainingCoolingMillis() {
+        synchronized (SyncStateStore.class) {
+            if (mSyncState.getConsecutiveFailures() < mFailureThreshold) {
+                return 0;
+            }
+            return Math.max(0, mSyncState.getCircuitOpenUntil() - System.currentTimeMillis());
+        }
+    }
+
+    int getConsecutiveFailures() {
+        synchronized (SyncStateStore.class) {
+            return mSyncState.getConsecutiveFailures();
+        }
+    }
+
+    void reset() {
+        synchronized (SyncStateStore.class) {
+            mSyncState.setConsecutiveFailures(0);
+            mSyncState.setCircuitOpenUntil(0);
+        }
+    }
+
+    // Called with the lock held.  Doubles with each failure past the threshold, give or take
+    // a tenth so that devices that failed together don't come back together.
+    private long getCoolingMillis() {
+        int over = mSyncState.getConsecutiveFailures() - mFailureThreshold;
+        long cooling = Math.min(mMaxCoolingMillis,
+                mBaseCoolingMillis << Math.min(Math.max(over, 0), 30));
+        return cooling - (long) (mRandom.nextDouble() * cooling / 10);
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * Counts the bytes read through it, the time spent waiting for them and when the last of
+ * them came, and gives up
+ * once a deadline has passed, which a read timeout alone doesn't do for a server that sends
+ * a byte every now and then.
+ */
+class CountingInputStream extends FilterInputStream {
+    private final long mDeadlineNanos;
+    private long mCount;
+    private long mLastReadNanos;
+    private long mReadNanos;
+
+    /**
+     * @param deadlineNanos the System.nanoTime() after which reads fail, or 0 for none.
+     */
+    CountingInputStream(InputStream in, long deadlineNanos) {
+        super(in);
+        mDeadlineNanos = deadlineNanos;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the time spent in reads, in nanoseconds.
+     */
+    long getReadNanos() {
+        return mReadNanos;
+    }
+
+    /**
+     * @return the System.nanoTime() of the last read that returned something, or 0.
+     */
+    long getLastReadNanos() {
+        return mLastReadNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = checkDeadline();
+        int b = super.read();
+        if (b != -1) {
+            count(start, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        long start = checkDeadline();
+        int read = super.read(buffer, offset, length);
+        if (read > 0) {
+            count(start, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long start = checkDeadline();
+        long skipped = super.skip(byteCount);
+        if (skipped > 0) {
+            count(start, skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        // A reset would count the same bytes twice.
+        return false;
+    }
+
+    private void count(long start, long bytes) {
+        mCount += bytes;
+        mLastReadNanos = System.nanoTime();
+        mReadNanos += mLastReadNanos - start;
+    }
+
+    // Returns the time it checked at, which is when the read starts.
+    private long checkDeadline() throws SocketTimeoutException {
+        long now = System.nanoTime();
+        if (mDeadlineNanos != 0 && now - mDeadlineNanos > 0) {
+            throw new SocketTimeoutException("Response not read in time");
+        }
+        return now;
+    }
+}
@@ -0,0 +1,274 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.os.Build;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches and parses the OpenWeatherMap forecast for one location setting.
+ *
+ * A single fetcher is shared by every location of a sync, from as many threads as the sync
+ * cares to use.  Responses are asked for gzipped, decoded in the charset the server says
+ * they're in, parsed as they stream in, and read to the end so that the
+ * {@link ForecastTransport} can keep the connection for the next request.  A response that
+ * takes longer than {@link #REQUEST_BUDGET_MILLIS} all told is given up on.
+ */
+class ForecastFetcher {
+    // Construct the URL for the OpenWeatherMap query
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+    private static final String QUERY_PARAM = "q";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String FORMAT = "json";
+    private static final String UNITS = "metric";
+    private static final int NUM_DAYS = 14;
+
+    // HTTP validators, so unchanged forecasts come back as an empty 304
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String CHARSET_PARAM = "charset=";
+    // What JSON is in unless the server says otherwise
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    static final long REQUEST_BUDGET_MILLIS = 30 * 1000;
+
+    // Too Many Requests, which HttpURLConnection has no constant for
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final String mBaseUrl;
+    private final ForecastTransport mTransport;
+    private final long mRequestBudgetNanos;
+
+    /**
+     * What came back for one location.
+     */
+    static class Response {
+        // true if the server answered 304, in which case there is no forecast
+        final boolean notModified;
+        final ForecastParser.Forecast forecast;
+        final String eTag;
+        final String lastModified;
+
+        Response(boolean notModified, ForecastParser.Forecast forecast, String eTag,
+                 String lastModified) {
+            this.notModified = notModified;
+            this.forecast = forecast;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The server answered, but with an error it may get over: too many requests, or a 5xx.
+     */
+    static class ServerErrorException extends IOException {
+        final int responseCode;
+        // How long the server asked us to wait, or -1 if it didn't say
+        final long retryAfterSeconds;
+
+        ServerErrorException(int responseCode, long retryAfterSeconds) {
+            super("Server error " + responseCode);
+            this.responseCode = responseCode;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    ForecastFetcher() {
+        this(FORECAST_BASE_URL);
+    }
+
+    /**
+     * @param baseUrl where to send forecast requests instead of OpenWeatherMap, e.g. a
+     *                local server in tests.
+     */
+    ForecastFetcher(String baseUrl) {
+        this(baseUrl, new HttpTransport());
+    }
+
+    /**
+     * @param transport what to send the requests over, e.g. an in-memory one in tests.
+     */
+    ForecastFetcher(String baseUrl, ForecastTransport transport) {
+        this(baseUrl, transport, REQUEST_BUDGET_MILLIS);
+    }
+
+    ForecastFetcher(String baseUrl, ForecastTransport transport, long requestBudgetMillis) {
+        mBaseUrl = baseUrl;
+        mTransport = transport;
+        mRequestBudgetNanos = TimeUnit.MILLISECONDS.toNanos(requestBudgetMillis);
+    }
+
+    /**
+     * Requests the forecast for a location.  The validators are those of the forecast we
+     * already have, if any; pass null for a full response.
+     *
+     * @param stats where to count the response, if it comes.
+     * @throws IOException if the server couldn't be reached or sent nothing
+     * @throws ServerErrorException if the server answered with an error it may get over
+     * @throws JSONException if the server sent something that isn't a forecast
+     */
+    Response fetch(String locationQuery, String eTag, String lastModified, TransferStats stats)
+            throws IOException, JSONException {
+        Uri builtUri = Uri.parse(mBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, UNITS)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(NUM_DAYS))
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+        String url = builtUri.toString();
+
+        Map<String, String> headers = new HashMap<String, String>();
+        // Asking for it ourselves means decompressing it ourselves, but it's the only way to
+        // know how many bytes actually came over the wire.
+        headers.put(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+        if (eTag != null) {
+            headers.put(HEADER_IF_NONE_MATCH, eTag);
+        }
+        if (lastModified != null) {
+            headers.put(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+
+        long start = System.nanoTime();
+        ForecastTransport.Exchange exchange = mTransport.get(url, headers);
+        long connected = System.nanoTime();
+        boolean complete = false;
+
+        try {
+            int responseCode = exchange.getResponseCode();
+            long firstByte = System.nanoTime();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                complete = true;
+                stats.onResponse(0, 0, firstByte - start);
+                stats.onPhases(connected - start, firstByte - connected, 0, 0);
+                return new Response(true, null, eTag, lastModified);
+            }
+            if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                    || responseCode == HTTP_TOO_MANY_REQUESTS) {
+                throw new ServerErrorException(responseCode,
+                        parseRetryAfter(exchange.getHeader(HEADER_RETRY_AFTER)));
+            }
+
+            InputStream inputStream = exchange.getBody();
+            if (inputStream == null) {
+                throw new IOException("No response from " + url);
+            }
+            CountingInputStream wire =
+                    new CountingInputStream(inputStream, start + mRequestBudgetNanos);
+            InputStream body = wire;
+            if (ENCODING_GZIP.equalsIgnoreCase(exchange.getHeader(HEADER_CONTENT_ENCODING))) {
+                body = new GZIPInputStream(wire);
+            }
+            CountingInputStream decoded = new CountingInputStream(body, 0);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(decoded,
+                    getCharset(exchange.getHeader(HEADER_CONTENT_TYPE))));
+
+            ForecastParser.Forecast forecast = new ForecastParser.Forecast();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                // Parse the days straight off the stream, one token at a time.  An empty
+                // stream shows up here as an EOFException, which is a server problem.
+                ForecastParser.parse(reader, forecast);
+            } else {
+                // No JsonReader before Honeycomb, so read the input stream into a String
+                StringBuilder buffer = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    buffer.append(line).append('\n');
+                }
+
+                if (buffer.length() == 0) {
+                    // Stream was empty.  No point in parsing.
+                    throw new IOException("Empty response from " + url);
+                }
+                ForecastParser.parseLegacy(buffer.toString(), forecast);
+            }
+            // The parser stops at the closing brace; whatever follows it, and the gzip
+            // trailer, has to be read too before the connection can take another request.
+            drain(decoded);
+            drain(wire);
+            complete = true;
+            // What wasn't spent waiting for the network went into making sense of it.
+            long bodyNanos = System.nanoTime() - firstByte;
+            stats.onResponse(wire.getCount(), decoded.getCount(),
+                    wire.getLastReadNanos() - start);
+            stats.onPhases(connected - start, firstByte - connected, wire.getReadNanos(),
+                    bodyNanos - wire.getReadNanos());
+            return new Response(false, forecast,
+                    exchange.getHeader(HEADER_ETAG),
+                    exchange.getHeader(HEADER_LAST_MODIFIED));
+        } finally {
+            // Only give up the connection if something went wrong with it; a response that
+            // was read to the end leaves it free for the next request.
+            exchange.close(complete);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[512];
+        while (in.read(buffer) != -1) {
+            // Nothing to do with it
+        }
+    }
+
+    /**
+     * @return the charset named by a Content-Type header, or UTF-8 if it names none we know.
+     */
+    static Charset getCharset(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, CHARSET_PARAM, 0, CHARSET_PARAM.length())) {
+                    String name = param.substring(CHARSET_PARAM.length()).replace("\"", "");
+                    try {
+                        return Charset.forName(name.trim());
+                    } catch (IllegalArgumentException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * @return the seconds of a Retry-After header, or -1 if there's none or it's a date.
+     */
+    private static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
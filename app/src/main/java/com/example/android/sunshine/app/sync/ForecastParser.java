@@ -0,0 +1,359 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the OpenWeatherMap daily forecast payload.
+ *
+ * The streaming path reads the response token by token straight off the network stream and
+ * hands each day to a {@link Callback} as soon as it has been read, so we never hold the whole
+ * response as a String nor as a JSONObject tree.  The legacy path keeps the old org.json
+ * behaviour around for devices without {@link JsonReader} (pre-Honeycomb).
+ */
+public class ForecastParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    /**
+     * Receives the pieces of a forecast in the order they appear in the payload.
+     */
+    public interface Callback {
+        void onMessageCode(int code);
+
+        void onCity(String cityName, double lat, double lon);
+
+        void onDay(Day day);
+    }
+
+    /**
+     * The values we keep for a single day of the forecast.
+     */
+    public static final class Day {
+        public final double pressure;
+        public final int humidity;
+        public final double windSpeed;
+        public final double windDirection;
+        public final double high;
+        public final double low;
+        public final String description;
+        public final int weatherId;
+
+        public Day(double pressure, int humidity, double windSpeed, double windDirection,
+                   double high, double low, String description, int weatherId) {
+            this.pressure = pressure;
+            this.humidity = humidity;
+            this.windSpeed = windSpeed;
+            this.windDirection = windDirection;
+            this.high = high;
+            this.low = low;
+            this.description = description;
+            this.weatherId = weatherId;
+        }
+    }
+
+    /**
+     * A {@link Callback} that simply collects everything it is given.  The sync uses this
+     * one, since it hashes the days and stores them in one write, so with it only the reading
+     * of the payload streams: the days are all held until they're stored.
+     */
+    public static class Forecast implements Callback {
+        // Payloads without a "cod" are treated like a successful response.
+        private int mMessageCode = 200;
+        private String mCityName;
+        private double mCityLatitude;
+        private double mCityLongitude;
+        private final List<Day> mDays = new ArrayList<Day>(14);
+
+        @Override
+        public void onMessageCode(int code) {
+            mMessageCode = code;
+        }
+
+        @Override
+        public void onCity(String cityName, double lat, double lon) {
+            mCityName = cityName;
+            mCityLatitude = lat;
+            mCityLongitude = lon;
+        }
+
+        @Override
+        public void onDay(Day day) {
+            mDays.add(day);
+        }
+
+        public int getMessageCode() {
+            return mMessageCode;
+        }
+
+        public boolean hasCity() {
+            return mCityName != null;
+        }
+
+        public String getCityName() {
+            return mCityName;
+        }
+
+        public double getCityLatitude() {
+            return mCityLatitude;
+        }
+
+        public double getCityLongitude() {
+            return mCityLongitude;
+        }
+
+        public List<Day> getDays() {
+            return mDays;
+        }
+    }
+
+    /**
+     * Reads the forecast from the given reader in a single pass.
+     *
+     * @throws IOException if the stream could not be read
+     * @throws JSONException if the payload is not a forecast we understand
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static void parse(Reader in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    callback.onMessageCode(reader.nextInt());
+                } else if (OWM_CITY.equals(name)) {
+                    readCity(reader, callback);
+                } else if (OWM_LIST.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        callback.onDay(readDay(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException e) {
+            // JsonReader reports unexpected tokens this way; to the caller that is just
+            // a payload it can't use, same as the org.json path.
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readCity(JsonReader reader, Callback callback) throws IOException {
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+        boolean hasCoord = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                hasCoord = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || !hasCoord) {
+            throw new IllegalStateException("Incomplete city in forecast");
+        }
+        callback.onCity(cityName, lat, lon);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Day readDay(JsonReader reader) throws IOException {
+        double pressure = Double.NaN;
+        double humidity = Double.NaN;
+        double windSpeed = Double.NaN;
+        double windDirection = Double.NaN;
+        double high = Double.NaN;
+        double low = Double.NaN;
+        String description = null;
+        int weatherId = 0;
+        boolean hasWeatherId = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = reader.nextDouble();
+            } else if (OWM_HUMIDITY.equals(name)) {
+                humidity = reader.nextDouble();
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = reader.nextDouble();
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = reader.nextDouble();
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        high = reader.nextDouble();
+                    } else if (OWM_MIN.equals(tempName)) {
+                        low = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    first = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = reader.nextInt();
+                            hasWeatherId = true;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (Double.isNaN(pressure) || Double.isNaN(humidity) || Double.isNaN(windSpeed)
+                || Double.isNaN(windDirection) || Double.isNaN(high) || Double.isNaN(low)
+                || description == null) {
+            throw new IllegalStateException("Incomplete day in forecast");
+        }
+        if (!hasWeatherId) {
+            // No code to pick the icon by; 0 would pass for one, so refuse it as getInt would.
+            throw new MalformedJsonException("No weather id for day in forecast");
+        }
+        return new Day(pressure, (int) humidity, windSpeed, windDirection, high, low,
+                description, weatherId);
+    }
+
+    /**
+     * The original org.json implementation: builds the whole object tree from the complete
+     * payload and then walks it.  Still used on devices without {@link JsonReader}.
+     *
+     * @throws JSONException if the payload is not a forecast we understand
+     */
+    public static void parseLegacy(String forecastJsonStr, Callback callback)
+            throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        // do we have an error?
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            callback.onMessageCode(errorCode);
+            if (errorCode != 200) {
+                // Error payloads carry neither a city nor a list.
+                return;
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        String cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+        double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+
+        callback.onCity(cityName, cityLatitude, cityLongitude);
+
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            double pressure = dayForecast.getDouble(OWM_PRESSURE);
+            int humidity = dayForecast.getInt(OWM_HUMIDITY);
+            double windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
+            double windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+
+            JSONObject weatherObject =
+                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            String description = weatherObject.getString(OWM_DESCRIPTION);
+            int weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+
+            // Temperatures are in a child object called "temp".  Try not to name variables
+            // "temp" when working with temperature.  It confuses everybody.
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+            double high = temperatureObject.getDouble(OWM_MAX);
+            double low = temperatureObject.getDouble(OWM_MIN);
+
+            callback.onDay(new Day(pressure, humidity, windSpeed, windDirection, high, low,
+                    description, weatherId));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * How {@link ForecastFetcher} gets bytes from the server, so that tests can answer from
+ * memory instead.  A transport only moves bytes: decompressing, decoding and counting them
+ * is up to the fetcher, whatever the transport.
+ */
+interface ForecastTransport {
+
+    /**
+     * The response to one request, whose body hasn't been read yet.
+     */
+    interface Exchange {
+        int getResponseCode() throws IOException;
+
+        /**
+         * @return the value of the response header, or null if there's none.
+         */
+        String getHeader(String name);
+
+        /**
+         * @return the body as it came over the wire, still compressed if it was sent so.
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Gives the exchange up, and the body with it.
+         *
+         * @param reusable true if the body was read to the end, which leaves the connection
+         *                 free for the next request; false to drop it.
+         */
+        void close(boolean reusable);
+    }
+
+    /**
+     * Sends a GET request.
+     *
+     * @throws IOException if the server couldn't be reached in time.
+     */
+    Exchange get(String url, Map<String, String> headers) throws IOException;
+}
@@ -0,0 +1,94 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * The {@link ForecastTransport} that talks to a real server, over HttpURLConnection.
+ *
+ * Exchanges closed as reusable are closed rather than disconnected, which hands the
+ * connection back to the platform's keep-alive pool, so the next location of a sync doesn't
+ * pay for a new one.  Connecting and each read are bounded by a timeout, so a server that
+ * stops answering can't hold the sync forever.
+ */
+class HttpTransport implements ForecastTransport {
+    static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    HttpTransport() {
+        this(CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+    }
+
+    HttpTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    @Override
+    public Exchange get(String url, Map<String, String> headers) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        boolean connected = false;
+        try {
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+            urlConnection.setReadTimeout(mReadTimeoutMillis);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                urlConnection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            urlConnection.connect();
+            connected = true;
+            return new HttpExchange(urlConnection);
+        } finally {
+            if (!connected) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    private static class HttpExchange implements Exchange {
+        private final HttpURLConnection mUrlConnection;
+        private InputStream mBody;
+
+        HttpExchange(HttpURLConnection urlConnection) {
+            mUrlConnection = urlConnection;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return mUrlConnection.getResponseCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mUrlConnection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = mUrlConnection.getInputStream();
+            }
+            return mBody;
+        }
+
+        @Override
+        public void close(boolean reusable) {
+            if (mBody != null) {
+                try {
+                    mBody.close();
+                } catch (IOException e) {
+                    reusable = false;
+                }
+            }
+            if (!reusable) {
+                mUrlConnection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tells the widgets, Muzei, the notification and whoever else subscribed that the weather was
+ * updated, on a thread of its own so the sync that stored the weather doesn't wait for them.
+ *
+ * Updates that come in quick succession, such as a manual refresh right behind a periodic
+ * sync, are told once: each request pushes the dispatch back by the debounce window, but
+ * never further than the maximum delay from the first request that is still waiting.
+ * Subscribers run one after the other, lowest priority value first, and the time each one
+ * takes is recorded.
+ */
+class PostSyncDispatcher {
+    private static final String LOG_TAG = PostSyncDispatcher.class.getSimpleName();
+
+    // Priorities: what the user is looking at goes first, the slow downloads last.
+    static final int PRIORITY_WIDGETS = 0;
+    static final int PRIORITY_MUZEI = 10;
+    static final int PRIORITY_NOTIFICATION = 20;
+    // Housekeeping nobody is waiting on
+    static final int PRIORITY_RETENTION = 30;
+
+    static final long DEBOUNCE_MILLIS = 1000;
+    static final long MAX_DELAY_MILLIS = 5000;
+
+    private static final int MSG_DISPATCH = 1;
+
+    interface Subscriber {
+        /**
+         * Called on the dispatcher's thread once the weather was updated.
+         */
+        void onDataUpdated(Context context);
+    }
+
+    interface DispatchListener {
+        /**
+         * Called on the dispatcher's thread once the subscribers were told about the update
+         * the listener was passed with.
+         *
+         * @param nanos the time each subscriber took, by name.
+         */
+        void onDispatched(Map<String, Long> nanos);
+    }
+
+    private static final class Registration {
+        final String name;
+        final int priority;
+        final Subscriber subscriber;
+
+        long runCount;
+        long failureCount;
+        long totalNanos;
+        long maxNanos;
+
+        Registration(String name, int priority, Subscriber subscriber) {
+            this.name = name;
+            this.priority = priority;
+            this.subscriber = subscriber;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final long mDebounceMillis;
+    private final long mMaxDelayMillis;
+
+    // By priority; guarded by this, like the fields below
+    private final List<Registration> mRegistrations = new ArrayList<Registration>();
+    // The uptime of the first request the pending dispatch is for, or -1 if there's none
+    private long mFirstRequestTime = -1;
+    private long mRequestCount;
+    private long mDispatchCount;
+    // Of the requests the pending dispatch is for
+    private List<DispatchListener> mListeners = new ArrayList<DispatchListener>();
+
+    /**
+     * Creates a dispatcher running on a background thread of its own.
+     */
+    static PostSyncDispatcher create(Context context) {
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return new PostSyncDispatcher(context.getApplicationContext(), thread.getLooper(),
+                DEBOUNCE_MILLIS, MAX_DELAY_MILLIS);
+    }
+
+    PostSyncDispatcher(Context context, Looper looper, long debounceMillis, long maxDelayMillis) {
+        mContext = context;
+        mDebounceMillis = debounceMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_DISPATCH) {
+                    dispatchNow();
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds a subscriber, after any others of the same priority.
+     */
+    synchronized void register(String name, int priority, Subscriber subscriber) {
+        int index = 0;
+        while (index < mRegistrations.size() && mRegistrations.get(index).priority <= priority) {
+            index++;
+        }
+        mRegistrations.add(index, new Registration(name, priority, subscriber));
+    }
+
+    /**
+     * Asks for the subscribers to be told about an update, and returns right away.
+     */
+    void dispatch() {
+        dispatch(null);
+    }
+
+    /**
+     * Like {@link #dispatch()}, and tells the listener, if any, once the subscribers ran.
+     */
+    synchronized void dispatch(DispatchListener listener) {
+        mRequestCount++;
+        if (listener != null) {
+            mListeners.add(listener);
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mFirstRequestTime == -1) {
+            mFirstRequestTime = now;
+        }
+        mHandler.removeMessages(MSG_DISPATCH);
+        mHandler.sendEmptyMessageAtTime(MSG_DISPATCH,
+                Math.min(now + mDebounceMillis, mFirstRequestTime + mMaxDelayMillis));
+    }
+
+    private void dispatchNow() {
+        List<Registration> registrations;
+        List<DispatchListener> listeners;
+        synchronized (this) {
+            // A request from now on is for another dispatch.
+            mFirstRequestTime = -1;
+            mDispatchCount++;
+            registrations = new ArrayList<Registration>(mRegistrations);
+            listeners = mListeners;
+            mListeners = new ArrayList<DispatchListener>();
+        }
+        Map<String, Long> dispatchNanos = new HashMap<String, Long>();
+        for (Registration registration : registrations) {
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                registration.subscriber.onDataUpdated(mContext);
+            } catch (RuntimeException e) {
+                // One subscriber going wrong is no reason to keep the others in the dark.
+                Log.e(LOG_TAG, "Error updating " + registration.name, e);
+                failed = true;
+            }
+            long nanos = System.nanoTime() - start;
+            synchronized (this) {
+                registration.runCount++;
+                registration.totalNanos += nanos;
+                registration.maxNanos = Math.max(registration.maxNanos, nanos);
+                if (failed) {
+                    registration.failureCount++;
+                }
+            }
+            dispatchNanos.put(registration.name, nanos);
+            Log.d(LOG_TAG, String.format(Locale.US, "%s took %.1f ms",
+                    registration.name, nanos / 1e6));
+        }
+        for (DispatchListener listener : listeners) {
+            try {
+                listener.onDispatched(dispatchNanos);
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Error in dispatch listener", e);
+            }
+        }
+    }
+
+    /**
+     * @return how many times {@link #dispatch} was called.
+     */
+    synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    /**
+     * @return how many times the subscribers were actually told.
+     */
+    synchronized long getDispatchCount() {
+        return mDispatchCount;
+    }
+
+    synchronized long getRunCount(String name) {
+        return getRegistration(name).runCount;
+    }
+
+    synchronized long getFailureCount(String name) {
+        return getRegistration(name).failureCount;
+    }
+
+    /**
+     * @return the time the subscriber took over all of its runs, in nanoseconds.
+     */
+    synchronized long getTotalNanos(String name) {
+        return getRegistration(name).totalNanos;
+    }
+
+    /**
+     * @return the time the subscriber's longest run took, in nanoseconds.
+     */
+    synchronized long getMaxNanos(String name) {
+        return getRegistration(name).maxNanos;
+    }
+
+    private Registration getRegistration(String name) {
+        for (Registration registration : mRegistrations) {
+            if (registration.name.equals(name)) {
+                return registration;
+            }
+        }
+        throw new IllegalArgumentException("Unknown subscriber: " + name);
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * How a sync retries a request that failed for a reason that may go away by itself: a few
+ * times within the sync, after an exponentially growing, randomly jittered delay so that
+ * everyone who failed at the same moment doesn't come back at the same moment too.  Once
+ * those are used up, {@link #getSyncDelaySeconds} tells the SyncManager how long to hold off
+ * the next sync.
+ */
+class RetryPolicy {
+    static final int MAX_ATTEMPTS = 3;
+    static final long BASE_DELAY_MILLIS = 500;
+    // Longer than this isn't worth holding the sync for; the next sync can try instead.
+    static final long MAX_DELAY_MILLIS = 8000;
+
+    static final long BASE_SYNC_DELAY_SECONDS = 30;
+    static final long MAX_SYNC_DELAY_SECONDS = 60 * 60;
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom;
+
+    RetryPolicy() {
+        this(MAX_ATTEMPTS, BASE_DELAY_MILLIS, MAX_DELAY_MILLIS, new Random());
+    }
+
+    RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, Random random) {
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mRandom = random;
+    }
+
+    /**
+     * @return how many times a request is sent at most, the first one included.
+     */
+    int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    long getMaxDelayMillis() {
+        return mMaxDelayMillis;
+    }
+
+    /**
+     * @return how long to wait before retrying after the given failed attempt, counted from
+     * 0: anywhere between nothing and twice the wait of the attempt before.
+     */
+    long getRetryDelayMillis(int attempt) {
+        long cap = Math.min(mMaxDelayMillis, mBaseDelayMillis << Math.min(attempt, 30));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * cap);
+        }
+    }
+
+    /**
+     * @return how long to hold off the next sync after this many failures in a row: at least
+     * half of the exponential delay, so it never comes down to nothing.
+     */
+    long getSyncDelaySeconds(int consecutiveFailures) {
+        long cap = Math.min(MAX_SYNC_DELAY_SECONDS,
+                BASE_SYNC_DELAY_SECONDS << Math.min(Math.max(consecutiveFailures - 1, 0), 30));
+        synchronized (mRandom) {
+            return cap / 2 + (long) (mRandom.nextDouble() * (cap - cap / 2));
+        }
+    }
+
+    /**
+     * @return true if trying again may help.  A 404 is the location's fault, not the
+     * server's, so there's no point.
+     */
+    static boolean isTransient(IOException e) {
+        return !(e instanceof FileNotFoundException);
+    }
+}
@@ -8,7 +8,6 @@ import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -26,34 +25,40 @@ import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.EpochDays;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
-    public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
+    public static final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
     // Interval at which to sync with the weather, in seconds.
@@ -63,6 +68,13 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
 
+    // Set this extra to true to sync every location in the database, not just the preferred one
+    public static final String SYNC_EXTRAS_ALL_LOCATIONS =
+            "com.example.android.sunshine.app.sync.extra.ALL_LOCATIONS";
+    // How many forecasts a sync of several locations fetches at the same time
+    static final int MAX_PARALLEL_FETCHES = 4;
+    // The compaction steps after each sync: two months of a few locations' days
+    static final int MAX_COMPACTION_STEPS = 64;
 
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
@@ -87,298 +99,631 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    // Shared by every sync in the process, so their updates are told once between them
+    private static PostSyncDispatcher sPostSyncDispatcher;
+
+    private ForecastFetcher mFetcher = new ForecastFetcher();
+    private int mMaxParallelFetches = MAX_PARALLEL_FETCHES;
+    private PostSyncDispatcher mPostSyncDispatcher;
+    private RetryPolicy mRetryPolicy = new RetryPolicy();
+    private CircuitBreaker mCircuitBreaker;
+    // How long the SyncManager should hold off the next sync after the last one, in seconds,
+    // or 0 if it needn't
+    private long mSyncDelaySeconds;
+    // Where the time of the last sync went
+    private SyncRecord mSyncRecord;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mPostSyncDispatcher = getPostSyncDispatcher(context);
+        mCircuitBreaker = new CircuitBreaker(new SyncStateStore(context));
     }
 
-    @Override
-    public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
+    /**
+     * @return the dispatcher that tells the widgets, Muzei and the notification about new
+     * weather, and then rolls up the history.
+     */
+    static synchronized PostSyncDispatcher getPostSyncDispatcher(Context context) {
+        if (sPostSyncDispatcher == null) {
+            sPostSyncDispatcher = PostSyncDispatcher.create(context);
+            sPostSyncDispatcher.register("widgets", PostSyncDispatcher.PRIORITY_WIDGETS,
+                    new PostSyncDispatcher.Subscriber() {
+                        @Override
+                        public void onDataUpdated(Context context) {
+                            updateWidgets(context);
+                        }
+                    });
+            sPostSyncDispatcher.register("muzei", PostSyncDispatcher.PRIORITY_MUZEI,
+                    new PostSyncDispatcher.Subscriber() {
+                        @Override
+                        public void onDataUpdated(Context context) {
+                            updateMuzei(context);
+                        }
+                    });
+            sPostSyncDispatcher.register("notification", PostSyncDispatcher.PRIORITY_NOTIFICATION,
+                    new PostSyncDispatcher.Subscriber() {
+                        @Override
+                        public void onDataUpdated(Context context) {
+                            notifyWeather(context);
+                        }
+                    });
+            sPostSyncDispatcher.register("retention", PostSyncDispatcher.PRIORITY_RETENTION,
+                    new PostSyncDispatcher.Subscriber() {
+                        @Override
+                        public void onDataUpdated(Context context) {
+                            compactHistory(context);
+                        }
+                    });
+        }
+        return sPostSyncDispatcher;
+    }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+    /**
+     * Points the sync at another server, e.g. a local one in tests.
+     */
+    void setForecastFetcher(ForecastFetcher fetcher) {
+        mFetcher = fetcher;
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    void setMaxParallelFetches(int maxParallelFetches) {
+        mMaxParallelFetches = maxParallelFetches;
+    }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+    void setPostSyncDispatcher(PostSyncDispatcher postSyncDispatcher) {
+        mPostSyncDispatcher = postSyncDispatcher;
+    }
 
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
-            }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
-            }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
-            }
+    void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    long getSyncDelaySeconds() {
+        return mSyncDelaySeconds;
+    }
+
+    TransferStats getTransferStats() {
+        return mSyncRecord.transfer;
+    }
+
+    @Override
+    public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
+        Log.d(LOG_TAG, "Starting sync");
+        // The preferred location always goes first: it's the one whose status the UI shows.
+        Set<String> locations = new LinkedHashSet<String>();
+        locations.add(Utility.getPreferredLocation(getContext()));
+        if (extras != null && extras.getBoolean(SYNC_EXTRAS_ALL_LOCATIONS, false)) {
+            locations.addAll(getSavedLocations());
+        }
+        syncLocations(new ArrayList<String>(locations));
+        if (mSyncDelaySeconds > 0) {
+            // A soft error, so the SyncManager tries again, but not before the delay is up.
+            syncResult.stats.numIoExceptions++;
+            syncResult.delayUntil = System.currentTimeMillis() / 1000 + mSyncDelaySeconds;
         }
-        return;
+        SyncScheduler.reschedule(getContext());
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Fetches the forecasts for the given locations, up to {@link #MAX_PARALLEL_FETCHES} at a
+     * time over the one {@link ForecastFetcher}, and stores all of the ones that changed in a
+     * single bulk insert, so the widgets, Muzei and the notification hear about it once no
+     * matter how many locations there are.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @param locations the location settings to sync; the status of the first one is the one
+     *                  reported to the UI.
+     * @return the number of weather rows written, or -1 if they couldn't be stored.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-        Log.d(LOG_TAG, "getWeatherDataFromJson");
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
+    int syncLocations(List<String> locations) {
+        final SyncStateStore syncState = new SyncStateStore(getContext());
+        mSyncDelaySeconds = 0;
+        mSyncRecord = new SyncRecord(getContext());
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+        final EpochDays days = EpochDays.getDefault();
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        // we start at the day returned by local time. Otherwise this is a mess.
+        final int startDay = days.toEpochDay(System.currentTimeMillis());
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+        List<LocationSync> syncs = new ArrayList<LocationSync>(locations.size());
+        int parallelFetches = Math.min(mMaxParallelFetches, locations.size());
+        if (parallelFetches <= 1) {
+            for (String locationSetting : locations) {
+                syncs.add(fetchLocation(locationSetting, syncState, days, startDay));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(parallelFetches);
+            try {
+                List<Future<LocationSync>> futures =
+                        new ArrayList<Future<LocationSync>>(locations.size());
+                for (final String locationSetting : locations) {
+                    futures.add(executor.submit(new Callable<LocationSync>() {
+                        @Override
+                        public LocationSync call() {
+                            return fetchLocation(locationSetting, syncState, days, startDay);
+                        }
+                    }));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        syncs.add(futures.get(i).get());
+                    } catch (ExecutionException e) {
+                        // One location going wrong is no reason to drop the others' forecasts.
+                        Log.e(LOG_TAG, "Error syncing " + locations.get(i), e.getCause());
+                        LocationSync failed = new LocationSync(locations.get(i));
+                        failed.status = LOCATION_STATUS_SERVER_DOWN;
+                        failed.transientError = true;
+                        syncs.add(failed);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The sync was cancelled; leave the database as it was.
+                Log.d(LOG_TAG, "Sync cancelled");
+                Thread.currentThread().interrupt();
+                return 0;
+            } finally {
+                executor.shutdownNow();
+            }
+        }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+        List<LocationSync> changed = new ArrayList<LocationSync>(syncs.size());
+        for (LocationSync sync : syncs) {
+            if (sync.skipped) {
+                // Never asked, so what we hold is as good as it was.
+                continue;
+            } else if (sync.status != LOCATION_STATUS_OK) {
+                // Whatever we hold for this location, don't let the server or the hash vouch
+                // for it next time.
+                syncState.clearValidators(sync.locationSetting);
+                syncState.setForecastHash(sync.locationSetting, null);
+            } else if (sync.changed) {
+                changed.add(sync);
+            } else {
+                // What we have is still current: nothing to store or tell anyone about.
+                Log.d(LOG_TAG, "Forecast for " + sync.locationSetting + " not modified");
+                syncState.incrementSkippedSyncCount();
+            }
+        }
 
-        final String OWM_MESSAGE_CODE = "cod";
+        // How far the preferred location's forecast moved, for the scheduler; read before
+        // the new one replaces it.
+        LocationSync preferred = syncs.isEmpty() ? null : syncs.get(0);
+        double delta = Double.NaN;
+        if (preferred != null && preferred.status == LOCATION_STATUS_OK) {
+            delta = preferred.changed ? getForecastDelta(preferred) : 0;
+        }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        int inserted = storeForecasts(changed);
+        boolean stored = inserted >= 0;
+        if (preferred != null && preferred.status == LOCATION_STATUS_OK
+                && (stored || !preferred.changed)) {
+            SyncScheduler.onSyncSucceeded(getContext(), delta);
+        }
 
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+        for (LocationSync sync : syncs) {
+            if (sync.status == LOCATION_STATUS_OK && !sync.response.notModified
+                    && (stored || !sync.changed)) {
+                syncState.setValidators(sync.locationSetting,
+                        sync.response.eTag, sync.response.lastModified);
+                if (sync.changed) {
+                    syncState.setForecastHash(sync.locationSetting, sync.forecastHash);
                 }
             }
+        }
+        if (preferred != null && !preferred.skipped) {
+            setLocationStatus(getContext(), preferred.status);
+        }
+        mSyncDelaySeconds = getSyncDelaySeconds(preferred);
+        Log.d(LOG_TAG, "Sync Complete. " + locations.size() + " locations, "
+                + changed.size() + " changed, " + inserted + " Inserted, "
+                + mSyncRecord.transfer);
+        int outcome = preferred == null ? LOCATION_STATUS_OK : preferred.status;
+        mSyncRecord.finish(stored ? outcome : WeatherContract.SyncLogEntry.OUTCOME_NOT_STORED,
+                locations.size(), inserted);
+        return inserted;
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+    /**
+     * @return how far the fetched highs and lows are from the ones we stored for the same
+     * days, in degrees on average, or NaN if we stored none of those days.
+     */
+    private double getForecastDelta(LocationSync sync) {
+        List<ForecastParser.Day> days = sync.response.forecast.getDays();
+        if (days.isEmpty()) {
+            return Double.NaN;
+        }
+        ForecastSnapshot stored = ForecastSnapshot.queryRange(getContext().getContentResolver(),
+                sync.locationSetting, sync.dates[0], sync.dates[days.size() - 1]);
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < days.size(); i++) {
+            int index = stored.indexOf(sync.dates[i]);
+            if (index != -1) {
+                sum += Math.abs(days.get(i).high - stored.getHigh(index))
+                        + Math.abs(days.get(i).low - stored.getLow(index));
+                count += 2;
+            }
+        }
+        return count == 0 ? Double.NaN : sum / count;
+    }
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+    /**
+     * @return how long the SyncManager should wait before syncing again after the preferred
+     * location failed in a way that may go away by itself, in seconds, or 0 if it didn't: the
+     * rest of the cooling period if the circuit was open, or else the longer of the policy's
+     * delay and what the server asked for.
+     */
+    private long getSyncDelaySeconds(LocationSync preferred) {
+        if (preferred == null) {
+            return 0;
+        }
+        if (preferred.skipped) {
+            return Math.max(1, (mCircuitBreaker.getRemainingCoolingMillis() + 999) / 1000);
+        }
+        if (!preferred.transientError) {
+            return 0;
+        }
+        return Math.max(preferred.retryAfterSeconds,
+                mRetryPolicy.getSyncDelaySeconds(mCircuitBreaker.getConsecutiveFailures()));
+    }
 
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+    /**
+     * How a single location fared in a sync.
+     */
+    private static class LocationSync {
+        final String locationSetting;
+        @LocationStatus int status = LOCATION_STATUS_OK;
+        ForecastFetcher.Response response;
+        long[] dates;
+        String forecastHash;
+        // true if the forecast differs from what we stored last time
+        boolean changed;
+        // true if the circuit breaker kept us from asking the server
+        boolean skipped;
+        // true if the fetch failed in a way that may go away by itself
+        boolean transientError;
+        // How long the server asked us to wait, or -1 if it didn't say
+        long retryAfterSeconds = -1;
+
+        LocationSync(String locationSetting) {
+            this.locationSetting = locationSetting;
+        }
+    }
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+    /**
+     * Fetches and checks the forecast for one location.  Safe to call from several threads at
+     * once: it only reads the provider and the sync state.
+     */
+    private LocationSync fetchLocation(String locationSetting, SyncStateStore syncState,
+                                       EpochDays days, int startDay) {
+        LocationSync sync = new LocationSync(locationSetting);
+        try {
+            // If we still have the forecast we stored last time, ask the server to only send
+            // it again if it has changed since.
+            boolean hasForecast = hasForecast(locationSetting);
+            sync.response = fetchWithRetry(sync,
+                    hasForecast ? syncState.getETag(locationSetting) : null,
+                    hasForecast ? syncState.getLastModified(locationSetting) : null);
+            if (sync.response == null) {
+                sync.skipped = true;
+                sync.status = LOCATION_STATUS_SERVER_DOWN;
+                return sync;
+            }
+            if (sync.response.notModified) {
+                return sync;
+            }
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+            ForecastParser.Forecast forecast = sync.response.forecast;
+            // do we have an error?
+            switch (forecast.getMessageCode()) {
+                case HttpURLConnection.HTTP_OK:
+                    break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    sync.status = LOCATION_STATUS_INVALID;
+                    return sync;
+                default:
+                    sync.status = LOCATION_STATUS_SERVER_DOWN;
+                    return sync;
+            }
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+            if (!forecast.hasCity()) {
+                // A successful response without a city isn't something we can store.
+                Log.e(LOG_TAG, "Forecast without city for " + locationSetting);
+                sync.status = LOCATION_STATUS_SERVER_INVALID;
+                return sync;
+            }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+            // one local day after the other, from today
+            sync.dates = new long[forecast.getDays().size()];
+            for (int i = 0; i < sync.dates.length; i++) {
+                sync.dates[i] = days.toMillis(startDay + i);
+            }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+            // The dates are part of the hash, so the first sync of a new day always writes
+            // (and rolls up the history) even if the server sends the very same payload.
+            sync.forecastHash = hashForecast(forecast, sync.dates);
+            sync.changed = !hasForecast || sync.forecastHash == null
+                    || !sync.forecastHash.equals(syncState.getForecastHash(locationSetting));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            sync.status = LOCATION_STATUS_SERVER_DOWN;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            sync.status = LOCATION_STATUS_SERVER_INVALID;
+        }
+        return sync;
+    }
 
-                double high;
-                double low;
+    /**
+     * Fetches the forecast, retrying transient failures as the {@link RetryPolicy} says, and
+     * tells the {@link CircuitBreaker} how each attempt went.  A 404 isn't retried and doesn't
+     * count against the server.  A Retry-After longer than the policy would wait is left for
+     * the next sync.
+     *
+     * @return the response, or null if the circuit breaker didn't let the first attempt out.
+     * @throws IOException the last failure, once there's no point in trying again.
+     */
+    private ForecastFetcher.Response fetchWithRetry(LocationSync sync, String eTag,
+                                                    String lastModified)
+            throws IOException, JSONException {
+        for (int attempt = 0; ; attempt++) {
+            if (!mCircuitBreaker.allowRequest()) {
+                if (attempt == 0) {
+                    Log.d(LOG_TAG, "Circuit open, not fetching " + sync.locationSetting);
+                    return null;
+                }
+                throw new IOException("Circuit opened while retrying");
+            }
+            try {
+                ForecastFetcher.Response response =
+                        mFetcher.fetch(sync.locationSetting, eTag, lastModified,
+                                mSyncRecord.transfer);
+                mCircuitBreaker.onSuccess();
+                sync.transientError = false;
+                return response;
+            } catch (IOException e) {
+                if (!RetryPolicy.isTransient(e)) {
+                    throw e;
+                }
+                mCircuitBreaker.onFailure();
+                sync.transientError = true;
+                long delayMillis = mRetryPolicy.getRetryDelayMillis(attempt);
+                if (e instanceof ForecastFetcher.ServerErrorException) {
+                    long retryAfterSeconds =
+                            ((ForecastFetcher.ServerErrorException) e).retryAfterSeconds;
+                    sync.retryAfterSeconds = retryAfterSeconds;
+                    if (retryAfterSeconds * 1000 > mRetryPolicy.getMaxDelayMillis()) {
+                        throw e;
+                    }
+                    delayMillis = Math.max(delayMillis, retryAfterSeconds * 1000);
+                }
+                if (attempt + 1 >= mRetryPolicy.getMaxAttempts()) {
+                    throw e;
+                }
+                Log.d(LOG_TAG, "Retrying " + sync.locationSetting + " in " + delayMillis
+                        + " ms after " + e);
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
 
-                String description;
-                int weatherId;
+    /**
+     * @return true if the provider holds forecast rows for the location from today on, which
+     * is what makes it safe to ask the server for changes only.
+     */
+    private boolean hasForecast(String locationSetting) {
+        Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = getContext().getContentResolver().query(weatherUri,
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        boolean hasForecast = cursor.moveToFirst();
+        cursor.close();
+        return hasForecast;
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    /**
+     * @return the location settings of every location in the database.
+     */
+    private List<String> getSavedLocations() {
+        List<String> locations = new ArrayList<String>();
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                locations.add(cursor.getString(0));
+            }
+            cursor.close();
+        }
+        return locations;
+    }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+    /**
+     * Take the forecasts that changed and store them: one row per day, each naming its
+     * location, all in a single bulk insert so the provider adds or updates the locations and
+     * writes the days in one transaction, reads each location's stored days once, and notifies
+     * its observers once.
+     * Then let the widgets, Muzei and the notification know, once.
+     *
+     * @return the number of weather rows written, or -1 if they couldn't all be written.
+     */
+    private int storeForecasts(List<LocationSync> changed) {
+        Log.d(LOG_TAG, "storeForecasts");
+        if (changed.isEmpty()) {
+            return 0;
+        }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+        ArrayList<ContentValues> weatherRows = new ArrayList<ContentValues>();
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+        for (LocationSync sync : changed) {
+            ForecastParser.Forecast forecast = sync.response.forecast;
+            // The provider looks the location up, or adds it, in the transaction that writes
+            // the days, so nothing can delete it in between.
+            ContentValues locationValues = createLocationValues(sync.locationSetting,
+                    forecast.getCityName(), forecast.getCityLatitude(),
+                    forecast.getCityLongitude());
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+            List<ForecastParser.Day> days = forecast.getDays();
+            for (int i = 0; i < days.size(); i++) {
+                ForecastParser.Day day = days.get(i);
+                long dateTime = sync.dates[i];
 
                 ContentValues weatherValues = new ContentValues();
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
                 weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
+                weatherValues.putAll(locationValues);
+
+                weatherRows.add(weatherValues);
             }
+        }
+
+        if (weatherRows.isEmpty()) {
+            return 0;
+        }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
+        // add to database
+        long writeStart = System.nanoTime();
+        int weatherCount = getContext().getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                weatherRows.toArray(new ContentValues[weatherRows.size()]));
+        if (weatherCount < weatherRows.size()) {
+            Log.e(LOG_TAG, "Error storing forecasts: wrote " + weatherCount + " of "
+                    + weatherRows.size() + " rows");
+            return -1;
+        }
+        mSyncRecord.setDbWriteNanos(System.nanoTime() - writeStart);
+
+        // Off this thread, so the sync is done once the weather is stored.  The old days are
+        // rolled up into the archive there too, after the subscribers the user sees.
+        mSyncRecord.expectFanOut();
+        mPostSyncDispatcher.dispatch(mSyncRecord);
+        return weatherCount;
+    }
+
+    private static ContentValues createLocationValues(String locationSetting, String cityName,
+                                                      double lat, double lon) {
+        ContentValues locationValues = new ContentValues();
+
+        // Add the data, along with the corresponding name of the data type,
+        // so the content provider knows what kind of value is being inserted.
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        return locationValues;
+    }
+
+    /**
+     * Hashes the normalized day records of a forecast, together with the city they are for.
+     *
+     * @return the hash as a hex string, or null if it couldn't be computed.
+     */
+    static String hashForecast(ForecastParser.Forecast forecast, long[] dates) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            DataOutputStream out = new DataOutputStream(
+                    new DigestOutputStream(new ByteArrayOutputStream(), digest));
+            out.writeUTF(forecast.getCityName());
+            out.writeDouble(forecast.getCityLatitude());
+            out.writeDouble(forecast.getCityLongitude());
+
+            List<ForecastParser.Day> days = forecast.getDays();
+            out.writeInt(days.size());
+            for (int i = 0; i < days.size(); i++) {
+                ForecastParser.Day day = days.get(i);
+                out.writeLong(dates[i]);
+                out.writeDouble(day.pressure);
+                out.writeInt(day.humidity);
+                out.writeDouble(day.windSpeed);
+                out.writeDouble(day.windDirection);
+                out.writeDouble(day.high);
+                out.writeDouble(day.low);
+                out.writeUTF(day.description);
+                out.writeInt(day.weatherId);
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+            out.close();
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return null;
         }
     }
 
-    private void updateWidgets() {
+    /**
+     * @return how many syncs ended without writing anything because the forecast had not
+     * changed, either because the server said so (304) or because it sent the same one again.
+     */
+    public static long getSkippedSyncCount(Context context) {
+        return new SyncStateStore(context).getSkippedSyncCount();
+    }
+
+    private static void updateWidgets(Context context) {
         Log.d(LOG_TAG, "updateWidgets");
-        Context context = getContext();
         // Setting the package ensures that only components in our app will receive the broadcast
         Intent dataUpdatedIntent = new Intent(ACTION_DATA_UPDATED)
                 .setPackage(context.getPackageName());
         context.sendBroadcast(dataUpdatedIntent);
     }
 
-    private void updateMuzei() {
+    /**
+     * Rolls the days past the retention window up into the archive, a few weeks at a time:
+     * what's left over is picked up after the next sync.
+     */
+    static void compactHistory(Context context) {
+        // Not java.lang.annotation's, which the sync status IntDef imports
+        com.example.android.sunshine.app.data.RetentionPolicy policy =
+                com.example.android.sunshine.app.data.RetentionPolicy.DEFAULT;
+        int steps = policy.compact(context.getContentResolver(), System.currentTimeMillis(),
+                MAX_COMPACTION_STEPS);
+        Log.d(LOG_TAG, "compactHistory: " + steps + " steps");
+    }
+
+    private static void updateMuzei(Context context) {
         // Muzei is only compatible with Jelly Bean MR1+ devices, so there's no need to update the
         // Muzei background on lower API level devices
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            Context context = getContext();
             context.startService(new Intent(ACTION_DATA_UPDATED)
                     .setClass(context, WeatherMuzeiSource.class));
         }
     }
 
-    private void notifyWeather() {
-        Context context = getContext();
+    private static void notifyWeather(Context context) {
         //checking the last update and notify if it' the first of the day
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         String displayNotificationsKey = context.getString(R.string.pref_enable_notifications_key);
@@ -445,7 +790,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     // NotificationCompatBuilder is a very convenient way to build backward-compatible
                     // notifications.  Just throw in some data.
                     NotificationCompat.Builder mBuilder =
-                            new NotificationCompat.Builder(getContext())
+                            new NotificationCompat.Builder(context)
                                     .setColor(resources.getColor(R.color.primary_light))
                                     .setSmallIcon(iconId)
                                     .setLargeIcon(largeIcon)
@@ -470,7 +815,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                     mBuilder.setContentIntent(resultPendingIntent);
 
                     NotificationManager mNotificationManager =
-                            (NotificationManager) getContext().getSystemService(Context.NOTIFICATION_SERVICE);
+                            (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
                     // WEATHER_NOTIFICATION_ID allows you to update the notification later on.
                     mNotificationManager.notify(WEATHER_NOTIFICATION_ID, mBuilder.build());
 
@@ -485,71 +830,27 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
-     *
-     * @param locationSetting The location string used to request updates from the server.
-     * @param cityName A human-readable city name, e.g "Mountain View"
-     * @param lat the latitude of the city
-     * @param lon the longitude of the city
-     * @return the row ID of the added location.
-     */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
-        }
-
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
-    }
-
-    /**
-     * Helper method to schedule the sync adapter periodic execution
+     * Helper method to schedule the sync adapter periodic execution.  The periodic sync
+     * refreshes every saved location, not just the preferred one.
      */
     public static void configurePeriodicSync(Context context, int syncInterval, int flexTime) {
         Account account = getSyncAccount(context);
         String authority = context.getString(R.string.content_authority);
+        Bundle extras = new Bundle();
+        extras.putBoolean(SYNC_EXTRAS_ALL_LOCATIONS, true);
+        // Periodic syncs are told apart by their extras: drop the one of the preferred
+        // location only, which earlier versions scheduled, or both would run.
+        ContentResolver.removePeriodicSync(account, authority, new Bundle());
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             // we can enable inexact timers in our periodic sync
             SyncRequest request = new SyncRequest.Builder().
                     syncPeriodic(syncInterval, flexTime).
                     setSyncAdapter(account, authority).
-                    setExtras(new Bundle()).build();
+                    setExtras(extras).build();
             ContentResolver.requestSync(request);
         } else {
             ContentResolver.addPeriodicSync(account,
-                    authority, new Bundle(), syncInterval);
+                    authority, extras, syncInterval);
         }
     }
 
@@ -565,6 +866,20 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                 context.getString(R.string.content_authority), bundle);
     }
 
+    /**
+     * Helper method to have the sync adapter refresh every saved location right away, not just
+     * the preferred one.
+     * @param context The context used to access the account service
+     */
+    public static void syncAllLocationsImmediately(Context context) {
+        Bundle bundle = new Bundle();
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
+        bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putBoolean(SYNC_EXTRAS_ALL_LOCATIONS, true);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), bundle);
+    }
+
     /**
      * Helper method to get the fake account to be used with SyncAdapter, or make a new one
      * if the fake account doesn't exist yet.  If we make a new account, we call the
@@ -0,0 +1,111 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.SQLException;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.SyncLogEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time of one sync went, on its way to the sync log.  The record is written once
+ * the sync is over and, if it handed an update to the {@link PostSyncDispatcher}, once the
+ * subscribers ran too, whichever comes last.
+ */
+class SyncRecord implements PostSyncDispatcher.DispatchListener {
+    private static final String LOG_TAG = SyncRecord.class.getSimpleName();
+
+    // The sync log column of each subscriber's time
+    private static final Map<String, String> FANOUT_COLUMNS = new HashMap<String, String>();
+
+    static {
+        FANOUT_COLUMNS.put("widgets", SyncLogEntry.COLUMN_FANOUT_WIDGETS);
+        FANOUT_COLUMNS.put("muzei", SyncLogEntry.COLUMN_FANOUT_MUZEI);
+        FANOUT_COLUMNS.put("notification", SyncLogEntry.COLUMN_FANOUT_NOTIFICATION);
+        FANOUT_COLUMNS.put("retention", SyncLogEntry.COLUMN_FANOUT_RETENTION);
+    }
+
+    final TransferStats transfer = new TransferStats();
+
+    private final Context mContext;
+    private final long mStartTime = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+
+    // Guarded by this
+    private final ContentValues mValues = new ContentValues();
+    private boolean mFinished;
+    private boolean mFanOutPending;
+    private boolean mWritten;
+
+    SyncRecord(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    synchronized void setDbWriteNanos(long nanos) {
+        mValues.put(SyncLogEntry.COLUMN_DB_WRITE, toMicros(nanos));
+    }
+
+    /**
+     * Holds the record back until {@link #onDispatched} was called.
+     */
+    synchronized void expectFanOut() {
+        mFanOutPending = true;
+    }
+
+    @Override
+    public synchronized void onDispatched(Map<String, Long> nanos) {
+        for (Map.Entry<String, Long> entry : nanos.entrySet()) {
+            String column = FANOUT_COLUMNS.get(entry.getKey());
+            if (column != null) {
+                mValues.put(column, toMicros(entry.getValue()));
+            }
+        }
+        mFanOutPending = false;
+        writeIfDone();
+    }
+
+    /**
+     * Ends the sync's part of the record.
+     *
+     * @param outcome the status of the preferred location, or
+     *                {@link SyncLogEntry#OUTCOME_NOT_STORED}.
+     */
+    synchronized void finish(int outcome, int locationCount, int rowCount) {
+        mValues.put(SyncLogEntry.COLUMN_START_TIME, mStartTime);
+        mValues.put(SyncLogEntry.COLUMN_DURATION, toMicros(System.nanoTime() - mStartNanos));
+        mValues.put(SyncLogEntry.COLUMN_OUTCOME, outcome);
+        mValues.put(SyncLogEntry.COLUMN_LOCATIONS, locationCount);
+        mValues.put(SyncLogEntry.COLUMN_ROWS, Math.max(rowCount, 0));
+        mValues.put(SyncLogEntry.COLUMN_BYTES, transfer.getWireBytes());
+        if (transfer.getResponseCount() > 0) {
+            mValues.put(SyncLogEntry.COLUMN_CONNECT, toMicros(transfer.getConnectNanos()));
+            mValues.put(SyncLogEntry.COLUMN_FIRST_BYTE, toMicros(transfer.getFirstByteNanos()));
+            mValues.put(SyncLogEntry.COLUMN_DOWNLOAD, toMicros(transfer.getDownloadNanos()));
+            mValues.put(SyncLogEntry.COLUMN_PARSE, toMicros(transfer.getParseNanos()));
+        }
+        mFinished = true;
+        writeIfDone();
+    }
+
+    // Called with the lock held.
+    private void writeIfDone() {
+        if (!mFinished || mFanOutPending || mWritten) {
+            return;
+        }
+        mWritten = true;
+        try {
+            mContext.getContentResolver().insert(SyncLogEntry.CONTENT_URI, mValues);
+        } catch (SQLException e) {
+            // Diagnostics only; the sync itself went fine.
+            Log.e(LOG_TAG, "Error writing the sync log", e);
+        }
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
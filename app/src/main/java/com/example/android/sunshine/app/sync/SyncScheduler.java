@@ -0,0 +1,185 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Picks how often the periodic sync runs, from what the app already knows, rather than every
+ * three hours for everyone:
+ *
+ * - how much the forecast moved between recent syncs: a calm forecast is synced less often,
+ *   a changing one more often;
+ * - whether the app was just looked at, or a watch is taking the weather;
+ * - whether the network is metered;
+ * - how long ago a sync last got through: past {@link #MAX_STALENESS_MILLIS} we try again
+ *   as soon as we're allowed.
+ *
+ * The interval stays between {@link #MIN_INTERVAL_MILLIS} and {@link #MAX_INTERVAL_MILLIS},
+ * and the periodic sync is only asked to change when the interval moved by more than a tenth.
+ */
+public class SyncScheduler {
+    private static final String LOG_TAG = SyncScheduler.class.getSimpleName();
+
+    private static final long HOUR_IN_MILLIS = 1000 * 60 * 60;
+
+    static final long BASE_INTERVAL_MILLIS = SunshineSyncAdapter.SYNC_INTERVAL * 1000L;
+    static final long MIN_INTERVAL_MILLIS = HOUR_IN_MILLIS;
+    static final long MAX_INTERVAL_MILLIS = 12 * HOUR_IN_MILLIS;
+    static final long MAX_STALENESS_MILLIS = 12 * HOUR_IN_MILLIS;
+
+    // Looked at within this long counts as being looked at; not within this long, as idle.
+    static final long RECENTLY_VIEWED_MILLIS = 2 * HOUR_IN_MILLIS;
+    static final long IDLE_MILLIS = 24 * HOUR_IN_MILLIS;
+
+    // A forecast that moves this many degrees a sync is synced at the base interval.
+    static final double VOLATILITY_REFERENCE = 2.0;
+    // The weight of the latest sync in the moving average
+    static final double VOLATILITY_WEIGHT = 0.3;
+
+    /**
+     * What the interval is chosen from.  Times are how long ago something happened, in
+     * milliseconds; Long.MAX_VALUE for never.
+     */
+    static final class Conditions {
+        // Degrees per sync, negative if unknown
+        double volatility = -1;
+        long sinceViewed = Long.MAX_VALUE;
+        long sinceWatchUpdated = Long.MAX_VALUE;
+        long sinceSuccess = Long.MAX_VALUE;
+        boolean metered;
+    }
+
+    // Reading the conditions touches the preferences file and the connectivity service, and
+    // rescheduling calls into the sync manager: none of it for the main thread.  One at a
+    // time, so two quick resumes can't reschedule over each other.
+    private static final Executor sExecutor = Executors.newSingleThreadExecutor();
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * @return the interval the periodic sync should run at under the conditions.
+     */
+    static long computeInterval(Conditions conditions) {
+        if (conditions.sinceSuccess >= MAX_STALENESS_MILLIS) {
+            return MIN_INTERVAL_MILLIS;
+        }
+
+        double scale = 1;
+        if (conditions.volatility >= 0) {
+            scale = clamp(VOLATILITY_REFERENCE / Math.max(conditions.volatility, 0.01), 0.5, 2);
+        }
+
+        boolean watch = conditions.sinceWatchUpdated < IDLE_MILLIS;
+        if (conditions.sinceViewed < RECENTLY_VIEWED_MILLIS) {
+            scale *= 0.5;
+        } else if (conditions.sinceViewed >= IDLE_MILLIS && !watch) {
+            // No one is looking.
+            scale *= 2;
+        }
+        if (watch) {
+            // A watch face is on show most of the day.
+            scale *= 0.75;
+        }
+        if (conditions.metered) {
+            scale *= 1.5;
+        }
+
+        return (long) clamp(BASE_INTERVAL_MILLIS * scale, MIN_INTERVAL_MILLIS,
+                MAX_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @return the moving average with a sync whose forecast moved by delta degrees.
+     */
+    static double updateVolatility(double volatility, double delta) {
+        if (volatility < 0) {
+            return delta;
+        }
+        return volatility + VOLATILITY_WEIGHT * (delta - volatility);
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    static Conditions readConditions(Context context, long now) {
+        SyncStateStore syncState = new SyncStateStore(context);
+        Conditions conditions = new Conditions();
+        conditions.volatility = syncState.getVolatility();
+        conditions.sinceViewed = since(now, syncState.getLastViewedTime());
+        conditions.sinceWatchUpdated = since(now, syncState.getLastWatchUpdateTime());
+        conditions.sinceSuccess = since(now, syncState.getLastSuccessTime());
+        if (Utility.isNetworkAvailable(context)) {
+            ConnectivityManager cm =
+                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            conditions.metered = ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+        }
+        return conditions;
+    }
+
+    private static long since(long now, long time) {
+        return time == 0 ? Long.MAX_VALUE : Math.max(0, now - time);
+    }
+
+    /**
+     * Sets the periodic sync to the interval the current conditions call for, if it's far
+     * enough from the one it has.
+     */
+    public static void reschedule(Context context) {
+        long interval = computeInterval(readConditions(context, System.currentTimeMillis()));
+        SyncStateStore syncState = new SyncStateStore(context);
+        long scheduled = syncState.getScheduledInterval();
+        if (scheduled != 0 && Math.abs(interval - scheduled) <= scheduled / 10) {
+            return;
+        }
+        Log.d(LOG_TAG, "Syncing every " + interval / 60000 + " minutes");
+        SunshineSyncAdapter.configurePeriodicSync(context, (int) (interval / 1000),
+                (int) (interval / 3000));
+        syncState.setScheduledInterval(interval);
+    }
+
+    /**
+     * Call when the app comes to the foreground.  Returns right away; the rescheduling happens
+     * in the background.
+     */
+    public static void onAppViewed(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final long now = System.currentTimeMillis();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                new SyncStateStore(appContext).setLastViewedTime(now);
+                reschedule(appContext);
+            }
+        });
+    }
+
+    /**
+     * Call when a watch took the weather.
+     */
+    public static void onWatchUpdated(Context context) {
+        new SyncStateStore(context).setLastWatchUpdateTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Records a sync of the preferred location that got through.
+     *
+     * @param delta how far its forecast moved from the one we had, in degrees, or NaN if there
+     *              was nothing to compare it with.
+     */
+    static void onSyncSucceeded(Context context, double delta) {
+        SyncStateStore syncState = new SyncStateStore(context);
+        syncState.setLastSuccessTime(System.currentTimeMillis());
+        if (!Double.isNaN(delta)) {
+            syncState.setVolatility(updateVolatility(syncState.getVolatility(), delta));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Bookkeeping the sync keeps between runs for each location setting, such as the HTTP
+ * validators and the content hash of the last forecast we stored.  This lives in its own
+ * preferences file so it never shows up next to the user's settings.
+ */
+class SyncStateStore {
+    private static final String PREFS = SyncStateStore.class.getName() + ".prefs";
+
+    private static final String PREFS_ETAG = "etag_";
+    private static final String PREFS_LAST_MODIFIED = "last_modified_";
+    private static final String PREFS_FORECAST_HASH = "forecast_hash_";
+    private static final String PREFS_SKIPPED_SYNCS = "skipped_syncs";
+    private static final String PREFS_VOLATILITY = "volatility";
+    private static final String PREFS_LAST_SUCCESS = "last_success";
+    private static final String PREFS_LAST_VIEWED = "last_viewed";
+    private static final String PREFS_LAST_WATCH_UPDATE = "last_watch_update";
+    private static final String PREFS_SCHEDULED_INTERVAL = "scheduled_interval";
+    private static final String PREFS_CONSECUTIVE_FAILURES = "consecutive_failures";
+    private static final String PREFS_CIRCUIT_OPEN_UNTIL = "circuit_open_until";
+
+    private final SharedPreferences mPrefs;
+
+    SyncStateStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the ETag the server sent with the forecast we last stored for this location,
+     * or null if we don't have one.
+     */
+    String getETag(String locationSetting) {
+        return mPrefs.getString(PREFS_ETAG + locationSetting, null);
+    }
+
+    /**
+     * @return the Last-Modified date the server sent with the forecast we last stored for
+     * this location, or null if we don't have one.
+     */
+    String getLastModified(String locationSetting) {
+        return mPrefs.getString(PREFS_LAST_MODIFIED + locationSetting, null);
+    }
+
+    /**
+     * Remembers the validators of a forecast that has just been stored.  Either one may be
+     * null if the server didn't send it.
+     */
+    void setValidators(String locationSetting, String eTag, String lastModified) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (eTag != null) {
+            editor.putString(PREFS_ETAG + locationSetting, eTag);
+        } else {
+            editor.remove(PREFS_ETAG + locationSetting);
+        }
+        if (lastModified != null) {
+            editor.putString(PREFS_LAST_MODIFIED + locationSetting, lastModified);
+        } else {
+            editor.remove(PREFS_LAST_MODIFIED + locationSetting);
+        }
+        editor.apply();
+    }
+
+    void clearValidators(String locationSetting) {
+        setValidators(locationSetting, null, null);
+    }
+
+    /**
+     * @return the hash of the forecast we last stored for this location, or null.
+     */
+    String getForecastHash(String locationSetting) {
+        return mPrefs.getString(PREFS_FORECAST_HASH + locationSetting, null);
+    }
+
+    void setForecastHash(String locationSetting, String forecastHash) {
+        if (forecastHash != null) {
+            mPrefs.edit().putString(PREFS_FORECAST_HASH + locationSetting, forecastHash).apply();
+        } else {
+            mPrefs.edit().remove(PREFS_FORECAST_HASH + locationSetting).apply();
+        }
+    }
+
+    /**
+     * @return how many syncs ended early because the forecast had not changed.
+     */
+    long getSkippedSyncCount() {
+        return mPrefs.getLong(PREFS_SKIPPED_SYNCS, 0);
+    }
+
+    void incrementSkippedSyncCount() {
+        synchronized (SyncStateStore.class) {
+            mPrefs.edit().putLong(PREFS_SKIPPED_SYNCS, getSkippedSyncCount() + 1).apply();
+        }
+    }
+
+    /**
+     * @return the moving average of how much the preferred location's forecast moved from one
+     * sync to the next, in degrees, or a negative value if there's none yet.
+     */
+    double getVolatility() {
+        return mPrefs.getFloat(PREFS_VOLATILITY, -1);
+    }
+
+    void setVolatility(double volatility) {
+        mPrefs.edit().putFloat(PREFS_VOLATILITY, (float) volatility).apply();
+    }
+
+    /**
+     * @return when the preferred location was last synced without an error, or 0 if never.
+     */
+    long getLastSuccessTime() {
+        return mPrefs.getLong(PREFS_LAST_SUCCESS, 0);
+    }
+
+    void setLastSuccessTime(long time) {
+        mPrefs.edit().putLong(PREFS_LAST_SUCCESS, time).apply();
+    }
+
+    /**
+     * @return when the app was last in the foreground, or 0 if never.
+     */
+    long getLastViewedTime() {
+        return mPrefs.getLong(PREFS_LAST_VIEWED, 0);
+    }
+
+    void setLastViewedTime(long time) {
+        mPrefs.edit().putLong(PREFS_LAST_VIEWED, time).apply();
+    }
+
+    /**
+     * @return when a watch last took the weather, or 0 if never.
+     */
+    long getLastWatchUpdateTime() {
+        return mPrefs.getLong(PREFS_LAST_WATCH_UPDATE, 0);
+    }
+
+    void setLastWatchUpdateTime(long time) {
+        mPrefs.edit().putLong(PREFS_LAST_WATCH_UPDATE, time).apply();
+    }
+
+    /**
+     * @return the interval the periodic sync was last set to, in milliseconds, or 0 if it was
+     * never rescheduled.
+     */
+    long getScheduledInterval() {
+        return mPrefs.getLong(PREFS_SCHEDULED_INTERVAL, 0);
+    }
+
+    void setScheduledInterval(long intervalMillis) {
+        mPrefs.edit().putLong(PREFS_SCHEDULED_INTERVAL, intervalMillis).apply();
+    }
+
+    /**
+     * @return how many requests to the server failed in a row.
+     */
+    int getConsecutiveFailures() {
+        return mPrefs.getInt(PREFS_CONSECUTIVE_FAILURES, 0);
+    }
+
+    void setConsecutiveFailures(int failures) {
+        mPrefs.edit().putInt(PREFS_CONSECUTIVE_FAILURES, failures).apply();
+    }
+
+    /**
+     * @return until when no request is to be sent to the server, or 0 if they may be.
+     */
+    long getCircuitOpenUntil() {
+        return mPrefs.getLong(PREFS_CIRCUIT_OPEN_UNTIL, 0);
+    }
+
+    void setCircuitOpenUntil(long time) {
+        mPrefs.edit().putLong(PREFS_CIRCUIT_OPEN_UNTIL, time).apply();
+    }
+}
@@ -0,0 +1,93 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Locale;
+
+/**
+ * What the responses of one sync cost: bytes over the wire, what they came to once
+ * decompressed, the time from sending each request to its last byte, and how that time
+ * divides into phases, summed over the responses.  Shared by the fetches of a sync, from
+ * whatever threads they run on.
+ */
+class TransferStats {
+    private int mResponseCount;
+    private long mWireBytes;
+    private long mBodyBytes;
+    private long mTotalNanos;
+    private long mMaxNanos;
+    private long mConnectNanos;
+    private long mFirstByteNanos;
+    private long mDownloadNanos;
+    private long mParseNanos;
+
+    /**
+     * @param wireBytes the body bytes as they came over the wire.
+     * @param bodyBytes the same, decompressed.
+     * @param timeToLastByteNanos from sending the request to the last byte of the response.
+     */
+    synchronized void onResponse(long wireBytes, long bodyBytes, long timeToLastByteNanos) {
+        mResponseCount++;
+        mWireBytes += wireBytes;
+        mBodyBytes += bodyBytes;
+        mTotalNanos += timeToLastByteNanos;
+        mMaxNanos = Math.max(mMaxNanos, timeToLastByteNanos);
+    }
+
+    /**
+     * @param connectNanos resolving the host and connecting.
+     * @param firstByteNanos from connected to the response headers.
+     * @param downloadNanos waiting for the body.
+     * @param parseNanos decompressing, decoding and parsing it.
+     */
+    synchronized void onPhases(long connectNanos, long firstByteNanos, long downloadNanos,
+                               long parseNanos) {
+        mConnectNanos += connectNanos;
+        mFirstByteNanos += firstByteNanos;
+        mDownloadNanos += downloadNanos;
+        mParseNanos += parseNanos;
+    }
+
+    synchronized long getConnectNanos() {
+        return mConnectNanos;
+    }
+
+    synchronized long getFirstByteNanos() {
+        return mFirstByteNanos;
+    }
+
+    synchronized long getDownloadNanos() {
+        return mDownloadNanos;
+    }
+
+    synchronized long getParseNanos() {
+        return mParseNanos;
+    }
+
+    synchronized int getResponseCount() {
+        return mResponseCount;
+    }
+
+    synchronized long getWireBytes() {
+        return mWireBytes;
+    }
+
+    synchronized long getBodyBytes() {
+        return mBodyBytes;
+    }
+
+    synchronized long getMaxTimeToLastByteNanos() {
+        return mMaxNanos;
+    }
+
+    synchronized long getMeanTimeToLastByteNanos() {
+        return mResponseCount == 0 ? 0 : mTotalNanos / mResponseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "%d responses, %d bytes over the wire (%d decompressed), "
+                        + "last byte after %.1f ms on average, %.1f ms at most",
+                mResponseCount, mWireBytes, mBodyBytes,
+                getMeanTimeToLastByteNanos() / 1e6, mMaxNanos / 1e6);
+    }
+}
@@ -5,11 +5,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+
 public class WatchDataUpdateReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
         Log.d("WatchDataUpdateReceiver", "received updated");
-        context.startService(new Intent(context, WatchDataUpdateService.class));
+        context.startService(new Intent(context, WatchDataUpdateService.class)
+                .setAction(SunshineSyncAdapter.ACTION_DATA_UPDATED));
     }
 }
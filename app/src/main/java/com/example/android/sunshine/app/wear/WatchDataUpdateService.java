@@ -3,12 +3,13 @@ package com.example.android.sunshine.app.wear;
 import android.app.IntentService;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import com.example.android.sunshine.app.Utility;
-import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+import com.example.android.sunshine.app.data.WeatherChangeTracker;
+import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
+import com.example.android.sunshine.app.sync.SyncScheduler;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.wearable.DataApi;
@@ -22,15 +23,6 @@ import com.google.android.gms.wearable.Wearable;
  */
 public class WatchDataUpdateService extends IntentService {
 
-    private static final String[] FORECAST_COLUMNS = {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
-    };
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-
     private static final String PREFS = WatchDataUpdateService.class.getName() + ".prefs";
 
     private static final String PREFS_ID = "id";
@@ -46,6 +38,16 @@ public class WatchDataUpdateService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent intent) {
+        // After a sync, only if it changed today; there's no need to reach the watch otherwise.
+        String location = Utility.getPreferredLocation(this);
+        long now = System.currentTimeMillis();
+        WeatherChangeTracker changeTracker = new WeatherChangeTracker(this,
+                WatchDataUpdateService.class.getSimpleName());
+        boolean changed = changeTracker.hasChanged(location, now, now);
+        if (!changed && SunshineSyncAdapter.ACTION_DATA_UPDATED.equals(intent.getAction())) {
+            return;
+        }
+
         if (mGoogleApiClient == null) {
             mGoogleApiClient = new GoogleApiClient.Builder(this)
                     .addApi(Wearable.API)
@@ -56,44 +58,42 @@ public class WatchDataUpdateService extends IntentService {
             prefs = getSharedPreferences(PREFS, MODE_PRIVATE);
         }
 
-        checkWeatherUpdate();
+        checkWeatherUpdate(location, now, changeTracker);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        mGoogleApiClient.disconnect();
+        if (mGoogleApiClient != null) {
+            mGoogleApiClient.disconnect();
+        }
     }
 
-    private void checkWeatherUpdate() {
+    private void checkWeatherUpdate(String location, long now,
+                                    WeatherChangeTracker changeTracker) {
         // Get today's data from the ContentProvider
-        String location = Utility.getPreferredLocation(this);
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                location, System.currentTimeMillis());
-        Cursor data = getContentResolver().query(weatherForLocationUri, FORECAST_COLUMNS, null,
-                null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
-        if (data == null) {
-            return;
-        }
-        if (!data.moveToFirst()) {
-            data.close();
+        ForecastSnapshot data = ForecastSnapshot.query(getContentResolver(), location, now, 1);
+        if (data.isEmpty()) {
             return;
         }
 
-        processWeatherData(data);
+        processWeatherData(data, changeTracker);
 
     }
 
-    private void processWeatherData(Cursor data) {
-        // Extract the weather data from the Cursor
-        int weatherId = data.getInt(INDEX_WEATHER_ID);
-        double maxTemp = data.getDouble(INDEX_MAX_TEMP);
-        double minTemp = data.getDouble(INDEX_MIN_TEMP);
+    private void processWeatherData(ForecastSnapshot data,
+                                    WeatherChangeTracker changeTracker) {
+        // Extract today's weather from the snapshot
+        int weatherId = data.getWeatherId(0);
+        double maxTemp = data.getHigh(0);
+        double minTemp = data.getLow(0);
         String formattedMaxTemperature = Utility.formatTemperature(this, maxTemp);
         String formattedMinTemperature = Utility.formatTemperature(this, minTemp);
-        data.close();
         if (dataHasChanged(weatherId, formattedMaxTemperature, formattedMinTemperature)) {
-            updateWeather(weatherId, formattedMaxTemperature, formattedMinTemperature);
+            updateWeather(weatherId, formattedMaxTemperature, formattedMinTemperature,
+                    changeTracker);
+        } else {
+            changeTracker.markSeen();
         }
     }
 
@@ -106,7 +106,7 @@ public class WatchDataUpdateService extends IntentService {
 
 
     private void updateWeather(final int weatherId, final String weatherMax,
-                               final String weatherMin) {
+                               final String weatherMin, final WeatherChangeTracker changeTracker) {
         PutDataMapRequest request = PutDataMapRequest.create("/update");
         request.getDataMap().putInt("id", weatherId);
         request.getDataMap().putString("max", weatherMax);
@@ -119,6 +119,9 @@ public class WatchDataUpdateService extends IntentService {
                     public void onResult(@NonNull DataApi.DataItemResult dataItemResult) {
                         if (dataItemResult.getStatus().isSuccess()) {
                             updatePrefs(weatherId, weatherMax, weatherMin);
+                            SyncScheduler.onWatchUpdated(WatchDataUpdateService.this);
+                            // Not before: a watch that missed it gets it after the next sync.
+                            changeTracker.markSeen();
                         }
                     }
                 });
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+    Checks EpochDays on the JVM against java.util's calendar: around the epoch and before it,
+    across the changes to and from daylight saving time, on a day whose midnight the clocks
+    skip, and its weeks and months through leap and century years.  TestEpochDays checks it
+    against android.text.format.Time on a device.
+ */
+public class EpochDaysTest {
+
+    private static final long HOUR_IN_MILLIS = 60 * 60 * 1000;
+
+    // 1 January 2014 to 1 January 2017, UTC
+    private static final long FROM_MILLIS = 1388534400000L;
+    private static final long TO_MILLIS = 1483228800000L;
+    // Odd enough to land on every hour and minute sooner or later
+    private static final long STEP_MILLIS = 7 * HOUR_IN_MILLIS + 13 * 60 * 1000 + 17;
+
+    @Test
+    public void epochBoundaries() {
+        EpochDays utc = new EpochDays(TimeZone.getTimeZone("UTC"));
+        assertEquals(0, utc.toEpochDay(0));
+        assertEquals(0, utc.toEpochDay(EpochDays.DAY_IN_MILLIS - 1));
+        assertEquals(1, utc.toEpochDay(EpochDays.DAY_IN_MILLIS));
+        assertEquals(-1, utc.toEpochDay(-1));
+        assertEquals(0, utc.toMillis(0));
+        assertEquals(0, utc.normalize(EpochDays.DAY_IN_MILLIS - 1));
+        assertEquals(-EpochDays.DAY_IN_MILLIS, utc.normalize(-1));
+        assertEquals(EpochDays.EPOCH_JULIAN_DAY, EpochDays.toJulianDay(0));
+        assertEquals(0, EpochDays.fromJulianDay(EpochDays.EPOCH_JULIAN_DAY));
+
+        // The epoch was still 31 December 1969 in New York, and already 1 January in Tokyo.
+        EpochDays newYork = new EpochDays(TimeZone.getTimeZone("America/New_York"));
+        assertEquals(-1, newYork.toEpochDay(0));
+        assertEquals(5 * HOUR_IN_MILLIS, newYork.toMillis(0));
+        EpochDays tokyo = new EpochDays(TimeZone.getTimeZone("Asia/Tokyo"));
+        assertEquals(0, tokyo.toEpochDay(0));
+        assertEquals(-9 * HOUR_IN_MILLIS, tokyo.toMillis(0));
+    }
+
+    @Test
+    public void negativeDays() {
+        TimeZone zone = TimeZone.getTimeZone("Europe/Berlin");
+        EpochDays days = new EpochDays(zone);
+        Calendar calendar = new GregorianCalendar(zone);
+        calendar.clear();
+        // 1 January 1950, before the epoch and before Berlin's current rules
+        calendar.set(1950, Calendar.JANUARY, 1);
+        long from = calendar.getTimeInMillis();
+        for (long millis = from; millis < 0; millis += STEP_MILLIS) {
+            calendar.setTimeInMillis(millis);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            assertEquals("Error: wrong start of day for " + millis,
+                    calendar.getTimeInMillis(), days.normalize(millis));
+            assertEquals(days.toEpochDay(millis), days.toEpochDay(days.normalize(millis)));
+        }
+
+        assertEquals(Calendar.THURSDAY, EpochDays.getDayOfWeek(0));
+        assertEquals(Calendar.WEDNESDAY, EpochDays.getDayOfWeek(-1));
+        assertEquals(Calendar.THURSDAY, EpochDays.getDayOfWeek(-7));
+        // Monday 29 December 1969
+        assertEquals(-3, EpochDays.getWeekStart(0));
+        assertEquals(-3, EpochDays.getWeekStart(-1));
+        assertEquals(-10, EpochDays.getWeekStart(-4));
+        assertEquals(31, EpochDays.getDayOfMonth(-1));
+        assertEquals(-31, EpochDays.getMonthStart(-1));
+        assertEquals(0, EpochDays.getNextMonthStart(-1));
+    }
+
+    @Test
+    public void daylightSavingTransitions() {
+        TimeZone zone = TimeZone.getTimeZone("Europe/Berlin");
+        EpochDays days = new EpochDays(zone);
+        Calendar calendar = new GregorianCalendar(zone);
+        calendar.clear();
+
+        // Summer time began at 02:00 on 29 March 2015, so the day was 23 hours long.
+        calendar.set(2015, Calendar.MARCH, 29, 12, 0);
+        int spring = days.toEpochDay(calendar.getTimeInMillis());
+        assertEquals(23 * HOUR_IN_MILLIS, days.toMillis(spring + 1) - days.toMillis(spring));
+        calendar.set(2015, Calendar.MARCH, 29, 3, 0);
+        assertEquals(spring, days.toEpochDay(calendar.getTimeInMillis()));
+        calendar.set(2015, Calendar.MARCH, 29, 23, 59);
+        assertEquals(spring, days.toEpochDay(calendar.getTimeInMillis()));
+
+        // It ended at 03:00 on 25 October 2015, so that day was 25 hours long.
+        calendar.set(2015, Calendar.OCTOBER, 25, 12, 0);
+        int autumn = days.toEpochDay(calendar.getTimeInMillis());
+        assertEquals(25 * HOUR_IN_MILLIS, days.toMillis(autumn + 1) - days.toMillis(autumn));
+        // Both 02:30s fall on the same day.
+        calendar.set(2015, Calendar.OCTOBER, 25, 2, 30);
+        long firstHalfPastTwo = calendar.getTimeInMillis();
+        assertEquals(autumn, days.toEpochDay(firstHalfPastTwo));
+        assertEquals(autumn, days.toEpochDay(firstHalfPastTwo + HOUR_IN_MILLIS));
+
+        calendar.set(2015, Calendar.MARCH, 28, 23, 59);
+        long now = calendar.getTimeInMillis();
+        calendar.set(2015, Calendar.MARCH, 29, 0, 0);
+        assertEquals(1, days.daysFrom(now, calendar.getTimeInMillis()));
+        calendar.set(2015, Calendar.MARCH, 30, 0, 0);
+        assertEquals(2, days.daysFrom(now, calendar.getTimeInMillis()));
+        calendar.set(2015, Calendar.MARCH, 28, 0, 0);
+        assertEquals(0, days.daysFrom(now, calendar.getTimeInMillis()));
+        calendar.set(2015, Calendar.MARCH, 27, 23, 59);
+        assertEquals(-1, days.daysFrom(now, calendar.getTimeInMillis()));
+
+        // Every day of a few years starts where the calendar says.
+        for (long millis = FROM_MILLIS; millis < TO_MILLIS; millis += STEP_MILLIS) {
+            calendar.setTimeInMillis(millis);
+            assertEquals(calendar.get(Calendar.DAY_OF_WEEK),
+                    EpochDays.getDayOfWeek(days.toEpochDay(millis)));
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            assertEquals("Error: wrong start of day for " + millis,
+                    calendar.getTimeInMillis(), days.normalize(millis));
+        }
+    }
+
+    @Test
+    public void skippedMidnight() {
+        // São Paulo went from 00:00 straight to 01:00 on 19 October 2014.
+        TimeZone zone = TimeZone.getTimeZone("America/Sao_Paulo");
+        EpochDays days = new EpochDays(zone);
+        Calendar calendar = new GregorianCalendar(zone);
+        calendar.clear();
+        calendar.set(2014, Calendar.OCTOBER, 19, 1, 0);
+        long oneAm = calendar.getTimeInMillis();
+
+        int day = days.toEpochDay(oneAm);
+        assertEquals(oneAm, days.toMillis(day));
+        assertEquals(day, days.toEpochDay(days.toMillis(day)));
+        assertEquals(23 * HOUR_IN_MILLIS, days.toMillis(day + 1) - days.toMillis(day));
+        assertEquals(24 * HOUR_IN_MILLIS, days.toMillis(day) - days.toMillis(day - 1));
+    }
+
+    @Test
+    public void leapYears() {
+        // 2016 was a leap year, 1900 and 2100 aren't, 2000 was.
+        assertEquals(29, EpochDays.getDayOfMonth(toEpochDay(2016, Calendar.FEBRUARY, 29)));
+        assertEquals(toEpochDay(2016, Calendar.MARCH, 1),
+                EpochDays.getNextMonthStart(toEpochDay(2016, Calendar.FEBRUARY, 29)));
+        assertEquals(toEpochDay(2015, Calendar.MARCH, 1),
+                EpochDays.getNextMonthStart(toEpochDay(2015, Calendar.FEBRUARY, 28)));
+        assertEquals(1, EpochDays.getDayOfMonth(toEpochDay(1900, Calendar.MARCH, 1)));
+        assertEquals(toEpochDay(1900, Calendar.FEBRUARY, 28) + 1,
+                toEpochDay(1900, Calendar.MARCH, 1));
+        assertEquals(29, EpochDays.getDayOfMonth(toEpochDay(2000, Calendar.FEBRUARY, 29)));
+        assertEquals(toEpochDay(2100, Calendar.MARCH, 1),
+                EpochDays.getNextMonthStart(toEpochDay(2100, Calendar.FEBRUARY, 28)));
+
+        // Days as UTC midnights, so the calendar's fields are the epoch day's
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        // 1 January 1900 to 1 January 2101, leap and century years included
+        for (int day = -25567; day < 47847; day++) {
+            calendar.setTimeInMillis(day * EpochDays.DAY_IN_MILLIS);
+            int dayOfMonth = calendar.get(Calendar.DAY_OF_MONTH);
+            assertEquals(dayOfMonth, EpochDays.getDayOfMonth(day));
+            assertEquals(day - dayOfMonth + 1, EpochDays.getMonthStart(day));
+            assertEquals(day - dayOfMonth + 1 + calendar.getActualMaximum(Calendar.DAY_OF_MONTH),
+                    EpochDays.getNextMonthStart(day));
+            assertEquals(calendar.get(Calendar.DAY_OF_WEEK), EpochDays.getDayOfWeek(day));
+
+            int weekStart = EpochDays.getWeekStart(day);
+            assertEquals(Calendar.MONDAY, EpochDays.getDayOfWeek(weekStart));
+            assertTrue(weekStart <= day && day - weekStart < 7);
+        }
+    }
+
+    @Test
+    public void sharedBetweenThreads() throws InterruptedException {
+        final EpochDays days = new EpochDays(TimeZone.getTimeZone("America/New_York"));
+        final EpochDays reference = new EpochDays(TimeZone.getTimeZone("America/New_York"));
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long offset = t * HOUR_IN_MILLIS;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (long millis = FROM_MILLIS + offset; millis < TO_MILLIS;
+                         millis += STEP_MILLIS) {
+                        // A fresh cache per call, so the shared one has nothing to lean on
+                        int expected = new EpochDays(reference.getZone()).toEpochDay(millis);
+                        if (days.toEpochDay(millis) != expected) {
+                            error.set("Wrong day for " + millis);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get(), error.get());
+    }
+
+    private static int toEpochDay(int year, int month, int dayOfMonth) {
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month, dayOfMonth);
+        return (int) (calendar.getTimeInMillis() / EpochDays.DAY_IN_MILLIS);
+    }
+}